@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the original and the patched class file of every class a {@link ScriptManager} patched, so that they can be rolled back and
+ * re-patched without asking the JVM for the original bytes again, and without running the scripts again.
+ * <p>
+ * The class files are compressed and kept in direct buffers, outside of the java heap. They are indexed by class loader and class name;
+ * entries for a class loader go away when that class loader is garbage collected.
+ */
+public final class ClassByteStore {
+	private final Map<ClassLoader, Map<String, Entry>> entries = new WeakHashMap<ClassLoader, Map<String, Entry>>();
+	private long offHeapBytes;
+	
+	ClassByteStore() {}
+	
+	private static final class Entry {
+		final ByteBuffer data;
+		final int originalLength, originalCompressedLength, patchedLength;
+		final long originalChecksum;
+		final int version;
+		
+		Entry(ByteBuffer data, int originalLength, int originalCompressedLength, int patchedLength, long originalChecksum, int version) {
+			this.data = data;
+			this.originalLength = originalLength;
+			this.originalCompressedLength = originalCompressedLength;
+			this.patchedLength = patchedLength;
+			this.originalChecksum = originalChecksum;
+			this.version = version;
+		}
+		
+		byte[] original() {
+			return inflate(0, originalCompressedLength, originalLength);
+		}
+		
+		byte[] patched() {
+			return inflate(originalCompressedLength, data.capacity() - originalCompressedLength, patchedLength);
+		}
+		
+		private byte[] inflate(int offset, int length, int inflatedLength) {
+			byte[] in = new byte[length];
+			ByteBuffer b = data.duplicate();
+			b.position(offset);
+			b.get(in);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(in);
+				byte[] out = new byte[inflatedLength];
+				int pos = 0;
+				while (pos < inflatedLength) {
+					int r = inflater.inflate(out, pos, inflatedLength - pos);
+					if (r == 0 && (inflater.finished() || inflater.needsInput())) break;
+					pos += r;
+				}
+				if (pos != inflatedLength) throw new IllegalStateException("Stored class file is corrupt");
+				return out;
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Stored class file is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+	
+	/**
+	 * Stores the class file of {@code className} as loaded by {@code loader} (which is {@code null} for the bootstrap loader) both
+	 * before and after patching. Replaces whatever was stored for this class before.
+	 *
+	 * @param version The {@link ScriptManager#getVersion() script version} that produced {@code patched}.
+	 */
+	public void put(ClassLoader loader, String className, byte[] original, byte[] patched, int version) {
+		if (className == null) throw new NullPointerException("className");
+		byte[] o = deflate(original);
+		byte[] p = deflate(patched);
+		ByteBuffer data = ByteBuffer.allocateDirect(o.length + p.length);
+		data.put(o).put(p);
+		Entry entry = new Entry(data, original.length, o.length, patched.length, checksum(original), version);
+		
+		synchronized (entries) {
+			Map<String, Entry> forLoader = entries.get(loader);
+			if (forLoader == null) {
+				forLoader = new HashMap<String, Entry>();
+				entries.put(loader, forLoader);
+			}
+			Entry old = forLoader.put(className, entry);
+			if (old != null) offHeapBytes -= old.data.capacity();
+			offHeapBytes += data.capacity();
+		}
+	}
+	
+	/**
+	 * @return The class file as it was before patching, or {@code null} if nothing is stored for this class.
+	 */
+	public byte[] getOriginal(ClassLoader loader, String className) {
+		Entry e = get(loader, className);
+		return e == null ? null : e.original();
+	}
+	
+	/**
+	 * @return The class file as it was after patching, or {@code null} if nothing is stored for this class.
+	 */
+	public byte[] getPatched(ClassLoader loader, String className) {
+		Entry e = get(loader, className);
+		return e == null ? null : e.patched();
+	}
+	
+	/**
+	 * Returns the stored patched class file, but only if it was produced from exactly {@code original} by scripts of the given
+	 * {@code version}; patching {@code original} again would then give the same result.
+	 */
+	public byte[] getPatchedIfCurrent(ClassLoader loader, String className, byte[] original, int version) {
+		Entry e = get(loader, className);
+		if (e == null || e.version != version || e.originalLength != original.length || e.originalChecksum != checksum(original)) return null;
+		byte[] stored = e.original();
+		for (int i = 0; i < stored.length; i++) if (stored[i] != original[i]) return null;
+		return e.patched();
+	}
+	
+	public boolean contains(ClassLoader loader, String className) {
+		return get(loader, className) != null;
+	}
+	
+	public void remove(ClassLoader loader, String className) {
+		synchronized (entries) {
+			Map<String, Entry> forLoader = entries.get(loader);
+			if (forLoader == null) return;
+			Entry old = forLoader.remove(className);
+			if (old != null) offHeapBytes -= old.data.capacity();
+		}
+	}
+	
+	/**
+	 * @return The number of classes stored.
+	 */
+	public int size() {
+		synchronized (entries) {
+			int size = 0;
+			for (Map<String, Entry> forLoader : entries.values()) size += forLoader.size();
+			return size;
+		}
+	}
+	
+	/**
+	 * @return How many bytes of memory outside of the heap the compressed class files take up. This does not account for entries of
+	 *     class loaders that have been collected since the last time the store was modified.
+	 */
+	public long getOffHeapBytes() {
+		synchronized (entries) {
+			return offHeapBytes;
+		}
+	}
+	
+	/**
+	 * Writes every stored class to {@code dir}, using the same layout as {@code lombok.patcher.patchDebugDir}: {@code Name.class}
+	 * for the patched and {@code Name_OLD.class} for the original class file. If a class name was loaded by more than one class
+	 * loader, each copy after the first gets {@code @} and the identity hash of its loader appended to its name.
+	 *
+	 * @return The number of classes written.
+	 */
+	public int exportTo(File dir) throws IOException {
+		Map<ClassLoader, Map<String, Entry>> copy;
+		synchronized (entries) {
+			copy = new HashMap<ClassLoader, Map<String, Entry>>();
+			for (Map.Entry<ClassLoader, Map<String, Entry>> e : entries.entrySet()) {
+				copy.put(e.getKey(), new HashMap<String, Entry>(e.getValue()));
+			}
+		}
+		
+		Set<String> written = new HashSet<String>();
+		int count = 0;
+		for (Map.Entry<ClassLoader, Map<String, Entry>> forLoader : copy.entrySet()) {
+			for (Map.Entry<String, Entry> e : forLoader.getValue().entrySet()) {
+				String name = e.getKey();
+				if (!written.add(name)) name = name + "@" + Integer.toHexString(System.identityHashCode(forLoader.getKey()));
+				write(new File(dir, name + ".class"), e.getValue().patched());
+				write(new File(dir, name + "_OLD.class"), e.getValue().original());
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private Entry get(ClassLoader loader, String className) {
+		synchronized (entries) {
+			Map<String, Entry> forLoader = entries.get(loader);
+			return forLoader == null ? null : forLoader.get(className);
+		}
+	}
+	
+	private static void write(File f, byte[] bytes) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(bytes);
+		} finally {
+			fos.close();
+		}
+	}
+	
+	private static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+	
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+			byte[] b = new byte[4096];
+			while (!deflater.finished()) {
+				int r = deflater.deflate(b);
+				out.write(b, 0, r);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of events, filled by patched code on application threads and drained in batches by a background thread,
+ * which passes them to a {@link Handler}. This lets hooks that do slow work (such as I/O) run off the application's threads: the
+ * patched code only has to put its event in the ring.
+ * <p>
+ * The ring is an array of slots allocated up front, each with a sequence number that says whether it's free for the producer that
+ * claims it, or filled for the consumer (the bounded queue design by Dmitry Vyukov). Producers claim a slot with a single CAS, and never
+ * wait for each other. Each ring gets an ID, which patched code passes to {@link #publish(Object[], int)}. Only while the ring is
+ * {@link #start() started} does that ID lead to it; once it is stopped, events published under its ID are ignored, and nothing static
+ * keeps the ring or its handler reachable anymore.
+ * <p>
+ * What happens when the ring is full is up to its {@link Overflow} policy; events that are lost are counted.
+ */
+public final class EventRing {
+	private static final long IDLE_PARK_NANOS = 1000000L;
+	private static final long BLOCKED_PARK_NANOS = 10000L;
+	
+	public enum Overflow {
+		/** The new event is dropped, and counted in {@link EventRing#getDropped()}. */
+		DROP,
+		/** The oldest event in the ring is dropped to make room, and counted in {@link EventRing#getOverwritten()}. */
+		OVERWRITE,
+		/** The producing thread waits until there is room. Don't use this if the ring isn't started, or if the handler itself can cause events to be published. */
+		BLOCK;
+	}
+	
+	public interface Handler {
+		/**
+		 * Called on the consumer thread, with at most one batch size of events, oldest first. Each event holds the values that were requested,
+		 * in the order of {@link StackRequest}, with primitives boxed. The list is reused once this method returns.
+		 */
+		void handle(List<Object[]> events);
+	}
+	
+	private static final Object lock = new Object();
+	private static volatile EventRing[] rings = new EventRing[0];
+	
+	private final Object[][] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong overwritten = new AtomicLong();
+	private final Overflow overflow;
+	private final Handler handler;
+	private final List<Object[]> batch;
+	private final int batchSize;
+	private final int id;
+	private volatile Thread consumer;
+	
+	/**
+	 * Creates a ring and gives it an ID. Nothing is published under that ID, nor drained, until {@link #start()} is called.
+	 *
+	 * @param capacity The number of slots; rounded up to a power of two.
+	 * @param batchSize The most events passed to {@code handler} at once.
+	 */
+	public EventRing(int capacity, Overflow overflow, int batchSize, Handler handler) {
+		if (capacity < 1 || capacity > (1 << 30)) throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+		if (overflow == null) throw new NullPointerException("overflow");
+		if (handler == null) throw new NullPointerException("handler");
+		int size = 1;
+		while (size < capacity) size <<= 1;
+		this.slots = new Object[size][];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) sequences.set(i, i);
+		this.mask = size - 1;
+		this.overflow = overflow;
+		this.handler = handler;
+		this.batchSize = batchSize;
+		this.batch = new ArrayList<Object[]>(batchSize);
+		
+		// IDs are never handed out twice: patched code that still has the ID baked in may outlive the ring.
+		synchronized (lock) {
+			EventRing[] old = rings;
+			EventRing[] updated = new EventRing[old.length + 1];
+			System.arraycopy(old, 0, updated, 0, old.length);
+			this.id = old.length;
+			rings = updated;
+		}
+	}
+	
+	private void register(boolean register) {
+		synchronized (lock) {
+			EventRing[] updated = rings.clone();
+			updated[id] = register ? this : null;
+			rings = updated;
+		}
+	}
+	
+	/**
+	 * @return The ID to bake into the patched code.
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * Called by patched code. The event is ignored if the ring isn't started.
+	 */
+	public static void publish(Object[] values, int id) {
+		EventRing ring = rings[id];
+		if (ring != null) ring.offer(values);
+	}
+	
+	/**
+	 * @return {@code false} if the event was dropped because the ring was full.
+	 */
+	public boolean offer(Object[] event) {
+		while (true) {
+			long pos = tail.get();
+			int idx = (int) pos & mask;
+			long diff = sequences.get(idx) - pos;
+			if (diff == 0) {
+				if (!tail.compareAndSet(pos, pos + 1)) continue;
+				slots[idx] = event;
+				sequences.set(idx, pos + 1);
+				return true;
+			}
+			if (diff > 0) continue; // another producer got here first.
+			
+			switch (overflow) {
+			case DROP:
+				dropped.incrementAndGet();
+				return false;
+			case OVERWRITE:
+				if (poll() != null) overwritten.incrementAndGet();
+				break;
+			case BLOCK:
+				LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Takes the oldest event out of the ring. Safe to call from any thread; producers call it too, to make room with {@link Overflow#OVERWRITE}.
+	 *
+	 * @return The event, or {@code null} if the ring is empty.
+	 */
+	Object[] poll() {
+		while (true) {
+			long pos = head.get();
+			int idx = (int) pos & mask;
+			long diff = sequences.get(idx) - (pos + 1);
+			if (diff < 0) return null;
+			if (diff > 0 || !head.compareAndSet(pos, pos + 1)) continue;
+			Object[] event = slots[idx];
+			slots[idx] = null;
+			sequences.set(idx, pos + mask + 1);
+			return event;
+		}
+	}
+	
+	/**
+	 * Passes up to one batch of events to the handler; the consumer thread calls this in a loop, but it can also be called directly (but
+	 * only from one thread at a time). Exceptions thrown by the handler are printed, and the events in that batch are lost.
+	 *
+	 * @return The number of events handled.
+	 */
+	public int drain() {
+		synchronized (batch) {
+			while (batch.size() < batchSize) {
+				Object[] event = poll();
+				if (event == null) break;
+				batch.add(event);
+			}
+			int count = batch.size();
+			if (count == 0) return 0;
+			try {
+				handler.handle(Collections.unmodifiableList(batch));
+			} catch (Throwable t) {
+				System.err.println("Event handler failed on a batch of " + count + " events. Trace:");
+				t.printStackTrace();
+			} finally {
+				batch.clear();
+			}
+			return count;
+		}
+	}
+	
+	/**
+	 * Makes {@link #publish(Object[], int)} put events in this ring, and starts the consumer, a daemon thread that drains the ring until
+	 * {@link #stop()} is called. When the ring is empty, it checks again every millisecond.
+	 */
+	public synchronized void start() {
+		if (consumer != null) return;
+		register(true);
+		Thread t = new Thread("lombok.patcher event consumer " + id) {
+			@Override public void run() {
+				while (consumer == this) {
+					if (drain() == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+				// Whatever was published before stop() was called still gets handled.
+				while (drain() > 0) {}
+			}
+		};
+		t.setDaemon(true);
+		consumer = t;
+		t.start();
+	}
+	
+	/**
+	 * Stops publishing to this ring, and stops the consumer, once it has drained what is in the ring at that point.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		Thread t = consumer;
+		if (t == null) return;
+		register(false);
+		consumer = null;
+		LockSupport.unpark(t);
+		t.join();
+	}
+	
+	/**
+	 * @return The number of events dropped with {@link Overflow#DROP} because the ring was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * @return The number of old events dropped with {@link Overflow#OVERWRITE} to make room for new ones.
+	 */
+	public long getOverwritten() {
+		return overwritten.get();
+	}
+	
+	/**
+	 * @return The number of events currently in the ring; only an estimate while producers or the consumer are busy.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) Math.min(size, slots.length);
+	}
+	
+	public int getCapacity() {
+		return slots.length;
+	}
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Copies the body of a static hook method straight into a target method, at the place where a call to the hook would have gone.
+ * 
+ * The target method is buffered in full. Once its original {@code maxLocals} is known, every inserted hook body gets its parameters
+ * and locals moved to slots above that value, its returns turned into jumps to a label right behind the inserted code, and its
+ * try/catch blocks put in front of those of the target. For class files that carry stack map frames, the frames of the hook are
+ * rewritten to be prefixed with the locals and stack of the target at the insertion point, as tracked by an {@code AnalyzerAdapter}.
+ * 
+ * The JVM clears the operand stack on entry to an exception handler, so a hook with try/catch blocks can't run on top of whatever
+ * the target still has on its stack. In that case the stack is spilled to locals above those of the hook, and loaded back in behind it.
+ * Class files without stack map frames don't let the {@code AnalyzerAdapter} follow the target past a jump, so for those the stack at
+ * such a site is found by running a full data flow analysis over the target instead.
+ */
+final class HookInliner {
+	private HookInliner() {}
+	
+	private static final Object[] NO_TYPES = new Object[0];
+	
+	/**
+	 * Returns a visitor that the patch script should write the target method to; calls to
+	 * {@link PatchScript#insertMethod(Hook, MethodVisitor)} with it will inline the hook for real.
+	 */
+	static MethodVisitor wrap(String owner, int access, String name, String desc, String signature, String[] exceptions, MethodVisitor target, int classFileFormatVersion) {
+		return new InliningMethodNode(owner, access, name, desc, signature, exceptions, target, classFileFormatVersion);
+	}
+	
+	static boolean canInline(MethodVisitor target) {
+		return target instanceof InliningMethodNode;
+	}
+	
+	static void inline(MethodVisitor target, Hook hook, byte[] hookClassData) {
+		((InliningMethodNode) target).inline(hook, hookClassData);
+	}
+	
+	private static MethodNode readHookMethod(final Hook hook, byte[] classData, boolean keepFrames) {
+		final MethodNode[] found = new MethodNode[1];
+		ClassReader reader = new ClassReader(classData);
+		reader.accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				if (!name.equals(hook.getMethodName()) || !desc.equals(hook.getMethodDescriptor())) return null;
+				found[0] = new MethodNode(Opcodes.ASM9, access, name, desc, signature, exceptions);
+				return found[0];
+			}
+		}, ClassReader.SKIP_DEBUG | (keepFrames ? ClassReader.EXPAND_FRAMES : ClassReader.SKIP_FRAMES));
+		
+		MethodNode method = found[0];
+		if (method == null) throw new IllegalArgumentException("hook method " + hook + " does not exist.");
+		if ((method.access & Opcodes.ACC_STATIC) == 0) throw new IllegalArgumentException("hook method " + hook + " must be static to be inserted.");
+		if (keepFrames && needsFrames(method) && !hasFrames(method)) throw new IllegalArgumentException(
+				"hook method " + hook + " contains branches but its class has no stack map frames; compile it for java 1.6 or up.");
+		return method;
+	}
+	
+	private static boolean needsFrames(MethodNode method) {
+		if (!method.tryCatchBlocks.isEmpty()) return true;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			int type = insn.getType();
+			if (type == AbstractInsnNode.JUMP_INSN || type == AbstractInsnNode.TABLESWITCH_INSN || type == AbstractInsnNode.LOOKUPSWITCH_INSN) return true;
+		}
+		return false;
+	}
+	
+	private static boolean hasFrames(MethodNode method) {
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn.getType() == AbstractInsnNode.FRAME) return true;
+		}
+		return false;
+	}
+	
+	private static boolean isReturn(int opcode) {
+		return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
+	}
+	
+	private static boolean isMeta(AbstractInsnNode insn) {
+		int type = insn.getType();
+		return type == AbstractInsnNode.LABEL || type == AbstractInsnNode.LINE;
+	}
+	
+	private static AbstractInsnNode nextReal(AbstractInsnNode insn) {
+		AbstractInsnNode n = insn.getNext();
+		while (n != null && isMeta(n)) n = n.getNext();
+		return n;
+	}
+	
+	/**
+	 * {@code AnalyzerAdapter} lists a long or double as 2 entries (the second being {@code TOP}); frames list them as 1.
+	 */
+	private static List<Object> slotsToFrameTypes(List<Object> slots, int count) {
+		List<Object> out = new ArrayList<Object>();
+		for (int i = 0; i < count; i++) {
+			Object t = slots.get(i);
+			out.add(t);
+			if (t == Opcodes.LONG || t == Opcodes.DOUBLE) i++;
+		}
+		return out;
+	}
+	
+	private static int slotSize(List<Object> frameTypes) {
+		int size = 0;
+		for (Object t : frameTypes) size += t == Opcodes.LONG || t == Opcodes.DOUBLE ? 2 : 1;
+		return size;
+	}
+	
+	private static int loadOpcode(Object frameType, int opcode) {
+		if (frameType == Opcodes.INTEGER) return Type.INT_TYPE.getOpcode(opcode);
+		if (frameType == Opcodes.FLOAT) return Type.FLOAT_TYPE.getOpcode(opcode);
+		if (frameType == Opcodes.LONG) return Type.LONG_TYPE.getOpcode(opcode);
+		if (frameType == Opcodes.DOUBLE) return Type.DOUBLE_TYPE.getOpcode(opcode);
+		return Type.getType(Object.class).getOpcode(opcode);
+	}
+	
+	private static final class InliningMethodNode extends MethodNode {
+		private final String owner;
+		private final MethodVisitor target;
+		private final boolean useFrames;
+		private final List<InlineSite> sites = new ArrayList<InlineSite>();
+		private AnalyzerAdapter analyzer;
+		private Object[] lastFrameLocals;
+		private int base;
+		
+		InliningMethodNode(String owner, int access, String name, String desc, String signature, String[] exceptions, MethodVisitor target, int classFileFormatVersion) {
+			super(Opcodes.ASM9, access, name, desc, signature, exceptions);
+			this.owner = owner;
+			this.target = target;
+			this.useFrames = (classFileFormatVersion & 0xFFFF) >= Opcodes.V1_6;
+		}
+		
+		void inline(Hook hook, byte[] hookClassData) {
+			InlineSite site = new InlineSite(readHookMethod(hook, hookClassData, useFrames));
+			sites.add(site);
+			instructions.add(site);
+		}
+		
+		@Override public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+			if (!useFrames || type == Opcodes.F_NEW) {
+				super.visitFrame(type, numLocal, local, numStack, stack);
+				return;
+			}
+			
+			// Patch scripts write compressed frames, but the reader has been told to expand them; we can't mix those.
+			instructions.add(new CompressedFrame(type, numLocal, toNodes(local, numLocal), toNodes(stack, numStack)));
+		}
+		
+		@Override public void visitEnd() {
+			// Methods generated by a patch script may not bother with an accurate maxLocals, as the writer computes it anyway.
+			base = Math.max(maxLocals, (Type.getArgumentsAndReturnSizes(desc) >> 2) - ((access & Opcodes.ACC_STATIC) != 0 ? 1 : 0));
+			if (!useFrames) findSpillsWithoutFrames();
+			for (InlineSite site : sites) site.expand(base);
+			
+			MethodVisitor out = target;
+			if (useFrames) {
+				analyzer = new AnalyzerAdapter(owner, access, name, desc, target);
+				lastFrameLocals = initialFrameLocals();
+				out = new MethodVisitor(Opcodes.ASM9, analyzer) {
+					@Override public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+						lastFrameLocals = Arrays.copyOf(local, numLocal);
+						super.visitFrame(type, numLocal, local, numStack, stack);
+					}
+				};
+			}
+			accept(out);
+		}
+		
+		private void findSpillsWithoutFrames() {
+			boolean needed = false;
+			for (InlineSite site : sites) if (!site.body.tryCatchBlocks.isEmpty()) needed = true;
+			if (!needed) return;
+			
+			// The maxs passed in by a patch script can be too low (the writer computes them anyway); the analyzer needs real bounds.
+			int savedLocals = maxLocals, savedStack = maxStack;
+			int locals = base;
+			for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn instanceof VarInsnNode) locals = Math.max(locals, ((VarInsnNode) insn).var + 2);
+				if (insn instanceof IincInsnNode) locals = Math.max(locals, ((IincInsnNode) insn).var + 1);
+			}
+			maxLocals = locals;
+			maxStack = Math.max(maxStack, 8);
+			Frame<BasicValue>[] frames = null;
+			try {
+				while (frames == null) {
+					try {
+						frames = new Analyzer<BasicValue>(new BasicInterpreter()).analyze(owner, this);
+					} catch (AnalyzerException e) {
+						if (!(e.getCause() instanceof IndexOutOfBoundsException) || maxStack > 0xFFFF) {
+							throw new IllegalStateException("Can't analyze " + owner + "." + name + desc + " to insert hooks into it", e);
+						}
+						maxStack *= 2;
+					}
+				}
+			} finally {
+				maxLocals = savedLocals;
+				maxStack = savedStack;
+			}
+			
+			for (InlineSite site : sites) {
+				if (!site.body.tryCatchBlocks.isEmpty()) site.spillFrom(frames[instructions.indexOf(site)]);
+			}
+		}
+		
+		private Object[] initialFrameLocals() {
+			List<Object> out = new ArrayList<Object>();
+			if ((access & Opcodes.ACC_STATIC) == 0) out.add("<init>".equals(name) ? Opcodes.UNINITIALIZED_THIS : owner);
+			for (Type t : Type.getArgumentTypes(desc)) out.add(MethodLogistics.frameTypeOf(t.getDescriptor()));
+			return out.toArray();
+		}
+		
+		private Object[] toNodes(Object[] types, int count) {
+			if (types == null) return NO_TYPES;
+			Object[] out = new Object[count];
+			for (int i = 0; i < count; i++) out[i] = types[i] instanceof Label ? getLabelNode((Label) types[i]) : types[i];
+			return out;
+		}
+		
+		private static Object[] fromNodes(List<Object> types, Map<LabelNode, LabelNode> labels) {
+			Object[] out = new Object[types.size()];
+			for (int i = 0; i < out.length; i++) {
+				Object t = types.get(i);
+				if (t instanceof LabelNode) {
+					LabelNode mapped = labels == null ? null : labels.get(t);
+					out[i] = (mapped == null ? (LabelNode) t : mapped).getLabel();
+				} else {
+					out[i] = t;
+				}
+			}
+			return out;
+		}
+		
+		/**
+		 * Marks the point where a hook goes. It emits nothing itself, but it records the state of the target method at that point,
+		 * which the frames of the inserted body are based on.
+		 */
+		private final class InlineSite extends AbstractInsnNode {
+			private final MethodNode body;
+			private final Type[] argumentTypes;
+			private final Type returnType;
+			private List<Object> siteLocals, siteStack;
+			private List<Object> spilled = Collections.emptyList();
+			private int padding, spillBase;
+			
+			InlineSite(MethodNode body) {
+				super(-1);
+				this.body = body;
+				this.argumentTypes = Type.getArgumentTypes(body.desc);
+				this.returnType = Type.getReturnType(body.desc);
+			}
+			
+			@Override public int getType() {
+				return LABEL;
+			}
+			
+			@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+				throw new UnsupportedOperationException();
+			}
+			
+			void expand(int base) {
+				Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+				for (AbstractInsnNode insn = body.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+					if (insn instanceof LabelNode) labels.put((LabelNode) insn, new LabelNode());
+				}
+				
+				int returns = 0;
+				AbstractInsnNode lastReal = null;
+				AbstractInsnNode firstReal = null;
+				for (AbstractInsnNode insn = body.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+					if (isMeta(insn)) continue;
+					if (firstReal == null) firstReal = insn;
+					lastReal = insn;
+					if (isReturn(insn.getOpcode())) returns++;
+				}
+				boolean fallThrough = returns == 1 && isReturn(lastReal.getOpcode());
+				
+				InsnList out = new InsnList();
+				int[] argSlots = new int[argumentTypes.length];
+				int slot = 0;
+				for (int i = 0; i < argumentTypes.length; i++) {
+					argSlots[i] = slot;
+					slot += argumentTypes[i].getSize();
+				}
+				for (int i = argumentTypes.length - 1; i >= 0; i--) {
+					out.add(new VarInsnNode(argumentTypes[i].getOpcode(Opcodes.ISTORE), base + argSlots[i]));
+				}
+				spillBase = base + body.maxLocals;
+				if (!body.tryCatchBlocks.isEmpty()) out.add(new SpillStack());
+				// 2 frames at the same offset aren't allowed; this can only happen if the hook starts on a jump target.
+				if (argumentTypes.length == 0 && firstReal != null && firstReal.getType() == FRAME) out.add(new InsnNode(Opcodes.NOP));
+				
+				LabelNode join = new LabelNode();
+				for (AbstractInsnNode insn = body.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+					switch (insn.getType()) {
+					case LINE:
+						break;
+					case FRAME:
+						out.add(new HookFrame((FrameNode) insn, labels));
+						break;
+					case VAR_INSN:
+						out.add(new VarInsnNode(insn.getOpcode(), base + ((VarInsnNode) insn).var));
+						break;
+					case IINC_INSN:
+						out.add(new IincInsnNode(base + ((IincInsnNode) insn).var, ((IincInsnNode) insn).incr));
+						break;
+					default:
+						if (isReturn(insn.getOpcode())) {
+							if (!fallThrough) out.add(new JumpInsnNode(Opcodes.GOTO, join));
+						} else {
+							AbstractInsnNode copy = insn.clone(labels);
+							copy.visibleTypeAnnotations = null;
+							copy.invisibleTypeAnnotations = null;
+							out.add(copy);
+						}
+					}
+				}
+				out.add(join);
+				if (!fallThrough && useFrames) out.add(new JoinFrame());
+				if (!body.tryCatchBlocks.isEmpty()) out.add(new ReloadStack());
+				
+				int idx = 0;
+				for (TryCatchBlockNode tcb : body.tryCatchBlocks) {
+					tryCatchBlocks.add(idx++, new TryCatchBlockNode(labels.get(tcb.start), labels.get(tcb.end), labels.get(tcb.handler), tcb.type));
+				}
+				
+				instructions.insert(this, out);
+			}
+			
+			@Override public void accept(MethodVisitor mv) {
+				if (!useFrames) return;
+				if (analyzer.locals == null) throw new IllegalStateException("Can't insert " + body.name + " into " + owner + "." + name + ": the insertion point is unreachable");
+				
+				int argSize = 0;
+				for (Type t : argumentTypes) argSize += t.getSize();
+				siteLocals = slotsToFrameTypes(analyzer.locals, analyzer.locals.size());
+				siteStack = slotsToFrameTypes(analyzer.stack, analyzer.stack.size() - argSize);
+				padding = Math.max(0, base - analyzer.locals.size());
+				spilled = Collections.emptyList();
+				if (!body.tryCatchBlocks.isEmpty() && !siteStack.isEmpty()) {
+					spilled = siteStack;
+					siteStack = Collections.emptyList();
+				}
+			}
+			
+			/**
+			 * Picks up what the target has on its stack under the arguments of the hook from a frame computed without stack map frames.
+			 * Only the kind of each value matters here, as it decides the opcodes that store and load it; no frames get written.
+			 */
+			void spillFrom(Frame<BasicValue> frame) {
+				if (frame == null) return;
+				List<Object> stack = new ArrayList<Object>();
+				for (int i = 0; i < frame.getStackSize() - argumentTypes.length; i++) {
+					Type t = frame.getStack(i).getType();
+					stack.add(t == null ? Opcodes.TOP : MethodLogistics.frameTypeOf(t.getDescriptor()));
+				}
+				spilled = stack;
+			}
+			
+			/**
+			 * Adds the spilled stack of the target to locals that already run up to {@code used} slots.
+			 */
+			private void addSpilled(List<Object> locals, int used) {
+				if (spilled.isEmpty()) return;
+				for (int i = used; i < spillBase; i++) locals.add(Opcodes.TOP);
+				locals.addAll(spilled);
+			}
+			
+			/**
+			 * Stores what the target still has on its stack (the arguments of the hook have been stored already) into locals.
+			 */
+			private final class SpillStack extends AbstractInsnNode {
+				SpillStack() {
+					super(-1);
+				}
+				
+				@Override public int getType() {
+					return LABEL;
+				}
+				
+				@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+					throw new UnsupportedOperationException();
+				}
+				
+				@Override public void accept(MethodVisitor mv) {
+					int slot = spillBase + slotSize(spilled);
+					for (int i = spilled.size() - 1; i >= 0; i--) {
+						Object t = spilled.get(i);
+						slot -= t == Opcodes.LONG || t == Opcodes.DOUBLE ? 2 : 1;
+						mv.visitVarInsn(loadOpcode(t, Opcodes.ISTORE), slot);
+					}
+				}
+			}
+			
+			/**
+			 * Loads the spilled stack of the target back in, underneath the return value of the hook.
+			 */
+			private final class ReloadStack extends AbstractInsnNode {
+				ReloadStack() {
+					super(-1);
+				}
+				
+				@Override public int getType() {
+					return LABEL;
+				}
+				
+				@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+					throw new UnsupportedOperationException();
+				}
+				
+				@Override public void accept(MethodVisitor mv) {
+					if (spilled.isEmpty()) return;
+					int temp = spillBase + slotSize(spilled);
+					if (returnType.getSort() != Type.VOID) mv.visitVarInsn(returnType.getOpcode(Opcodes.ISTORE), temp);
+					int slot = spillBase;
+					for (Object t : spilled) {
+						mv.visitVarInsn(loadOpcode(t, Opcodes.ILOAD), slot);
+						slot += t == Opcodes.LONG || t == Opcodes.DOUBLE ? 2 : 1;
+					}
+					if (returnType.getSort() != Type.VOID) mv.visitVarInsn(returnType.getOpcode(Opcodes.ILOAD), temp);
+				}
+			}
+			
+			/**
+			 * A frame of the hook body, prefixed with the state of the target method.
+			 */
+			private final class HookFrame extends AbstractInsnNode {
+				private final FrameNode frame;
+				private final Map<LabelNode, LabelNode> labels;
+				
+				HookFrame(FrameNode frame, Map<LabelNode, LabelNode> labels) {
+					super(-1);
+					this.frame = frame;
+					this.labels = labels;
+				}
+				
+				@Override public int getType() {
+					return FRAME;
+				}
+				
+				@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+					throw new UnsupportedOperationException();
+				}
+				
+				@Override public void accept(MethodVisitor mv) {
+					List<Object> locals = new ArrayList<Object>(siteLocals);
+					for (int i = 0; i < padding; i++) locals.add(Opcodes.TOP);
+					if (frame.local != null) locals.addAll(Arrays.asList(fromNodes(frame.local, labels)));
+					addSpilled(locals, base + (frame.local == null ? 0 : slotSize(frame.local)));
+					List<Object> stack = new ArrayList<Object>(siteStack);
+					if (frame.stack != null) stack.addAll(Arrays.asList(fromNodes(frame.stack, labels)));
+					// Straight to the analyzer; compressed frames of the patch script are relative to the target's own frames, not this one.
+					analyzer.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), stack.size(), stack.toArray());
+				}
+			}
+			
+			/**
+			 * The frame right behind the inserted body, where all returns of the hook jump to.
+			 */
+			private final class JoinFrame extends AbstractInsnNode {
+				JoinFrame() {
+					super(-1);
+				}
+				
+				@Override public int getType() {
+					return FRAME;
+				}
+				
+				@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+					throw new UnsupportedOperationException();
+				}
+				
+				@Override public void accept(MethodVisitor mv) {
+					List<Object> stack = new ArrayList<Object>(siteStack);
+					if (returnType.getSort() != Type.VOID) stack.add(MethodLogistics.frameTypeOf(returnType.getDescriptor()));
+					List<Object> locals = siteLocals;
+					if (!spilled.isEmpty()) {
+						locals = new ArrayList<Object>(siteLocals);
+						for (int i = 0; i < padding; i++) locals.add(Opcodes.TOP);
+						addSpilled(locals, base);
+					}
+					analyzer.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), stack.size(), stack.toArray());
+					AbstractInsnNode next = nextReal(this);
+					if (next != null && next.getType() == FRAME) analyzer.visitInsn(Opcodes.NOP);
+				}
+			}
+		}
+		
+		/**
+		 * A frame that was written by the patch script itself. It is expanded against the last frame, as the writer will only
+		 * accept frames of a single kind.
+		 */
+		private final class CompressedFrame extends AbstractInsnNode {
+			private final int frameType, numLocal;
+			private final Object[] local, stack;
+			
+			CompressedFrame(int frameType, int numLocal, Object[] local, Object[] stack) {
+				super(-1);
+				this.frameType = frameType;
+				this.numLocal = numLocal;
+				this.local = local;
+				this.stack = stack;
+			}
+			
+			@Override public int getType() {
+				return FRAME;
+			}
+			
+			@Override public AbstractInsnNode clone(Map<LabelNode, LabelNode> clonedLabels) {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public void accept(MethodVisitor mv) {
+				List<Object> locals = new ArrayList<Object>(Arrays.asList(lastFrameLocals));
+				Object[] newStack = NO_TYPES;
+				switch (frameType) {
+				case Opcodes.F_SAME:
+					break;
+				case Opcodes.F_SAME1:
+					newStack = fromNodes(Arrays.asList(stack), null);
+					break;
+				case Opcodes.F_APPEND:
+					locals.addAll(Arrays.asList(fromNodes(Arrays.asList(local), null)));
+					break;
+				case Opcodes.F_CHOP:
+					for (int i = 0; i < numLocal; i++) locals.remove(locals.size() - 1);
+					break;
+				case Opcodes.F_FULL:
+					locals = Arrays.asList(fromNodes(Arrays.asList(local), null));
+					newStack = fromNodes(Arrays.asList(stack), null);
+					break;
+				default:
+					throw new IllegalStateException("Unknown frame type: " + frameType);
+				}
+				mv.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), newStack.length, newStack);
+			}
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Patch scripts set to {@code invokeDynamic()} call their hooks via an {@code invokedynamic} instruction that is linked by this class.
+ * The hook class is looked up once, when the call site is first used, so it does not need to be visible to the class loader of the patched
+ * class, and as the call site is constant (or only changes when you {@link #swap(Hook, MethodHandle) swap} it), the JIT can inline the hook
+ * as if it were called directly.
+ * 
+ * Scripts set to {@code guarded()} are linked the same way, but the hook is guarded by a {@code SwitchPoint} per script. While the script
+ * is enabled, the JIT folds the guard away. Disabling the script (see {@link ScriptManager#setScriptEnabled(PatchScript, boolean)})
+ * invalidates the switch point, after which the call does what the code would have done had it not been patched at all.
+ * 
+ * Like {@link Symbols}, this class is referred to from patched code, so it has to be visible to the classes you patch, and there should
+ * be only one copy of it. It requires java 1.7 or up; classes older than that are patched with a normal static call instead.
+ * 
+ * If the system property {@code lombok.patcher.constantHookSites} is {@code true}, call sites of scripts that aren't guarded are linked
+ * permanently and cannot be swapped.
+ */
+public final class HookLinker {
+	/** When a guarded script is disabled, return {@code false}, {@code 0}, or {@code null}, or do nothing if the hook returns {@code void}. */
+	public static final int WHEN_DISABLED_RETURN_DEFAULT = 0;
+	/** When a guarded script is disabled, return the first argument unchanged. */
+	public static final int WHEN_DISABLED_RETURN_FIRST_ARGUMENT = 1;
+	/** When a guarded script is disabled, return the constant passed as the last bootstrap argument. */
+	public static final int WHEN_DISABLED_RETURN_CONSTANT = 2;
+	/** When a guarded script is disabled, return {@link NotHandled#NOT_HANDLED}. */
+	public static final int WHEN_DISABLED_RETURN_NOT_HANDLED = 3;
+	/**
+	 * When a guarded script is disabled, call the method named by the last bootstrap argument ({@code "owner name descriptor"}) instead.
+	 * If the original call was an {@code invokespecial} (a call to a super or private method), the argument ends in {@code " special"}.
+	 */
+	public static final int WHEN_DISABLED_CALL_ORIGINAL = 4;
+	
+	private static final boolean CONSTANT_SITES = Boolean.getBoolean("lombok.patcher.constantHookSites");
+	private static final Object lock = new Object();
+	// Only weakly; a linked site holds on to its hook and fallback, which would otherwise keep the loader of the class that linked it alive.
+	private static final Map<String, List<WeakReference<LinkedSite>>> sitesPerHook = new HashMap<String, List<WeakReference<LinkedSite>>>();
+	private static final Map<Integer, List<WeakReference<LinkedSite>>> sitesPerScript = new HashMap<Integer, List<WeakReference<LinkedSite>>>();
+	private static final Map<String, MethodHandle> swapped = new HashMap<String, MethodHandle>();
+	private static final Map<Integer, SwitchPoint> switchPoints = new HashMap<Integer, SwitchPoint>();
+	private static final Set<Integer> disabledScripts = new HashSet<Integer>();
+	private static volatile ClassLoader hookClassLoader;
+	
+	private static final class LinkedSite extends MutableCallSite {
+		final String key;
+		final MethodHandle hook, whenDisabled;
+		final int switchId;
+		
+		LinkedSite(MethodType type, String key, MethodHandle hook, MethodHandle whenDisabled, int switchId) {
+			super(type);
+			this.key = key;
+			this.hook = hook;
+			this.whenDisabled = whenDisabled;
+			this.switchId = switchId;
+		}
+	}
+	
+	private HookLinker() {}
+	
+	/**
+	 * Hook classes are loaded with this loader if set. Otherwise, the loader of the patched class is tried first, and the loader of
+	 * lombok.patcher itself after that. Only affects call sites that haven't been used yet.
+	 */
+	public static void setHookClassLoader(ClassLoader loader) {
+		hookClassLoader = loader;
+	}
+	
+	/**
+	 * Calls to bootstrap are generated by patch scripts set to {@code invokeDynamic()}. Do not call it yourself!
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String methodName, MethodType type, String hookClassName) throws Throwable {
+		MethodHandle hook = findHook(caller.lookupClass().getClassLoader(), hookClassName, methodName, type);
+		if (!CONSTANT_SITES) return link(keyOf(hookClassName, methodName, type.toMethodDescriptorString()), type, hook, null, -1);
+		
+		MethodHandle target;
+		synchronized (lock) {
+			target = swapped.get(keyOf(hookClassName, methodName, type.toMethodDescriptorString()));
+		}
+		return new ConstantCallSite((target == null ? hook : target).asType(type));
+	}
+	
+	/**
+	 * Calls to bootstrapGuarded are generated by patch scripts set to {@code guarded()}. Do not call it yourself!
+	 *
+	 * @param whenDisabled One of the {@code WHEN_DISABLED_} constants in this class.
+	 * @param whenDisabledArgument Used by some of the {@code WHEN_DISABLED_} options; ignored by the others.
+	 */
+	public static CallSite bootstrapGuarded(MethodHandles.Lookup caller, String methodName, MethodType type, String hookClassName,
+			int switchId, int whenDisabled, Object whenDisabledArgument) throws Throwable {
+		MethodHandle hook = findHook(caller.lookupClass().getClassLoader(), hookClassName, methodName, type);
+		MethodHandle fallback = makeFallback(caller, type, whenDisabled, whenDisabledArgument);
+		return link(keyOf(hookClassName, methodName, type.toMethodDescriptorString()), type, hook, fallback, switchId);
+	}
+	
+	/**
+	 * Makes all calls to {@code hook}, in all classes patched to call it via {@code invokedynamic}, call {@code target} instead, without
+	 * retransforming anything. {@code target} must accept the same parameters and return the same type as {@code hook}, or be adaptable
+	 * to it via {@code MethodHandle.asType}. Call sites that are linked later will call {@code target} too.
+	 *
+	 * @param target The new target, or {@code null} to go back to calling {@code hook} itself.
+	 * @throws IllegalStateException If call sites have been made constant via the {@code lombok.patcher.constantHookSites} system property.
+	 */
+	public static void swap(Hook hook, MethodHandle target) {
+		if (hook == null) throw new NullPointerException("hook");
+		if (CONSTANT_SITES) throw new IllegalStateException("Hook call sites are constant; lombok.patcher.constantHookSites is set");
+		
+		String key = keyOf(hook.getClassName(), hook.getMethodName(), hook.getMethodDescriptor());
+		synchronized (lock) {
+			if (target == null) swapped.remove(key);
+			else swapped.put(key, target);
+			relink(sitesPerHook, key);
+		}
+	}
+	
+	/**
+	 * Use {@link ScriptManager#setScriptEnabled(PatchScript, boolean)} instead.
+	 */
+	public static void setScriptEnabled(int switchId, boolean enabled) {
+		synchronized (lock) {
+			if (enabled) {
+				if (!disabledScripts.remove(switchId)) return;
+			} else {
+				if (!disabledScripts.add(switchId)) return;
+				SwitchPoint switchPoint = switchPoints.remove(switchId);
+				// All guarded sites now take their fallback path; relinking them below also drops the dead guard.
+				if (switchPoint != null) SwitchPoint.invalidateAll(new SwitchPoint[] {switchPoint});
+			}
+			relink(sitesPerScript, switchId);
+		}
+	}
+	
+	/**
+	 * Use {@link ScriptManager#isScriptEnabled(PatchScript)} instead.
+	 */
+	public static boolean isScriptEnabled(int switchId) {
+		synchronized (lock) {
+			return !disabledScripts.contains(switchId);
+		}
+	}
+	
+	private static CallSite link(String key, MethodType type, MethodHandle hook, MethodHandle whenDisabled, int switchId) {
+		LinkedSite site = new LinkedSite(type, key, hook, whenDisabled, switchId);
+		synchronized (lock) {
+			site.setTarget(targetOf(site, type));
+			add(sitesPerHook, key, site);
+			if (whenDisabled != null) add(sitesPerScript, switchId, site);
+		}
+		return site;
+	}
+	
+	/** Must be called while holding {@code lock}. */
+	private static <K> void add(Map<K, List<WeakReference<LinkedSite>>> map, K key, LinkedSite site) {
+		List<WeakReference<LinkedSite>> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<WeakReference<LinkedSite>>();
+			map.put(key, list);
+		}
+		for (Iterator<WeakReference<LinkedSite>> it = list.iterator(); it.hasNext();) {
+			if (it.next().get() == null) it.remove();
+		}
+		list.add(new WeakReference<LinkedSite>(site));
+	}
+	
+	/** Must be called while holding {@code lock}. */
+	private static MethodHandle targetOf(LinkedSite linked, MethodType type) {
+		MethodHandle hook = swapped.get(linked.key);
+		if (hook == null) hook = linked.hook;
+		hook = hook.asType(type);
+		if (linked.whenDisabled == null) return hook;
+		if (disabledScripts.contains(linked.switchId)) return linked.whenDisabled;
+		
+		SwitchPoint switchPoint = switchPoints.get(linked.switchId);
+		if (switchPoint == null) {
+			switchPoint = new SwitchPoint();
+			switchPoints.put(linked.switchId, switchPoint);
+		}
+		return switchPoint.guardWithTest(hook, linked.whenDisabled);
+	}
+	
+	/** Must be called while holding {@code lock}. */
+	private static <K> void relink(Map<K, List<WeakReference<LinkedSite>>> map, K key) {
+		List<WeakReference<LinkedSite>> sites = map.get(key);
+		if (sites == null) return;
+		List<MutableCallSite> changed = new ArrayList<MutableCallSite>();
+		for (Iterator<WeakReference<LinkedSite>> it = sites.iterator(); it.hasNext();) {
+			LinkedSite site = it.next().get();
+			if (site == null) {
+				it.remove();
+				continue;
+			}
+			site.setTarget(targetOf(site, site.type()));
+			changed.add(site);
+		}
+		if (sites.isEmpty()) map.remove(key);
+		if (!changed.isEmpty()) MutableCallSite.syncAll(changed.toArray(new MutableCallSite[0]));
+	}
+	
+	private static MethodHandle makeFallback(MethodHandles.Lookup caller, MethodType type, int whenDisabled, Object argument) throws Throwable {
+		Class<?> returnType = type.returnType();
+		MethodHandle out;
+		switch (whenDisabled) {
+		case WHEN_DISABLED_RETURN_DEFAULT:
+			if (returnType == void.class) {
+				out = MethodHandles.lookup().findStatic(HookLinker.class, "doNothing", MethodType.methodType(void.class));
+			} else {
+				out = MethodHandles.constant(returnType, returnType.isPrimitive() ? convertConstant(returnType, 0) : null);
+			}
+			return MethodHandles.dropArguments(out, 0, type.parameterList());
+		case WHEN_DISABLED_RETURN_FIRST_ARGUMENT:
+			out = MethodHandles.identity(type.parameterType(0));
+			out = MethodHandles.dropArguments(out, 1, type.parameterList().subList(1, type.parameterCount()));
+			return out.asType(type);
+		case WHEN_DISABLED_RETURN_CONSTANT:
+			out = MethodHandles.constant(returnType, returnType.isPrimitive() ? convertConstant(returnType, argument) : argument);
+			return MethodHandles.dropArguments(out, 0, type.parameterList());
+		case WHEN_DISABLED_RETURN_NOT_HANDLED:
+			out = MethodHandles.constant(Object.class, NotHandled.NOT_HANDLED);
+			return MethodHandles.dropArguments(out, 0, type.parameterList()).asType(type);
+		case WHEN_DISABLED_CALL_ORIGINAL:
+			String[] parts = ((String) argument).split(" ");
+			Class<?> owner = Class.forName(parts[0].replace('/', '.'), false, caller.lookupClass().getClassLoader());
+			MethodType originalType = MethodType.fromMethodDescriptorString(parts[2], caller.lookupClass().getClassLoader());
+			if (parts.length > 3 && parts[3].equals("special")) {
+				// A virtual lookup would dispatch a super call to the override in the caller, which is the one making the call.
+				out = caller.findSpecial(owner, parts[1], originalType, caller.lookupClass());
+			} else {
+				try {
+					out = caller.findStatic(owner, parts[1], originalType);
+				} catch (NoSuchMethodException e) {
+					out = caller.findVirtual(owner, parts[1], originalType);
+				} catch (IllegalAccessException e) {
+					out = caller.findVirtual(owner, parts[1], originalType);
+				}
+			}
+			int originalArgs = out.type().parameterCount();
+			out = MethodHandles.dropArguments(out, originalArgs, type.parameterList().subList(originalArgs, type.parameterCount()));
+			return out.asType(type);
+		default:
+			throw new IllegalArgumentException("Unknown whenDisabled option: " + whenDisabled);
+		}
+	}
+	
+	/**
+	 * Constants in the class file are {@code int}, {@code long}, {@code float}, or {@code double}; this turns them into the box of the
+	 * primitive {@code type}.
+	 */
+	private static Object convertConstant(Class<?> type, Object value) {
+		if (value instanceof Boolean) return value;
+		Number n = (Number) value;
+		if (type == boolean.class) return n.intValue() != 0;
+		if (type == char.class) return (char) n.intValue();
+		if (type == byte.class) return n.byteValue();
+		if (type == short.class) return n.shortValue();
+		if (type == int.class) return n.intValue();
+		if (type == long.class) return n.longValue();
+		if (type == float.class) return n.floatValue();
+		return n.doubleValue();
+	}
+	
+	@SuppressWarnings("unused")
+	private static void doNothing() {}
+	
+	private static MethodHandle findHook(ClassLoader callerLoader, String hookClassName, String methodName, MethodType type) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+		Class<?> hookClass = loadHookClass(callerLoader, hookClassName);
+		Method m = hookClass.getDeclaredMethod(methodName, type.parameterArray());
+		if (!Modifier.isStatic(m.getModifiers())) throw new NoSuchMethodException("Hook " + hookClassName + "." + methodName + " is not static");
+		m.setAccessible(true);
+		return MethodHandles.lookup().unreflect(m);
+	}
+	
+	private static Class<?> loadHookClass(ClassLoader callerLoader, String hookClassName) throws ClassNotFoundException {
+		ClassLoader configured = hookClassLoader;
+		if (configured != null) return Class.forName(hookClassName, true, configured);
+		if (callerLoader != null) {
+			try {
+				return Class.forName(hookClassName, true, callerLoader);
+			} catch (ClassNotFoundException e) {
+				// Fall through to our own loader.
+			}
+		}
+		return Class.forName(hookClassName, true, HookLinker.class.getClassLoader());
+	}
+	
+	private static String keyOf(String hookClassName, String methodName, String descriptor) {
+		return hookClassName + "." + methodName + descriptor;
+	}
+}
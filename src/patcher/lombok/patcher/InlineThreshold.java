@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+/**
+ * The bytecode sizes (of a method's {@code Code} attribute) at which HotSpot, with default settings, changes how it treats a method.
+ */
+public enum InlineThreshold {
+	/**
+	 * Methods larger than this are not inlined unless they are hot.
+	 */
+	MAX_INLINE_SIZE("MaxInlineSize", 35),
+	
+	/**
+	 * Methods larger than this are not inlined at all.
+	 */
+	FREQ_INLINE_SIZE("FreqInlineSize", 325),
+	
+	/**
+	 * Methods larger than this are not compiled at all (as long as {@code DontCompileHugeMethods} is on, which it is by default).
+	 */
+	HUGE_METHOD_LIMIT("HugeMethodLimit", 8000);
+	
+	private final String flagName;
+	private final int limit;
+	
+	InlineThreshold(String flagName, int limit) {
+		this.flagName = flagName;
+		this.limit = limit;
+	}
+	
+	public String getFlagName() {
+		return flagName;
+	}
+	
+	public int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * @return {@code true} if a method that was {@code sizeBefore} bytes large was within this threshold, but isn't at {@code sizeAfter} bytes.
+	 */
+	public boolean isCrossed(int sizeBefore, int sizeAfter) {
+		return sizeBefore <= limit && sizeAfter > limit;
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The cache behind a {@link lombok.patcher.scripts.MemoizeScript}. Patched methods call {@link #lookup(int, Object[])} on entry and
+ * {@link #store(Object, int, Object[])} at every return; both find their cache by the ID that was baked into the patched code.
+ * <p>
+ * Larger caches are split into segments, each with its own lock, so that threads looking up different keys rarely contend. Each
+ * segment gets an equal share of the maximum size and evicts on its own, so eviction order is only exact within a segment.
+ * The hit, miss and eviction counters are kept per segment as well, and only summed up when asked for.
+ */
+public final class MemoCache {
+	/**
+	 * How a full cache makes room for a new entry.
+	 */
+	public enum Eviction {
+		/** Evicts the entry that was looked up least recently. */
+		LRU,
+		/** Evicts the entry that was stored first; cheaper than {@code LRU}, as hits don't reorder anything. */
+		SIZE,
+		/**
+		 * Keys are only weakly referenced, so an entry is gone once its key isn't used anywhere else anymore. Keys are then compared
+		 * with {@code equals}, and the key must consist of exactly one object. If the cache is full, an arbitrary entry is evicted.
+		 */
+		WEAK_KEYS;
+	}
+	
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_SIZE = 64;
+	private static final Object NULL_VALUE = new Object();
+	private static final Object lock = new Object();
+	private static volatile MemoCache[] caches = new MemoCache[0];
+	
+	private final int id;
+	private final Eviction eviction;
+	private final int maxSize;
+	private final Segment[] segments;
+	
+	private final class Segment {
+		final Map<Object, Object> map;
+		final int max;
+		long hits, misses, evictions;
+		
+		@SuppressWarnings("serial")
+		Segment(int max) {
+			this.max = max;
+			switch (eviction) {
+			case WEAK_KEYS:
+				map = new WeakHashMap<Object, Object>();
+				break;
+			default:
+				map = new LinkedHashMap<Object, Object>(16, 0.75f, eviction == Eviction.LRU) {
+					@Override protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+						if (size() <= Segment.this.max) return false;
+						evictions++;
+						return true;
+					}
+				};
+			}
+		}
+		
+		synchronized Object get(Object key) {
+			Object value = map.get(key);
+			if (value == null) {
+				misses++;
+				return NotHandled.NOT_HANDLED;
+			}
+			hits++;
+			return value == NULL_VALUE ? null : value;
+		}
+		
+		synchronized void put(Object key, Object value) {
+			if (eviction == Eviction.WEAK_KEYS && map.size() >= max && !map.containsKey(key)) {
+				Iterator<Object> it = map.keySet().iterator();
+				if (it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions++;
+				}
+			}
+			map.put(key, value == null ? NULL_VALUE : value);
+		}
+	}
+	
+	private MemoCache(int id, Eviction eviction, int maxSize) {
+		this.id = id;
+		this.eviction = eviction;
+		this.maxSize = maxSize;
+		int segmentCount = 1;
+		while (segmentCount * 2 <= Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)) segmentCount *= 2;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(maxSize / segmentCount);
+	}
+	
+	/**
+	 * Creates a new cache, and assigns it the ID under which patched code finds it.
+	 *
+	 * @param maxSize The maximum number of entries; the cache never holds more than this.
+	 */
+	public static MemoCache create(Eviction eviction, int maxSize) {
+		if (eviction == null) throw new NullPointerException("eviction");
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		synchronized (lock) {
+			MemoCache[] old = caches;
+			MemoCache cache = new MemoCache(old.length, eviction, maxSize);
+			MemoCache[] updated = new MemoCache[old.length + 1];
+			System.arraycopy(old, 0, updated, 0, old.length);
+			updated[old.length] = cache;
+			caches = updated;
+			return cache;
+		}
+	}
+	
+	/**
+	 * Called by patched code on entry.
+	 *
+	 * @return The cached result, or {@link NotHandled#NOT_HANDLED} if there is none.
+	 */
+	public static Object lookup(int id, Object[] key) {
+		return caches[id].get(key);
+	}
+	
+	/**
+	 * Called by patched code in front of every return. The parameters are in this order so that the generated code doesn't need to
+	 * shuffle the return value around on the stack.
+	 */
+	public static void store(Object value, int id, Object[] key) {
+		caches[id].put(key, value);
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public Eviction getEviction() {
+		return eviction;
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public Object get(Object[] key) {
+		Object k = keyOf(key);
+		return segmentFor(k).get(k);
+	}
+	
+	public void put(Object[] key, Object value) {
+		Object k = keyOf(key);
+		segmentFor(k).put(k, value);
+	}
+	
+	public long getHits() {
+		long total = 0;
+		for (Segment s : segments) synchronized (s) {
+			total += s.hits;
+		}
+		return total;
+	}
+	
+	public long getMisses() {
+		long total = 0;
+		for (Segment s : segments) synchronized (s) {
+			total += s.misses;
+		}
+		return total;
+	}
+	
+	public long getEvictions() {
+		long total = 0;
+		for (Segment s : segments) synchronized (s) {
+			total += s.evictions;
+		}
+		return total;
+	}
+	
+	public int size() {
+		int total = 0;
+		for (Segment s : segments) synchronized (s) {
+			total += s.map.size();
+		}
+		return total;
+	}
+	
+	/**
+	 * Removes all entries; the counters are left alone.
+	 */
+	public void clear() {
+		for (Segment s : segments) synchronized (s) {
+			s.map.clear();
+		}
+	}
+	
+	@Override public String toString() {
+		return String.format("MemoCache #%d (%s, %d/%d entries, %d hits, %d misses, %d evictions)",
+				id, eviction, size(), maxSize, getHits(), getMisses(), getEvictions());
+	}
+	
+	private Segment segmentFor(Object key) {
+		int h = key == null ? 0 : key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+	
+	private static Object keyOf(Object[] parts) {
+		if (parts.length == 1) return parts[0];
+		return new CompositeKey(parts);
+	}
+	
+	private static final class CompositeKey {
+		private final Object[] parts;
+		private final int hash;
+		
+		CompositeKey(Object[] parts) {
+			this.parts = parts;
+			this.hash = Arrays.hashCode(parts);
+		}
+		
+		@Override public int hashCode() {
+			return hash;
+		}
+		
+		@Override public boolean equals(Object obj) {
+			return obj instanceof CompositeKey && Arrays.equals(parts, ((CompositeKey) obj).parts);
+		}
+	}
+}
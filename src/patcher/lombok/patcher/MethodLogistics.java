@@ -28,6 +28,7 @@ import java.util.List;
 
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 /**
  * Method rewriting support class.
@@ -166,6 +167,90 @@ public class MethodLogistics {
 		}
 	}
 	
+	/**
+	 * Generates the instruction to box a primitive of the stated type, in JVM typespec, into its wrapper type (e.g. {@code I} into a
+	 * {@code java.lang.Integer}). Generates nothing for object and array types.
+	 *
+	 * @param type A type spec in JVM format.
+	 * @param mv The opcode will be generated in this MethodVisitor object.
+	 */
+	public static void generateBoxForType(String type, MethodVisitor mv) {
+		String wrapper = wrapperTypeOf(type);
+		if (wrapper == null) return;
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf", "(" + type + ")L" + wrapper + ";", false);
+	}
+	
+	/**
+	 * Generates the instructions to turn the {@code java.lang.Object} on top of the stack into a value of the stated type, in JVM typespec:
+	 * A cast for object and array types, and a cast plus unboxing for primitives (so {@code I} expects a {@code java.lang.Integer}).
+	 *
+	 * @param type A type spec in JVM format.
+	 * @param mv The opcode will be generated in this MethodVisitor object.
+	 */
+	public static void generateUnboxForType(String type, MethodVisitor mv) {
+		String wrapper = wrapperTypeOf(type);
+		if (wrapper == null) {
+			if (type.equals("Ljava/lang/Object;")) return;
+			mv.visitTypeInsn(Opcodes.CHECKCAST, type.charAt(0) == 'L' ? type.substring(1, type.length() - 1) : type);
+			return;
+		}
+		
+		mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, Type.getType(type).getClassName() + "Value", "()" + type, false);
+	}
+	
+	private static String wrapperTypeOf(String type) {
+		switch (type.charAt(0)) {
+		case 'D':
+			return "java/lang/Double";
+		case 'J':
+			return "java/lang/Long";
+		case 'F':
+			return "java/lang/Float";
+		case 'I':
+			return "java/lang/Integer";
+		case 'S':
+			return "java/lang/Short";
+		case 'B':
+			return "java/lang/Byte";
+		case 'C':
+			return "java/lang/Character";
+		case 'Z':
+			return "java/lang/Boolean";
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns how a value of the stated type, in JVM typespec, is listed in a stack map frame, in the form that
+	 * {@code MethodVisitor.visitFrame} wants it. {@code byte}, {@code short}, {@code char}, and {@code boolean} are all {@code INTEGER}.
+	 *
+	 * @param type A type spec in JVM format.
+	 */
+	public static Object frameTypeOf(String type) {
+		switch (type.charAt(0)) {
+		case 'D':
+			return Opcodes.DOUBLE;
+		case 'J':
+			return Opcodes.LONG;
+		case 'F':
+			return Opcodes.FLOAT;
+		case 'I':
+		case 'S':
+		case 'B':
+		case 'C':
+		case 'Z':
+			return Opcodes.INTEGER;
+		case 'L':
+			return type.substring(1, type.length() - 1);
+		case '[':
+			return type;
+		}
+		
+		throw new IllegalArgumentException("There's no frame type for: " + type);
+	}
+	
 	private static int loadOpcodeFor(String spec) {
 		switch (spec.charAt(0)) {
 		case 'D':
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records how much the bytecode of a single method grew (or shrunk) because it was patched.
+ */
+public final class MethodSizeChange {
+	private final String classSpec;
+	private final String methodName;
+	private final String descriptor;
+	private final int sizeBefore;
+	private final int sizeAfter;
+	private final List<String> scripts;
+	
+	MethodSizeChange(String classSpec, String methodName, String descriptor, int sizeBefore, int sizeAfter, List<String> scripts) {
+		this.classSpec = classSpec;
+		this.methodName = methodName;
+		this.descriptor = descriptor;
+		this.sizeBefore = sizeBefore;
+		this.sizeAfter = sizeAfter;
+		this.scripts = Collections.unmodifiableList(new ArrayList<String>(scripts));
+	}
+	
+	/**
+	 * @return The class that owns the method, JVM-style (e.g. {@code java/lang/String}).
+	 */
+	public String getClassSpec() {
+		return classSpec;
+	}
+	
+	public String getMethodName() {
+		return methodName;
+	}
+	
+	public String getDescriptor() {
+		return descriptor;
+	}
+	
+	/**
+	 * @return The length of the bytecode of the method, in bytes, as the JVM offered it to be transformed.
+	 */
+	public int getSizeBefore() {
+		return sizeBefore;
+	}
+	
+	/**
+	 * @return The length of the bytecode of the method, in bytes, after all scripts ran.
+	 */
+	public int getSizeAfter() {
+		return sizeAfter;
+	}
+	
+	public int getGrowth() {
+		return sizeAfter - sizeBefore;
+	}
+	
+	/**
+	 * @return The names of the patch scripts that changed the size of this method.
+	 */
+	public List<String> getScripts() {
+		return scripts;
+	}
+	
+	public List<InlineThreshold> getCrossedThresholds() {
+		List<InlineThreshold> out = new ArrayList<InlineThreshold>();
+		for (InlineThreshold t : InlineThreshold.values()) if (t.isCrossed(sizeBefore, sizeAfter)) out.add(t);
+		return out;
+	}
+	
+	@Override public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append(classSpec).append('.').append(methodName).append(descriptor).append(": ");
+		out.append(sizeBefore).append(" -> ").append(sizeAfter).append(" bytes (").append(getGrowth() < 0 ? "" : "+").append(getGrowth()).append(")");
+		for (InlineThreshold t : getCrossedThresholds()) out.append(", crosses ").append(t.getFlagName()).append(" (").append(t.getLimit()).append(")");
+		if (!scripts.isEmpty()) out.append(" by ").append(scripts);
+		return out.toString();
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the time spent in methods patched by a {@link lombok.patcher.scripts.TimingProbeScript}. Each patched method is assigned an
+ * ID when it is patched, which the patched code passes to {@link #record(int, long)} and {@link #recordThrown(int, long)} on its way out.
+ * The same method gets the same ID if it is patched again.
+ */
+public final class MethodTimings {
+	private static final Object lock = new Object();
+	private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private static volatile Timed[] methods = new Timed[0];
+	
+	private MethodTimings() {}
+	
+	private static final class Timed {
+		final String classSpec, methodName, descriptor;
+		final StripedHistogram returned = new StripedHistogram();
+		final StripedHistogram thrown = new StripedHistogram();
+		
+		Timed(String classSpec, String methodName, String descriptor) {
+			this.classSpec = classSpec;
+			this.methodName = methodName;
+			this.descriptor = descriptor;
+		}
+	}
+	
+	/**
+	 * @param classSpec The class that owns the method, JVM-style (e.g. {@code java/lang/String}).
+	 * @return The ID to bake into the patched method.
+	 */
+	public static int register(String classSpec, String methodName, String descriptor) {
+		String key = classSpec + "." + methodName + descriptor;
+		synchronized (lock) {
+			Integer id = ids.get(key);
+			if (id != null) return id;
+			Timed[] old = methods;
+			Timed[] updated = new Timed[old.length + 1];
+			System.arraycopy(old, 0, updated, 0, old.length);
+			updated[old.length] = new Timed(classSpec, methodName, descriptor);
+			ids.put(key, old.length);
+			methods = updated;
+			return old.length;
+		}
+	}
+	
+	/**
+	 * Called by patched code when the method returns normally.
+	 *
+	 * @param start The value of {@code System.nanoTime()} on entry.
+	 */
+	public static void record(int id, long start) {
+		methods[id].returned.record(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Called by patched code when the method is exited by an exception.
+	 *
+	 * @param start The value of {@code System.nanoTime()} on entry.
+	 */
+	public static void recordThrown(int id, long start) {
+		methods[id].thrown.record(System.nanoTime() - start);
+	}
+	
+	/**
+	 * @return The timings of the method that was assigned {@code id}.
+	 */
+	public static Timing get(int id) {
+		return new Timing(methods[id]);
+	}
+	
+	/**
+	 * @return The timings of all methods patched so far, in the order they were patched.
+	 */
+	public static List<Timing> snapshot() {
+		Timed[] current = methods;
+		List<Timing> out = new ArrayList<Timing>(current.length);
+		for (Timed t : current) out.add(new Timing(t));
+		return out;
+	}
+	
+	/**
+	 * @return The timings of the given method, or {@code null} if it wasn't patched (yet).
+	 */
+	public static Timing snapshot(String classSpec, String methodName, String descriptor) {
+		Integer id;
+		synchronized (lock) {
+			id = ids.get(classSpec + "." + methodName + descriptor);
+		}
+		return id == null ? null : new Timing(methods[id]);
+	}
+	
+	public static final class Timing {
+		private final String classSpec, methodName, descriptor;
+		private final StripedHistogram.Snapshot returned, thrown;
+		
+		Timing(Timed t) {
+			this.classSpec = t.classSpec;
+			this.methodName = t.methodName;
+			this.descriptor = t.descriptor;
+			this.returned = t.returned.snapshot();
+			this.thrown = t.thrown.snapshot();
+		}
+		
+		/**
+		 * @return The class that owns the method, JVM-style (e.g. {@code java/lang/String}).
+		 */
+		public String getClassSpec() {
+			return classSpec;
+		}
+		
+		public String getMethodName() {
+			return methodName;
+		}
+		
+		public String getDescriptor() {
+			return descriptor;
+		}
+		
+		/**
+		 * @return The time, in nanoseconds, of every call that returned normally.
+		 */
+		public StripedHistogram.Snapshot getReturned() {
+			return returned;
+		}
+		
+		/**
+		 * @return The time, in nanoseconds, of every call that ended with an exception.
+		 */
+		public StripedHistogram.Snapshot getThrown() {
+			return thrown;
+		}
+		
+		@Override public String toString() {
+			return classSpec + "." + methodName + descriptor + ": " + returned + (thrown.getCount() == 0 ? "" : "; thrown: " + thrown);
+		}
+	}
+}
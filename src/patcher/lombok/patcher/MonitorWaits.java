@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects how long patched code waited to acquire monitors, per {@link ProbeSite}, as recorded by a
+ * {@link lombok.patcher.scripts.MonitorContentionScript}. Each site is assigned an ID when it is patched (the same site gets the same ID
+ * if it is patched again), which the patched code passes to {@link #record(long, int)} once it holds the monitor.
+ * <p>
+ * Only contended acquisitions are recorded: a wait shorter than the site's threshold is taken to mean the monitor was free, and
+ * {@code record} returns without writing anything shared.
+ */
+public final class MonitorWaits {
+	private static final Object lock = new Object();
+	private static final Map<ProbeSite, Integer> ids = new HashMap<ProbeSite, Integer>();
+	private static volatile Site[] sites = new Site[0];
+	
+	private MonitorWaits() {}
+	
+	private static final class Site {
+		final ProbeSite site;
+		volatile long thresholdNanos;
+		final StripedHistogram waits = new StripedHistogram();
+		
+		Site(ProbeSite site, long thresholdNanos) {
+			this.site = site;
+			this.thresholdNanos = thresholdNanos;
+		}
+	}
+	
+	/**
+	 * @param thresholdNanos Waits shorter than this are not recorded. If {@code site} was registered before, its threshold is updated.
+	 * @return The ID to bake into the patched code for {@code site}.
+	 */
+	public static int register(ProbeSite site, long thresholdNanos) {
+		if (site == null) throw new NullPointerException("site");
+		if (thresholdNanos < 0) throw new IllegalArgumentException("thresholdNanos must be 0 or more");
+		synchronized (lock) {
+			Integer id = ids.get(site);
+			if (id != null) {
+				sites[id].thresholdNanos = thresholdNanos;
+				return id;
+			}
+			Site[] old = sites;
+			Site[] updated = new Site[old.length + 1];
+			System.arraycopy(old, 0, updated, 0, old.length);
+			updated[old.length] = new Site(site, thresholdNanos);
+			ids.put(site, old.length);
+			sites = updated;
+			return old.length;
+		}
+	}
+	
+	/**
+	 * Called by patched code, right after the monitor has been acquired.
+	 *
+	 * @param start The value of {@code System.nanoTime()} right before trying to acquire it.
+	 */
+	public static void record(long start, int id) {
+		long waited = System.nanoTime() - start;
+		Site s = sites[id];
+		if (waited < s.thresholdNanos) return;
+		s.waits.record(waited);
+	}
+	
+	/**
+	 * @return The contended waits, in nanoseconds, recorded for the site with ID {@code id}.
+	 */
+	public static StripedHistogram.Snapshot get(int id) {
+		return sites[id].waits.snapshot();
+	}
+	
+	/**
+	 * @return The site that was assigned {@code id}.
+	 */
+	public static ProbeSite getSite(int id) {
+		return sites[id].site;
+	}
+	
+	/**
+	 * @return The contended waits of every registered site, in the order they were registered.
+	 */
+	public static Map<ProbeSite, StripedHistogram.Snapshot> snapshot() {
+		Site[] current = sites;
+		Map<ProbeSite, StripedHistogram.Snapshot> out = new LinkedHashMap<ProbeSite, StripedHistogram.Snapshot>();
+		for (Site s : current) out.put(s.site, s.waits.snapshot());
+		return out;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers which class files a {@link ScriptManager} decided to leave alone, so that when the same class file is handed to it again
+ * (when classes are retransformed, for example), it can say so right away, without asking the filter, looking for witnesses, or going
+ * through the scripts. This matters when the same class is defined by many class loaders, such as in OSGi containers.
+ * <p>
+ * Decisions are indexed by class loader and class name, and only apply to a class file with the same length and checksum. They are
+ * forgotten as soon as the scripts (or their witness conditions) change, and entries for a class loader go away when that class loader
+ * is garbage collected. When the cache is full, it starts over.
+ */
+public final class NegativeCache {
+	private final Map<ClassLoader, Map<String, Entry>> entries = new WeakHashMap<ClassLoader, Map<String, Entry>>();
+	private final int maxSize;
+	private int size, version;
+	private long hits;
+	
+	private static final class Entry {
+		final int length;
+		final long checksum;
+		
+		Entry(int length, long checksum) {
+			this.length = length;
+			this.checksum = checksum;
+		}
+	}
+	
+	NegativeCache(int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * @return {@code true} if it was decided before, while the scripts were at {@code scriptsVersion}, to leave this class file alone.
+	 */
+	boolean contains(ClassLoader loader, String className, byte[] classFile, long checksum, int scriptsVersion) {
+		synchronized (entries) {
+			if (scriptsVersion != version) return false;
+			Map<String, Entry> forLoader = entries.get(loader);
+			Entry e = forLoader == null ? null : forLoader.get(className);
+			if (e == null || e.length != classFile.length || e.checksum != checksum) return false;
+			hits++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Records that this class file was left alone while the scripts were at {@code scriptsVersion}. If that's not the version this
+	 * cache holds decisions for, and it is newer, everything recorded so far is dropped first.
+	 */
+	void put(ClassLoader loader, String className, byte[] classFile, long checksum, int scriptsVersion) {
+		synchronized (entries) {
+			if (scriptsVersion != version) {
+				if (scriptsVersion < version) return;
+				clearLocked();
+				version = scriptsVersion;
+			}
+			if (size >= maxSize) {
+				// Loaders that have been collected since may still be counted.
+				size = 0;
+				for (Map<String, Entry> forLoader : entries.values()) size += forLoader.size();
+				if (size >= maxSize) clearLocked();
+			}
+			Map<String, Entry> forLoader = entries.get(loader);
+			if (forLoader == null) {
+				forLoader = new HashMap<String, Entry>();
+				entries.put(loader, forLoader);
+			}
+			if (forLoader.put(className, new Entry(classFile.length, checksum)) == null) size++;
+		}
+	}
+	
+	/**
+	 * Forgets all decisions, for example because something other than the scripts changed that could lead to different ones.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			clearLocked();
+		}
+	}
+	
+	private void clearLocked() {
+		entries.clear();
+		size = 0;
+	}
+	
+	/**
+	 * @return The number of class files remembered.
+	 */
+	public int size() {
+		synchronized (entries) {
+			int size = 0;
+			for (Map<String, Entry> forLoader : entries.values()) size += forLoader.size();
+			return size;
+		}
+	}
+	
+	/**
+	 * @return How often a class file was recognized as one to leave alone.
+	 */
+	public long getHits() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Collects what a {@link ScriptManager} learned while patching: how much each patched method grew, and whether that pushed it past
+ * one of HotSpot's {@link InlineThreshold inlining or compilation thresholds}.
+ */
+public final class PatchDiagnostics {
+	private static final ThreadLocal<Reports> reports = new ThreadLocal<Reports>();
+	
+	private final Map<String, MethodSizeChange> sizeChanges = new LinkedHashMap<String, MethodSizeChange>();
+	private final Map<String, Integer> sharedExitSavings = new LinkedHashMap<String, Integer>();
+	private final Map<String, WrapperCount> wrapperCounts = new LinkedHashMap<String, WrapperCount>();
+	
+	/**
+	 * What the scripts that ran on a class reported while doing so.
+	 */
+	static final class Reports {
+		final Map<String, Integer> sharedExits = new HashMap<String, Integer>();
+		int wrappedCalls, wrappers;
+	}
+	
+	/**
+	 * How many call sites in a class were routed through synthetic wrapper methods (such as those of
+	 * {@link lombok.patcher.scripts.SetSymbolDuringMethodCallScript}), and how many wrapper methods that took.
+	 */
+	public static final class WrapperCount {
+		private final int wrappedCalls, wrappers;
+		
+		WrapperCount(int wrappedCalls, int wrappers) {
+			this.wrappedCalls = wrappedCalls;
+			this.wrappers = wrappers;
+		}
+		
+		public int getWrappedCalls() {
+			return wrappedCalls;
+		}
+		
+		public int getWrappers() {
+			return wrappers;
+		}
+		
+		@Override public String toString() {
+			return wrappedCalls + " call(s) through " + wrappers + " wrapper(s)";
+		}
+	}
+	private volatile boolean trackMethodSizes;
+	
+	PatchDiagnostics() {}
+	
+	public boolean isTrackingMethodSizes() {
+		return trackMethodSizes;
+	}
+	
+	/**
+	 * If set, the size of every method in every class that is patched is measured before and after patching. This requires
+	 * scanning the class file an extra time per script that patches it.
+	 */
+	public void setTrackMethodSizes(boolean trackMethodSizes) {
+		this.trackMethodSizes = trackMethodSizes;
+	}
+	
+	/**
+	 * Returns all methods whose size was changed by patching, in the order they were first patched. If a class is patched again
+	 * (because it was reloaded), the most recent result replaces the older one.
+	 */
+	public List<MethodSizeChange> getMethodSizeChanges() {
+		synchronized (sizeChanges) {
+			return new ArrayList<MethodSizeChange>(sizeChanges.values());
+		}
+	}
+	
+	/**
+	 * Returns only those method size changes that made a method cross at least one {@link InlineThreshold}.
+	 */
+	public List<MethodSizeChange> getThresholdCrossings() {
+		List<MethodSizeChange> out = new ArrayList<MethodSizeChange>();
+		for (MethodSizeChange c : getMethodSizeChanges()) if (!c.getCrossedThresholds().isEmpty()) out.add(c);
+		return out;
+	}
+	
+	/**
+	 * Returns, for each method where a script routed all returns through one shared exit block, how many bytes that saved compared to
+	 * repeating the code in front of every return. Keys are the class name, a dot, the method name, and its descriptor. A method
+	 * with only a single return will show a small negative number.
+	 */
+	public Map<String, Integer> getSharedExitSavings() {
+		synchronized (sharedExitSavings) {
+			return new LinkedHashMap<String, Integer>(sharedExitSavings);
+		}
+	}
+	
+	/**
+	 * Returns, for each class in which calls were routed through synthetic wrapper methods, how many calls and wrappers there are; only
+	 * collected while method sizes are tracked (see {@link ScriptManager#setTrackMethodSizes(boolean)}).
+	 * Keys are class names, JVM-style. If a class is patched again, the most recent count replaces the older one.
+	 */
+	public Map<String, WrapperCount> getWrapperCounts() {
+		synchronized (wrapperCounts) {
+			return new LinkedHashMap<String, WrapperCount>(wrapperCounts);
+		}
+	}
+	
+	/**
+	 * Prints a summary of everything recorded, largest growth first, to the provided stream.
+	 */
+	public void printReport(PrintStream out) {
+		List<MethodSizeChange> changes = getMethodSizeChanges();
+		Collections.sort(changes, new Comparator<MethodSizeChange>() {
+			public int compare(MethodSizeChange a, MethodSizeChange b) {
+				return b.getGrowth() - a.getGrowth();
+			}
+		});
+		int crossings = 0;
+		for (MethodSizeChange c : changes) if (!c.getCrossedThresholds().isEmpty()) crossings++;
+		
+		out.printf("lombok.patcher: %d patched method(s) changed size, %d crossed an inlining threshold.\n", changes.size(), crossings);
+		for (MethodSizeChange c : changes) out.println("  " + c);
+		
+		Map<String, Integer> savings = getSharedExitSavings();
+		if (!savings.isEmpty()) {
+			int total = 0;
+			for (Integer saved : savings.values()) total += saved;
+			out.printf("lombok.patcher: %d method(s) use a shared exit block, saving %d bytes in total.\n", savings.size(), total);
+			for (Map.Entry<String, Integer> e : savings.entrySet()) out.printf("  %s: %d bytes\n", e.getKey(), e.getValue());
+		}
+		
+		Map<String, WrapperCount> wrappers = getWrapperCounts();
+		if (!wrappers.isEmpty()) {
+			int calls = 0, total = 0;
+			for (WrapperCount c : wrappers.values()) {
+				calls += c.getWrappedCalls();
+				total += c.getWrappers();
+			}
+			out.printf("lombok.patcher: %d class(es) route %d call(s) through %d wrapper method(s).\n", wrappers.size(), calls, total);
+			for (Map.Entry<String, WrapperCount> e : wrappers.entrySet()) out.printf("  %s: %s\n", e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * Patch scripts call this when they've replaced all {@code returnCount} returns in a method with jumps to a single shared exit
+	 * block. If the script is being run by a {@code ScriptManager} that tracks method sizes, the bytes saved by doing so end up in
+	 * {@link #getSharedExitSavings()}; otherwise, this does nothing.
+	 */
+	public static void reportSharedExit(String methodName, String descriptor, int returnCount) {
+		Reports r = reports.get();
+		if (r != null) r.sharedExits.put(methodName + descriptor, returnCount);
+	}
+	
+	/**
+	 * Patch scripts call this when they've routed {@code wrappedCalls} call sites in the class they're patching through
+	 * {@code wrappers} synthetic wrapper methods. If the script is being run by a {@code ScriptManager} that tracks method sizes, this
+	 * ends up in {@link #getWrapperCounts()}; otherwise, this does nothing.
+	 */
+	public static void reportWrappers(int wrappedCalls, int wrappers) {
+		Reports r = reports.get();
+		if (r == null) return;
+		r.wrappedCalls += wrappedCalls;
+		r.wrappers += wrappers;
+	}
+	
+	static void startCollectingReports() {
+		reports.set(new Reports());
+	}
+	
+	static Reports stopCollectingReports() {
+		Reports r = reports.get();
+		reports.remove();
+		return r;
+	}
+	
+	void recordWrappers(String className, int wrappedCalls, int wrappers) {
+		synchronized (wrapperCounts) {
+			wrapperCounts.put(className, new WrapperCount(wrappedCalls, wrappers));
+		}
+	}
+	
+	void recordSharedExits(String className, Map<String, Integer> returnCounts, Map<String, Integer> before, Map<String, Integer> after) {
+		synchronized (sharedExitSavings) {
+			for (Map.Entry<String, Integer> e : returnCounts.entrySet()) {
+				Integer sizeBefore = before.get(e.getKey());
+				Integer sizeAfter = after.get(e.getKey());
+				if (sizeBefore == null || sizeAfter == null) continue;
+				sharedExitSavings.put(className + "." + e.getKey(), sharedExitSaving(e.getValue(), sizeAfter - sizeBefore));
+			}
+		}
+	}
+	
+	/**
+	 * Each of the {@code returnCount} returns (1 byte) became a {@code GOTO} (3 bytes), and the exit block holds the code that would
+	 * otherwise have been in front of every return, plus one return. From the growth we can thus work out the size of that code.
+	 */
+	static int sharedExitSaving(int returnCount, int growth) {
+		int blockSize = growth - 2 * returnCount - 1;
+		return returnCount * blockSize - growth;
+	}
+	
+	void recordSizes(String className, Map<String, Integer> before, Map<String, Integer> after, Map<String, List<String>> scriptsPerMethod) {
+		synchronized (sizeChanges) {
+			for (Map.Entry<String, Integer> e : after.entrySet()) {
+				Integer sizeBefore = before.get(e.getKey());
+				if (sizeBefore == null || sizeBefore.intValue() == e.getValue().intValue()) continue;
+				
+				String key = e.getKey();
+				int split = key.indexOf('(');
+				List<String> scripts = scriptsPerMethod.get(key);
+				MethodSizeChange change = new MethodSizeChange(className, key.substring(0, split), key.substring(split),
+						sizeBefore, e.getValue(), scripts == null ? Collections.<String>emptyList() : scripts);
+				sizeChanges.put(className + "." + key, change);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the length of the bytecode of each method in the provided class file, keyed on name + descriptor.
+	 * Abstract and native methods are not listed.
+	 */
+	static Map<String, Integer> codeSizes(byte[] classFile) {
+		ClassReader reader = new ClassReader(classFile);
+		char[] buffer = new char[reader.getMaxStringLength()];
+		Map<String, Integer> out = new HashMap<String, Integer>();
+		
+		int u = reader.header + 6;
+		u += 2 + 2 * reader.readUnsignedShort(u);
+		int fieldCount = reader.readUnsignedShort(u);
+		u += 2;
+		for (int i = 0; i < fieldCount; i++) {
+			int attributeCount = reader.readUnsignedShort(u + 6);
+			u += 8;
+			for (int j = 0; j < attributeCount; j++) u += 6 + reader.readInt(u + 2);
+		}
+		
+		int methodCount = reader.readUnsignedShort(u);
+		u += 2;
+		for (int i = 0; i < methodCount; i++) {
+			String name = reader.readUTF8(u + 2, buffer);
+			String desc = reader.readUTF8(u + 4, buffer);
+			int attributeCount = reader.readUnsignedShort(u + 6);
+			u += 8;
+			for (int j = 0; j < attributeCount; j++) {
+				// Code attribute: name (2), length (4), max_stack (2), max_locals (2), code_length (4), ...
+				if ("Code".equals(reader.readUTF8(u, buffer))) out.put(name + desc, reader.readInt(u + 10));
+				u += 6 + reader.readInt(u + 2);
+			}
+		}
+		
+		return out;
+	}
+}
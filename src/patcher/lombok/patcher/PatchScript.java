@@ -26,8 +26,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.Attribute;
@@ -35,6 +40,7 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -59,6 +65,63 @@ public abstract class PatchScript {
 	 */
 	public abstract Collection<String> getClassesToReload();
 	
+	/**
+	 * Return {@code true} if this script never patches a class that isn't listed by {@link #getClassesToReload()}. That lets a
+	 * {@link ScriptManager} skip over all other classes without asking this script about them.
+	 */
+	public boolean patchesOnlyClassesToReload() {
+		return false;
+	}
+	
+	/**
+	 * Return {@code true} if this script makes changes that the JVM refuses when a class that is already loaded is retransformed or
+	 * redefined, such as changing the modifiers of a method. A {@link ScriptManager} then only lets it patch a class when that class
+	 * loads for the first time, patches it the same way whenever it is reloaded, and refuses to remove or replace this script.
+	 */
+	public boolean patchesOnlyOnFirstLoad() {
+		return false;
+	}
+	
+	/**
+	 * Called by a {@link ScriptManager} right before it starts running this script on classes. Scripts whose generated code needs
+	 * something running, such as a background thread, start it here.
+	 */
+	public void activate() {}
+	
+	/**
+	 * Called by a {@link ScriptManager} once it no longer runs this script: when it is removed, replaced, or retired. Classes this
+	 * script already patched may run its code until they are reloaded.
+	 */
+	public void deactivate() {}
+	
+	/**
+	 * Returns the number under which {@link HookLinker} tracks whether this script is enabled, or -1 if the code this script generates
+	 * cannot be switched off at runtime.
+	 *
+	 * @see ScriptManager#setScriptEnabled(PatchScript, boolean)
+	 */
+	public int getSwitchId() {
+		return -1;
+	}
+	
+	/**
+	 * Returns how many samples the code this script generates has taken so far (such as calls counted, or calls timed), or -1 if this
+	 * script doesn't take samples. Used to retire a script once it has taken enough.
+	 *
+	 * @see ScriptManager#addTemporaryScript(PatchScript, long, long, java.lang.instrument.Instrumentation)
+	 */
+	public long getSamplesTaken() {
+		return -1;
+	}
+	
+	/**
+	 * Returns the hooks whose code this script copies into the classes it patches, because it transplants or inserts them. Their class
+	 * files are read while patching; see {@link ScriptManager#warmUpInBackground()}.
+	 */
+	public Collection<Hook> getCopiedHooks() {
+		return Collections.emptyList();
+	}
+	
 	public static boolean classMatches(String className, Collection<String> classSpecs) {
 		for (String classSpec : classSpecs) {
 			if (MethodTarget.typeMatches(className, classSpec)) return true;
@@ -101,6 +164,14 @@ public abstract class PatchScript {
 	 * via the {@see #createClassVisitor(ClassWriter)} method as the filter.
 	 */
 	protected byte[] runASM(byte[] byteCode, boolean computeStacks, TransplantMapper transplantMapper) {
+		return runASM(byteCode, computeStacks, false, transplantMapper);
+	}
+	
+	/**
+	 * Like {@link #runASM(byte[], boolean, TransplantMapper)}, but can also hand all stack map frames to your visitor in expanded form,
+	 * which is what the {@code AnalyzerAdapter}-based hook insertion needs.
+	 */
+	protected byte[] runASM(byte[] byteCode, boolean computeStacks, boolean expandFrames, TransplantMapper transplantMapper) {
 		ClassReader reader = new ClassReader(byteCode);
 		int classFileFormatVersion = 48;
 		if (byteCode.length > 7) classFileFormatVersion = byteCode[7] & 0xFF;
@@ -110,7 +181,7 @@ public abstract class PatchScript {
 		ClassWriter writer = new FixedClassWriter(reader, flags);
 		
 		ClassVisitor visitor = createClassVisitor(writer, reader.getClassName(), transplantMapper);
-		reader.accept(visitor, 0);
+		reader.accept(visitor, expandFrames ? ClassReader.EXPAND_FRAMES : 0);
 		return writer.toByteArray();
 	}
 	
@@ -140,7 +211,18 @@ public abstract class PatchScript {
 		public MethodVisitor createMethodVisitor(String methodName, String methodDescription, MethodVisitor parent, MethodLogistics logistics);
 	}
 	
-	private static byte[] readStream(String resourceName) {
+	// Hook class files never change while the JVM runs, and the same ones are read for every class a script patches.
+	private static final ConcurrentMap<String, byte[]> hookClassFiles = new ConcurrentHashMap<String, byte[]>();
+	
+	static byte[] readStream(String resourceName) {
+		byte[] cached = hookClassFiles.get(resourceName);
+		if (cached != null) return cached;
+		byte[] data = readResource(resourceName);
+		cached = hookClassFiles.putIfAbsent(resourceName, data);
+		return cached == null ? data : cached;
+	}
+	
+	static byte[] readResource(String resourceName) {
 		InputStream wrapStream = null;
 		try {
 			wrapStream = PatchScript.class.getResourceAsStream(resourceName);
@@ -178,9 +260,21 @@ public abstract class PatchScript {
 		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) { return null; }
 	}
 	
+	/**
+	 * Copies the body of {@code methodToInsert} into {@code target}; the parameters of the hook must already be on the stack.
+	 *
+	 * If {@code target} is the visitor handed out by a {@link MethodPatcher} that has {@link MethodPatcher#setInsertHooks(boolean)} on,
+	 * the hook is properly inlined: it may use locals, branches, try/catch blocks and any number of returns. Otherwise, only its
+	 * return instructions are removed, which only works for straight-line hooks that don't use any locals beyond their parameters.
+	 */
 	protected static void insertMethod(final Hook methodToInsert, final MethodVisitor target) {
 		byte[] classData = readStream("/" + methodToInsert.getClassSpec() + ".class");
 		
+		if (HookInliner.canInline(target)) {
+			HookInliner.inline(target, methodToInsert, classData);
+			return;
+		}
+		
 		ClassReader reader = new ClassReader(classData);
 		ClassVisitor methodFinder = new NoopClassVisitor() {
 			@Override public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
@@ -233,6 +327,11 @@ public abstract class PatchScript {
 		@Override public AnnotationVisitor visitAnnotation(String desc, boolean visible) { return null;}
 	}
 	
+	private static final Handle HOOK_LINKER_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "lombok/patcher/HookLinker", "bootstrap",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+	private static final Handle HOOK_LINKER_BOOTSTRAP_GUARDED = new Handle(Opcodes.H_INVOKESTATIC, "lombok/patcher/HookLinker", "bootstrapGuarded",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;IILjava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+	
 	/**
 	 * Convenience implementation of the {@code ClassVisitor} that you can return for {@see #createClassVisitor(ClassWriter)};
 	 * it will call into a custom {@code MethodVisitor} for specified methods, and pass through everything else. Perfect if you
@@ -245,6 +344,8 @@ public abstract class PatchScript {
 		private List<Hook> transplants = new ArrayList<Hook>();
 		private final TransplantMapper transplantMapper;
 		private int classFileFormatVersion;
+		private boolean insertHooks;
+		private final Map<String, Object[]> dynamicHooks = new HashMap<String, Object[]>();
 		
 		public MethodPatcher(ClassVisitor cv, TransplantMapper transplantMapper, MethodPatcherFactory factory) {
 			super(Opcodes.ASM9, cv);
@@ -263,12 +364,93 @@ public abstract class PatchScript {
 			targets.add(t);
 		}
 		
+		/**
+		 * @return {@code true} if the method with the given name and descriptor in the class being patched matches any added target.
+		 */
+		public boolean isTarget(String name, String desc) {
+			for (TargetMatcher t : targets) {
+				if (t.matches(ownClassSpec, name, desc)) return true;
+			}
+			return false;
+		}
+		
 		@Override public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
 			this.ownClassSpec = name;
 			this.classFileFormatVersion = version;
 			super.visit(version, access, name, signature, superName, interfaces);
 		}
 		
+		/**
+		 * If set, methods that match a target are buffered so that hooks passed to {@link PatchScript#insertMethod(Hook, MethodVisitor)}
+		 * can be inlined for real. The class must then be read with expanded frames.
+		 */
+		public void setInsertHooks(boolean insertHooks) {
+			this.insertHooks = insertHooks;
+		}
+		
+		/**
+		 * Adds a new method to the class being patched, for code that a script wants to move out of the methods it patches. If hooks
+		 * are being inserted, {@link PatchScript#insertMethod(Hook, MethodVisitor)} inlines them into the returned visitor too.
+		 */
+		public MethodVisitor createMethod(int access, String name, String desc) {
+			MethodVisitor visitor = cv.visitMethod(access, name, desc, null, null);
+			if (insertHooks) visitor = HookInliner.wrap(ownClassSpec, access, name, desc, null, null, visitor, classFileFormatVersion);
+			return wrapDynamicHooks(visitor);
+		}
+		
+		/**
+		 * Static calls to {@code hook} generated by the script are turned into {@code invokedynamic} calls linked by {@link HookLinker},
+		 * as long as the class being patched is new enough (java 1.7 or up) to contain them.
+		 */
+		public void addDynamicHook(Hook hook) {
+			if (hook == null) throw new NullPointerException("hook");
+			dynamicHooks.put(hook.getClassSpec() + "." + hook.getMethodName() + hook.getMethodDescriptor(), new Object[] {hook.getClassName()});
+		}
+		
+		/**
+		 * Like {@link #addDynamicHook(Hook)}, but the call can be switched off at runtime; see {@link HookLinker#bootstrapGuarded}.
+		 *
+		 * @param switchId The {@link PatchScript#getSwitchId() switch ID} of the script.
+		 * @param whenDisabled One of the {@code WHEN_DISABLED_} constants in {@link HookLinker}.
+		 * @param whenDisabledArgument A {@code String}, boxed {@code int}, {@code long}, {@code float} or {@code double}, if {@code whenDisabled}
+		 *   needs one.
+		 */
+		public void addGuardedHook(Hook hook, int switchId, int whenDisabled, Object whenDisabledArgument) {
+			if (hook == null) throw new NullPointerException("hook");
+			dynamicHooks.put(hook.getClassSpec() + "." + hook.getMethodName() + hook.getMethodDescriptor(), new Object[] {
+					hook.getClassName(), switchId, whenDisabled, whenDisabledArgument == null ? "" : whenDisabledArgument});
+		}
+		
+		/**
+		 * Writes a call to a hook added via {@link #addGuardedHook(Hook, int, int, Object)}, but with another {@code whenDisabledArgument}
+		 * for just this call site.
+		 */
+		public void generateGuardedHookCall(MethodVisitor mv, Hook hook, Object whenDisabledArgument) {
+			Object[] bootstrapArgs = dynamicHooks.get(hook.getClassSpec() + "." + hook.getMethodName() + hook.getMethodDescriptor());
+			if (bootstrapArgs == null || bootstrapArgs.length == 1) throw new IllegalStateException("Hook " + hook + " is not a guarded hook");
+			if ((classFileFormatVersion & 0xFFFF) < Opcodes.V1_7) {
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, hook.getClassSpec(), hook.getMethodName(), hook.getMethodDescriptor(), false);
+				return;
+			}
+			bootstrapArgs = bootstrapArgs.clone();
+			bootstrapArgs[3] = whenDisabledArgument;
+			mv.visitInvokeDynamicInsn(hook.getMethodName(), hook.getMethodDescriptor(), HOOK_LINKER_BOOTSTRAP_GUARDED, bootstrapArgs);
+		}
+		
+		private MethodVisitor wrapDynamicHooks(MethodVisitor visitor) {
+			if (dynamicHooks.isEmpty() || (classFileFormatVersion & 0xFFFF) < Opcodes.V1_7) return visitor;
+			return new MethodVisitor(Opcodes.ASM9, visitor) {
+				@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+					Object[] bootstrapArgs = opcode == Opcodes.INVOKESTATIC ? dynamicHooks.get(owner + "." + name + desc) : null;
+					if (bootstrapArgs == null) {
+						super.visitMethodInsn(opcode, owner, name, desc, itf);
+						return;
+					}
+					super.visitInvokeDynamicInsn(name, desc, bootstrapArgs.length == 1 ? HOOK_LINKER_BOOTSTRAP : HOOK_LINKER_BOOTSTRAP_GUARDED, bootstrapArgs);
+				}
+			};
+		}
+		
 		public void addTransplant(Hook transplant) {
 			if (transplant == null) throw new NullPointerException("transplant");
 			transplants.add(transplant);
@@ -294,7 +476,8 @@ public abstract class PatchScript {
 			
 			for (TargetMatcher t : targets) {
 				if (t.matches(ownClassSpec, name, desc)) {
-					return factory.createMethodVisitor(name, desc, visitor, new MethodLogistics(access, desc));
+					if (insertHooks) visitor = HookInliner.wrap(ownClassSpec, access, name, desc, signature, exceptions, visitor, classFileFormatVersion);
+					return factory.createMethodVisitor(name, desc, wrapDynamicHooks(visitor), new MethodLogistics(access, desc));
 				}
 			}
 			
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+/**
+ * Identifies a single instruction in a patched method that a probe script instruments, such as a call or an allocation.
+ * <p>
+ * The instruction is identified by its index among the instructions of the method as it was before patching (labels, line numbers
+ * and frames don't count), plus the source line it is on, if the class file says so. The actual bytecode offset isn't used, as it
+ * isn't visible while patching, and changes once other probes have been added to the method anyway.
+ */
+public final class ProbeSite {
+	private final String classSpec, methodName, descriptor;
+	private final int instructionIndex, line;
+	private final String description;
+	
+	public ProbeSite(String classSpec, String methodName, String descriptor, int instructionIndex, int line, String description) {
+		if (classSpec == null) throw new NullPointerException("classSpec");
+		if (methodName == null) throw new NullPointerException("methodName");
+		if (descriptor == null) throw new NullPointerException("descriptor");
+		if (description == null) throw new NullPointerException("description");
+		this.classSpec = classSpec;
+		this.methodName = methodName;
+		this.descriptor = descriptor;
+		this.instructionIndex = instructionIndex;
+		this.line = line;
+		this.description = description;
+	}
+	
+	/**
+	 * @return The class that owns the method, JVM-style (e.g. {@code java/lang/String}).
+	 */
+	public String getClassSpec() {
+		return classSpec;
+	}
+	
+	public String getMethodName() {
+		return methodName;
+	}
+	
+	public String getDescriptor() {
+		return descriptor;
+	}
+	
+	/**
+	 * @return The 0-based index of the instruction in the unpatched method, or -1 if the site is the method itself, such as the entry
+	 *   of a synchronized method.
+	 */
+	public int getInstructionIndex() {
+		return instructionIndex;
+	}
+	
+	/**
+	 * @return The source line, or -1 if the class file doesn't contain line numbers.
+	 */
+	public int getLine() {
+		return line;
+	}
+	
+	/**
+	 * @return What the instruction does, such as {@code call java/util/List.size()I}.
+	 */
+	public String getDescription() {
+		return description;
+	}
+	
+	@Override public int hashCode() {
+		int result = 1;
+		result = result * 31 + classSpec.hashCode();
+		result = result * 31 + methodName.hashCode();
+		result = result * 31 + descriptor.hashCode();
+		result = result * 31 + instructionIndex;
+		result = result * 31 + description.hashCode();
+		return result;
+	}
+	
+	@Override public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof ProbeSite)) return false;
+		ProbeSite other = (ProbeSite) obj;
+		return classSpec.equals(other.classSpec) && methodName.equals(other.methodName) && descriptor.equals(other.descriptor) &&
+				instructionIndex == other.instructionIndex && description.equals(other.description);
+	}
+	
+	@Override public String toString() {
+		return classSpec + "." + methodName + descriptor + " #" + instructionIndex + (line == -1 ? "" : " (line " + line + ")") + ": " + description;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+/**
+ * Decides, for scripts that were built with {@code sample}, on which calls their hook runs. Each such script gets an ID, and a rate
+ * of 'one in N calls' that can be changed at any time, without transforming any classes again.
+ * <p>
+ * The decision is made by counting calls: each thread counts in one of a number of stripes, picked by its thread ID, and every N-th
+ * count in a stripe is sampled. The counters are deliberately not synchronized; a lost update merely shifts which call is sampled.
+ */
+public final class Sampler {
+	private static final int STRIPES;
+	private static final int PADDING = 16; // ints per stripe, so that stripes don't share a cache line.
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) stripes <<= 1;
+		STRIPES = stripes;
+	}
+	
+	private static final Object lock = new Object();
+	private static volatile Rate[] rates = new Rate[0];
+	
+	private Sampler() {}
+	
+	private static final class Rate {
+		volatile int oneIn;
+		final int[] counters = new int[STRIPES * PADDING];
+		
+		Rate(int oneIn) {
+			this.oneIn = oneIn;
+		}
+	}
+	
+	/**
+	 * @param oneIn See {@link #setRate(int, int)}.
+	 * @return The ID to bake into the patched code.
+	 */
+	public static int register(int oneIn) {
+		checkRate(oneIn);
+		synchronized (lock) {
+			Rate[] old = rates;
+			Rate[] updated = new Rate[old.length + 1];
+			System.arraycopy(old, 0, updated, 0, old.length);
+			updated[old.length] = new Rate(oneIn);
+			rates = updated;
+			return old.length;
+		}
+	}
+	
+	/**
+	 * @param oneIn Sample one in this many calls: 1 samples every call, 0 none at all.
+	 */
+	public static void setRate(int id, int oneIn) {
+		checkRate(oneIn);
+		rates[id].oneIn = oneIn;
+	}
+	
+	public static int getRate(int id) {
+		return rates[id].oneIn;
+	}
+	
+	/**
+	 * Called by patched code.
+	 *
+	 * @return {@code true} if the hook should run for this call.
+	 */
+	public static boolean sample(int id) {
+		Rate rate = rates[id];
+		int oneIn = rate.oneIn;
+		if (oneIn <= 1) return oneIn == 1;
+		int idx = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+		int count = rate.counters[idx] + 1;
+		if (count >= oneIn) count = 0;
+		rate.counters[idx] = count;
+		return count == 0;
+	}
+	
+	private static void checkRate(int oneIn) {
+		if (oneIn < 0) throw new IllegalArgumentException("The rate must be 0 (never) or more");
+	}
+}
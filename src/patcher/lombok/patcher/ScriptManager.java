@@ -24,6 +24,8 @@ package lombok.patcher;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
@@ -31,11 +33,24 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
 
 public class ScriptManager {
@@ -45,35 +60,449 @@ public class ScriptManager {
 		PatchScript script;
 	}
 	
-	private final List<PatchScript> scripts = new ArrayList<PatchScript>();
-	private final Map<String, List<WitnessAction>> witnessActions = new HashMap<String, List<WitnessAction>>(); // maps FQNs to actions
+	// Copy-on-write, as scripts can be added and removed while the transformer is running on other threads.
+	private final List<PatchScript> scripts = new CopyOnWriteArrayList<PatchScript>();
+	// Concurrent, so that the transformer can look a class up without taking registryLock; the lists are only touched while holding it.
+	private final Map<String, List<WitnessAction>> witnessActions = new ConcurrentHashMap<String, List<WitnessAction>>(); // maps FQNs to actions
+	
+	private final Object registryLock = new Object();
+	private final Set<String> pendingReloads = new HashSet<String>();
+	private volatile int version; // only written while holding registryLock
+	
+	private final Map<PatchScript, TimerTask> temporaryScripts = new HashMap<PatchScript, TimerTask>();
+	private Timer probeTimer;
+	private volatile long probeCheckMillis = 1000;
+	
+	private final ConcurrentMap<PatchScript, Integer> growthBudgets = new ConcurrentHashMap<PatchScript, Integer>();
+	private final ConcurrentMap<PatchScript, ScriptFailures> failures = new ConcurrentHashMap<PatchScript, ScriptFailures>();
+	private volatile int failureThreshold = FAILURE_THRESHOLD;
+	private volatile long failureReportMillis = 10000;
+	private final PatchDiagnostics diagnostics = new PatchDiagnostics();
+	
+	private volatile ClassByteStore classByteStore;
+	private volatile NegativeCache negativeCache;
+	private final Map<ClassLoader, Set<String>> rolledBack = new WeakHashMap<ClassLoader, Set<String>>(); // JVM-style names per loader
+	// For each class that loaded while scripts that only patch on first load were registered, which of those would patch it.
+	private final Map<ClassLoader, Map<String, Set<PatchScript>>> firstLoadPatches = new WeakHashMap<ClassLoader, Map<String, Set<PatchScript>>>();
 	
 	private TransplantMapper transplantMapper = TransplantMapper.IDENTITY_MAPPER;
 	private Filter filter = Filter.ALWAYS;
+	private volatile boolean warmUpOnRegister = WARM_UP;
+	
+	private volatile DispatchIndex dispatchIndex;
+	private volatile boolean sharedTransformer = SHARED_TRANSFORMER;
+	
+	private volatile StartupProfile profileRecorder;
+	private final ConcurrentMap<String, Prepatched> prepatched = new ConcurrentHashMap<String, Prepatched>(); // JVM-style names
+	
+	/**
+	 * The result of running the scripts on a class file read from a {@link StartupProfile} entry, before the JVM asked for it.
+	 */
+	private static final class Prepatched {
+		final byte[] original, patched;
+		final int version;
+		
+		Prepatched(byte[] original, byte[] patched, int version) {
+			this.original = original;
+			this.patched = patched;
+			this.version = version;
+		}
+		
+		boolean isResultFor(byte[] classFile, int currentVersion) {
+			if (version != currentVersion || original.length != classFile.length) return false;
+			for (int i = 0; i < original.length; i++) if (original[i] != classFile[i]) return false;
+			return true;
+		}
+	}
+	
+	/**
+	 * How often a script threw an exception while patching, and the last one it threw. Once it has failed a number of times in a row
+	 * (see {@link ScriptManager#setFailureThreshold(int)}), it is quarantined: it isn't run anymore until it is
+	 * {@link ScriptManager#resetQuarantine(PatchScript) reset}.
+	 */
+	public static final class ScriptFailures {
+		private final PatchScript script;
+		private int consecutive, total, suppressed;
+		private long lastReport;
+		private String lastClassName;
+		private Throwable lastError;
+		volatile boolean quarantined;
+		
+		ScriptFailures(PatchScript script) {
+			this.script = script;
+		}
+		
+		public PatchScript getScript() {
+			return script;
+		}
+		
+		/**
+		 * @return How often the script failed since it was added or last reset.
+		 */
+		public synchronized int getFailureCount() {
+			return total;
+		}
+		
+		/**
+		 * @return The name of the class, JVM-style, that the script last failed on.
+		 */
+		public synchronized String getLastClassName() {
+			return lastClassName;
+		}
+		
+		public synchronized Throwable getLastError() {
+			return lastError;
+		}
+		
+		public boolean isQuarantined() {
+			return quarantined;
+		}
+		
+		synchronized void succeeded() {
+			consecutive = 0;
+		}
+		
+		@Override public synchronized String toString() {
+			return "script=\"" + script.getPatchScriptName() + "\" class=" + lastClassName + " failures=" + total + (quarantined ? " quarantined=true" : "") + " error=" + lastError;
+		}
+	}
+	
+	/**
+	 * The classes the scripts of one {@link #getVersion() version} could patch, so that the transformer can pass over all other classes
+	 * right away. If any script can't say which classes it patches, everything could be patched.
+	 */
+	private static final class DispatchIndex {
+		final int version;
+		final Set<String> classes = new HashSet<String>(); // JVM-style names
+		final List<PatchScript> firstLoadOnly = new ArrayList<PatchScript>();
+		final boolean complete;
+		
+		DispatchIndex(Collection<PatchScript> scripts, int version) {
+			this.version = version;
+			boolean complete = true;
+			for (PatchScript script : scripts) {
+				if (!script.patchesOnlyClassesToReload()) complete = false;
+				if (script.patchesOnlyOnFirstLoad()) firstLoadOnly.add(script);
+				for (String className : script.getClassesToReload()) classes.add(className.replace('.', '/'));
+			}
+			this.complete = complete;
+		}
+		
+		boolean mightPatch(String className) {
+			return !complete || classes.contains(className);
+		}
+	}
+	
+	public ScriptManager() {
+		if (REPORT_METHOD_SIZES) {
+			diagnostics.setTrackMethodSizes(true);
+			reportAtShutdown(System.err);
+		}
+		if (KEEP_CLASS_BYTES) classByteStore = new ClassByteStore();
+		if (NEGATIVE_CACHE_SIZE > 0) negativeCache = new NegativeCache(NEGATIVE_CACHE_SIZE);
+	}
 	
 	public void addScript(PatchScript script) {
-		scripts.add(script);
+		script.activate();
+		synchronized (registryLock) {
+			scripts.add(script);
+			changed(script);
+		}
 	}
 	
-	public void addScriptIfWitness(String[] witness, PatchScript script) {
-		WitnessAction wa = new WitnessAction();
-		wa.ifWitnessRemove = false;
-		wa.script = script;
-		for (String w : witness) {
-			List<WitnessAction> list = witnessActions.get(w);
-			if (list == null) {
-				list = new ArrayList<WitnessAction>();
-				witnessActions.put(w, list);
+	/**
+	 * Removes {@code script}, including any witness conditions it was added with, and {@link PatchScript#deactivate() deactivates} it.
+	 * Classes it has already patched stay patched until {@link #reloadChangedClasses(Instrumentation)} is called, which reloads them with
+	 * only the remaining scripts.
+	 *
+	 * @return {@code true} if {@code script} was registered.
+	 * @throws IllegalArgumentException If {@code script} {@link PatchScript#patchesOnlyOnFirstLoad() only patches on first load}.
+	 */
+	public boolean removeScript(PatchScript script) {
+		requireReloadable(script, "removed");
+		boolean removed;
+		synchronized (registryLock) {
+			removed = scripts.remove(script);
+			for (List<WitnessAction> list : witnessActions.values()) {
+				for (Iterator<WitnessAction> it = list.iterator(); it.hasNext();) {
+					if (it.next().script == script) {
+						it.remove();
+						removed = true;
+					}
+				}
 			}
-			list.add(wa);
+			TimerTask check = temporaryScripts.remove(script);
+			if (check != null) check.cancel();
+			if (removed) {
+				growthBudgets.remove(script);
+				failures.remove(script);
+				changed(script);
+			}
+		}
+		// Outside of the lock; this may wait for background work of the script, which might load classes.
+		if (removed) script.deactivate();
+		return removed;
+	}
+	
+	/**
+	 * Puts {@code replacement} in the place of {@code original}: same position in the order in which scripts run, and the same witness
+	 * conditions, if any. As with the other changes, already loaded classes are only affected once you call
+	 * {@link #reloadChangedClasses(Instrumentation)}.
+	 *
+	 * @throws IllegalArgumentException If {@code original} isn't registered, or either script
+	 *     {@link PatchScript#patchesOnlyOnFirstLoad() only patches on first load}.
+	 */
+	public void replaceScript(PatchScript original, PatchScript replacement) {
+		if (replacement == null) throw new NullPointerException("replacement");
+		requireReloadable(original, "replaced");
+		requireReloadable(replacement, "put in the place of another script");
+		replacement.activate();
+		synchronized (registryLock) {
+			boolean found = false;
+			int idx = scripts.indexOf(original);
+			if (idx != -1) {
+				scripts.set(idx, replacement);
+				found = true;
+			}
+			for (List<WitnessAction> list : witnessActions.values()) {
+				for (WitnessAction wa : list) {
+					if (wa.script != original) continue;
+					wa.script = replacement;
+					found = true;
+				}
+			}
+			if (!found) {
+				replacement.deactivate();
+				throw new IllegalArgumentException("Not registered: " + original.getPatchScriptName());
+			}
+			
+			Integer budget = growthBudgets.remove(original);
+			if (budget != null) growthBudgets.put(replacement, budget);
+			pendingReloads.addAll(original.getClassesToReload());
+			changed(replacement);
+		}
+		original.deactivate();
+	}
+	
+	/**
+	 * Adds {@code script} for a limited time: once it has taken {@code sampleBudget} samples (see {@link PatchScript#getSamplesTaken()})
+	 * since it was added, or {@code windowMillis} milliseconds have passed, whichever comes first, it is {@link #retireScript(PatchScript, Instrumentation) retired}
+	 * automatically. This is checked on a background thread, every {@link #setProbeCheckInterval(long) probe check interval}.
+	 * <p>
+	 * As with {@link #addScript(PatchScript)}, classes that are already loaded are only patched once they are reloaded.
+	 *
+	 * @param sampleBudget The number of samples after which to retire the script, or a negative number for no limit.
+	 * @param windowMillis The time after which to retire the script, or 0 or less for no limit.
+	 * @param instrumentation Used to reload the classes the script patched, when it is retired.
+	 * @throws IllegalArgumentException If neither limit is set, if there is a sample budget but {@code script} doesn't take samples,
+	 *     or if {@code script} {@link PatchScript#patchesOnlyOnFirstLoad() only patches on first load}.
+	 */
+	public void addTemporaryScript(final PatchScript script, final long sampleBudget, long windowMillis, final Instrumentation instrumentation) {
+		if (instrumentation == null) throw new NullPointerException("instrumentation");
+		requireReloadable(script, "added temporarily");
+		if (sampleBudget < 0 && windowMillis <= 0) throw new IllegalArgumentException("Set a sample budget, a time window, or both");
+		if (sampleBudget >= 0 && script.getSamplesTaken() < 0) throw new IllegalArgumentException(script.getPatchScriptName() + " doesn't take samples");
+		
+		final long deadline = windowMillis <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + windowMillis;
+		// Probe scripts count from when they got to each site, but the same script may have been added, and taken samples, before.
+		final long baseline = sampleBudget < 0 ? 0 : script.getSamplesTaken();
+		TimerTask check = new TimerTask() {
+			@Override public void run() {
+				if (System.currentTimeMillis() < deadline && (sampleBudget < 0 || script.getSamplesTaken() - baseline < sampleBudget)) return;
+				cancel();
+				try {
+					retireScript(script, instrumentation);
+				} catch (Throwable t) {
+					System.err.printf("Retiring %s failed. Trace:\n", script.getPatchScriptName());
+					t.printStackTrace();
+				}
+			}
+		};
+		long interval = windowMillis <= 0 ? probeCheckMillis : Math.min(probeCheckMillis, windowMillis);
+		synchronized (registryLock) {
+			addScript(script);
+			TimerTask old = temporaryScripts.put(script, check);
+			if (old != null) old.cancel();
+			if (probeTimer == null) probeTimer = new Timer("lombok.patcher probe lifetime", true);
+			probeTimer.schedule(check, interval, interval);
+		}
+	}
+	
+	/**
+	 * Removes {@code script}, and right away reloads only the classes it affects, so the code it added is gone from them. Unlike
+	 * {@link #reloadChangedClasses(Instrumentation)}, changes to other scripts that are still pending stay pending.
+	 *
+	 * @return {@code true} if {@code script} was registered.
+	 */
+	public boolean retireScript(PatchScript script, Instrumentation instrumentation) {
+		Set<String> toReload;
+		synchronized (registryLock) {
+			if (!removeScript(script)) return false;
+			toReload = new HashSet<String>(script.getClassesToReload());
+			pendingReloads.removeAll(toReload);
+		}
+		
+		if (!toReload.isEmpty()) retransform(instrumentation, toReload);
+		return true;
+	}
+	
+	/**
+	 * Sets after how many failures in a row (exceptions thrown while patching, without patching anything successfully in between)
+	 * a script is quarantined: from then on it is skipped, until {@link #resetQuarantine(PatchScript)} is called. 0 means scripts are
+	 * never quarantined. The default is 10, or the value of the system property {@code lombok.patcher.failureThreshold}.
+	 */
+	public void setFailureThreshold(int failures) {
+		if (failures < 0) throw new IllegalArgumentException("failures must not be negative");
+		this.failureThreshold = failures;
+	}
+	
+	/**
+	 * The first failure of a script is reported to {@code System.err} with a stack trace; after that, at most one line per
+	 * {@code millis} is printed for each script, which includes how many failures weren't reported. The default is 10 seconds.
+	 * Quarantining a script is always reported.
+	 */
+	public void setFailureReportInterval(long millis) {
+		if (millis < 0) throw new IllegalArgumentException("millis must not be negative");
+		this.failureReportMillis = millis;
+	}
+	
+	/**
+	 * @return The scripts that are currently quarantined, in no particular order.
+	 */
+	public List<ScriptFailures> getQuarantinedScripts() {
+		List<ScriptFailures> out = new ArrayList<ScriptFailures>();
+		for (ScriptFailures f : failures.values()) if (f.quarantined) out.add(f);
+		return out;
+	}
+	
+	/**
+	 * Forgets the failures of {@code script}, and if it was quarantined, runs it again from now on. Classes that loaded while it was
+	 * quarantined are added to {@link #getPendingReloads()}.
+	 *
+	 * @return {@code true} if {@code script} was quarantined.
+	 */
+	public boolean resetQuarantine(PatchScript script) {
+		ScriptFailures f = failures.remove(script);
+		if (f == null || !f.quarantined) return false;
+		synchronized (registryLock) {
+			changed(script);
+		}
+		return true;
+	}
+	
+	/**
+	 * Calls {@link #resetQuarantine(PatchScript)} for every quarantined script.
+	 *
+	 * @return The number of scripts that were quarantined.
+	 */
+	public int resetQuarantine() {
+		int count = 0;
+		for (ScriptFailures f : getQuarantinedScripts()) if (resetQuarantine(f.getScript())) count++;
+		return count;
+	}
+	
+	private void recordFailure(PatchScript script, String className, Throwable t) {
+		ScriptFailures f = failures.get(script);
+		if (f == null) {
+			ScriptFailures created = new ScriptFailures(script);
+			f = failures.putIfAbsent(script, created);
+			if (f == null) f = created;
+		}
+		
+		int threshold = failureThreshold;
+		synchronized (f) {
+			f.consecutive++;
+			f.total++;
+			f.lastClassName = className;
+			f.lastError = t;
+			boolean quarantine = !f.quarantined && threshold > 0 && f.consecutive >= threshold;
+			if (quarantine) f.quarantined = true;
+			long now = System.currentTimeMillis();
+			if (f.total == 1) {
+				//Exceptions get silently swallowed by instrumentation, so this is a slight improvement.
+				System.err.printf("Transformer %s failed on %s. Trace:\n", script.getPatchScriptName(), className);
+				t.printStackTrace();
+			} else if (quarantine || now - f.lastReport >= failureReportMillis) {
+				System.err.println("lombok.patcher: script failed: " + f + " unreported=" + f.suppressed);
+				f.suppressed = 0;
+			} else {
+				f.suppressed++;
+				return;
+			}
+			f.lastReport = now;
+		}
+	}
+	
+	/**
+	 * Sets how often scripts added with {@link #addTemporaryScript(PatchScript, long, long, Instrumentation)} from now on are checked
+	 * for having used up their budget. The default is once a second.
+	 */
+	public void setProbeCheckInterval(long millis) {
+		if (millis <= 0) throw new IllegalArgumentException("millis must be positive");
+		this.probeCheckMillis = millis;
+	}
+	
+	/**
+	 * Returns a number that goes up every time a script is added, removed, or replaced, and every time something else that affects the
+	 * result of the scripts, such as the filter, the transplant mapper, or a growth budget, changes.
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Returns the names of the classes that the scripts added, removed, or replaced since the last reload could affect.
+	 * These are the classes {@link #reloadChangedClasses(Instrumentation)} will reload, if they are loaded.
+	 */
+	public Set<String> getPendingReloads() {
+		synchronized (registryLock) {
+			return new HashSet<String>(pendingReloads);
+		}
+	}
+	
+	private static void requireReloadable(PatchScript script, String what) {
+		if (script.patchesOnlyOnFirstLoad()) {
+			throw new IllegalArgumentException(script.getPatchScriptName() + " only patches classes when they first load, so it can't be " + what);
+		}
+	}
+	
+	private void changed(PatchScript script) {
+		version++;
+		pendingReloads.addAll(script.getClassesToReload());
+	}
+	
+	/**
+	 * Called when the result of running the scripts may change even though the scripts themselves didn't, so that results of the
+	 * previous version, such as kept or pre-patched class files, aren't used anymore.
+	 */
+	private void settingsChanged() {
+		synchronized (registryLock) {
+			version++;
+		}
+		clearNegativeCache();
+	}
+	
+	public void addScriptIfWitness(String[] witness, PatchScript script) {
+		synchronized (registryLock) {
+			addWitnessAction(witness, script, false);
+			changed(script);
 		}
 	}
 	
 	public void addScriptIfNotWitness(String[] witness, PatchScript script) {
+		requireReloadable(script, "removed when a witness loads");
+		script.activate();
+		synchronized (registryLock) {
+			addWitnessAction(witness, script, true);
+			scripts.add(script);
+			changed(script);
+		}
+	}
+	
+	private void addWitnessAction(String[] witness, PatchScript script, boolean ifWitnessRemove) {
 		WitnessAction wa = new WitnessAction();
-		wa.ifWitnessRemove = true;
+		wa.ifWitnessRemove = ifWitnessRemove;
 		wa.script = script;
-		scripts.add(script);
 		for (String w : witness) {
 			List<WitnessAction> list = witnessActions.get(w);
 			if (list == null) {
@@ -84,11 +513,379 @@ public class ScriptManager {
 		}
 	}
 	
+	/**
+	 * Limits how many bytes {@code script} may add to any single method. If running the script on a class would make any method in it
+	 * grow by more than that, the result of that script is discarded for that class, and an error is printed.
+	 *
+	 * @param maxGrowthPerMethod The budget in bytes, or a negative number to remove the budget.
+	 */
+	public void setGrowthBudget(PatchScript script, int maxGrowthPerMethod) {
+		if (maxGrowthPerMethod < 0) growthBudgets.remove(script);
+		else growthBudgets.put(script, maxGrowthPerMethod);
+		settingsChanged();
+	}
+	
+	/**
+	 * Turns measuring the bytecode size of patched methods on or off; see {@link #getDiagnostics()} for the results.
+	 */
+	public void setTrackMethodSizes(boolean trackMethodSizes) {
+		diagnostics.setTrackMethodSizes(trackMethodSizes);
+	}
+	
+	public PatchDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+	
+	/**
+	 * Prints the {@link PatchDiagnostics#printReport(PrintStream) diagnostics report} to {@code out} when the JVM shuts down.
+	 * This also happens automatically, to {@code System.err}, if the system property {@code lombok.patcher.sizeReport} is set to {@code true}.
+	 */
+	public void reportAtShutdown(final PrintStream out) {
+		Runtime.getRuntime().addShutdownHook(new Thread("lombok.patcher diagnostics report") {
+			@Override public void run() {
+				diagnostics.printReport(out);
+			}
+		});
+	}
+	
+	/**
+	 * Switches the code generated by {@code script} off or back on, in all classes it has patched or will patch, without
+	 * retransforming anything. While disabled, the patched code behaves as if it wasn't patched by {@code script}.
+	 *
+	 * @throws IllegalArgumentException If {@code script} wasn't built with {@code guarded()}.
+	 */
+	public void setScriptEnabled(PatchScript script, boolean enabled) {
+		HookLinker.setScriptEnabled(switchIdOf(script), enabled);
+	}
+	
+	public boolean isScriptEnabled(PatchScript script) {
+		return HookLinker.isScriptEnabled(switchIdOf(script));
+	}
+	
+	private static int switchIdOf(PatchScript script) {
+		int switchId = script.getSwitchId();
+		if (switchId < 0) throw new IllegalArgumentException("Script " + script.getPatchScriptName() + " cannot be switched off at runtime");
+		return switchId;
+	}
+	
+	/**
+	 * If set, the original and patched class file of every class patched from now on is kept (compressed, and outside of the heap),
+	 * which is what {@link #rollback(Instrumentation, Collection)} and {@link #repatch(Instrumentation, Collection)} need. When a kept
+	 * class is reloaded and neither its class file nor the scripts have changed, the kept result is used instead of running the
+	 * scripts again. Turning this off discards everything kept so far.
+	 * <p>
+	 * This is also turned on if the system property {@code lombok.patcher.keepClassBytes} is set to {@code true}.
+	 */
+	public void setKeepClassBytes(boolean keepClassBytes) {
+		if (!keepClassBytes) classByteStore = null;
+		else if (classByteStore == null) classByteStore = new ClassByteStore();
+	}
+	
+	/**
+	 * If {@code maxSize} is positive, remembers up to that many class files that were left alone (because the filter rejected them, or no
+	 * script changed them), and leaves them alone right away when they are handed to the transformer again, as long as the scripts
+	 * haven't changed. This assumes the filter decides the same way every time for the same class loader, class name, and class file.
+	 * A {@code maxSize} of 0 turns this off, which is the default.
+	 * <p>
+	 * This can also be turned on by setting the system property {@code lombok.patcher.negativeCacheSize} to the size.
+	 */
+	public void setNegativeCacheSize(int maxSize) {
+		if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative");
+		negativeCache = maxSize == 0 ? null : new NegativeCache(maxSize);
+	}
+	
+	/**
+	 * @return The negative cache, or {@code null} if it is off.
+	 * @see #setNegativeCacheSize(int)
+	 */
+	public NegativeCache getNegativeCache() {
+		return negativeCache;
+	}
+	
+	private void clearNegativeCache() {
+		NegativeCache cache = negativeCache;
+		if (cache != null) cache.clear();
+	}
+	
+	/**
+	 * @return The kept class files, or {@code null} if they aren't being kept.
+	 * @see #setKeepClassBytes(boolean)
+	 */
+	public ClassByteStore getClassByteStore() {
+		return classByteStore;
+	}
+	
+	/**
+	 * Restores each of the listed (already loaded) classes to the class file it had before it was patched, straight from the kept class
+	 * files. These classes are not patched again until {@link #repatch(Instrumentation, Collection)} is called for them.
+	 *
+	 * @param classNames Standard java class names (with dots).
+	 * @return The number of classes that were rolled back; classes that aren't loaded or weren't patched are skipped, and so are classes
+	 *     that a script which {@link PatchScript#patchesOnlyOnFirstLoad() only patches on first load} has patched.
+	 * @throws IllegalStateException If class files aren't being kept; see {@link #setKeepClassBytes(boolean)}.
+	 */
+	public int rollback(Instrumentation instrumentation, Collection<String> classNames) {
+		ClassByteStore store = requireClassByteStore();
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			if (!classNames.contains(c.getName())) continue;
+			String className = c.getName().replace('.', '/');
+			byte[] original = store.getOriginal(c.getClassLoader(), className);
+			if (original == null || !getFirstLoadPatches(c.getClassLoader(), className).isEmpty()) continue;
+			setRolledBack(c.getClassLoader(), className, true);
+			definitions.add(new ClassDefinition(c, original));
+		}
+		redefine(instrumentation, definitions);
+		return definitions.size();
+	}
+	
+	private boolean isRolledBack(ClassLoader loader, String className) {
+		synchronized (rolledBack) {
+			Set<String> forLoader = rolledBack.get(loader);
+			return forLoader != null && forLoader.contains(className);
+		}
+	}
+	
+	/**
+	 * Remembers which of {@code firstLoadOnly} would patch a class that is loading for the first time, so that reloading it applies
+	 * exactly those again.
+	 */
+	private void recordFirstLoadPatches(ClassLoader loader, String className, List<PatchScript> firstLoadOnly) {
+		Set<PatchScript> patching = new HashSet<PatchScript>();
+		for (PatchScript script : firstLoadOnly) if (script.wouldPatch(className)) patching.add(script);
+		if (patching.isEmpty()) return;
+		synchronized (firstLoadPatches) {
+			Map<String, Set<PatchScript>> forLoader = firstLoadPatches.get(loader);
+			if (forLoader == null) {
+				forLoader = new HashMap<String, Set<PatchScript>>();
+				firstLoadPatches.put(loader, forLoader);
+			}
+			forLoader.put(className, patching);
+		}
+	}
+	
+	private Set<PatchScript> getFirstLoadPatches(ClassLoader loader, String className) {
+		synchronized (firstLoadPatches) {
+			Map<String, Set<PatchScript>> forLoader = firstLoadPatches.get(loader);
+			Set<PatchScript> patching = forLoader == null ? null : forLoader.get(className);
+			return patching == null ? Collections.<PatchScript>emptySet() : patching;
+		}
+	}
+	
+	/**
+	 * @return {@code true} if this changed whether the class is rolled back.
+	 */
+	private boolean setRolledBack(ClassLoader loader, String className, boolean rollback) {
+		synchronized (rolledBack) {
+			Set<String> forLoader = rolledBack.get(loader);
+			if (!rollback) return forLoader != null && forLoader.remove(className);
+			if (forLoader == null) {
+				forLoader = new HashSet<String>();
+				rolledBack.put(loader, forLoader);
+			}
+			return forLoader.add(className);
+		}
+	}
+	
+	/**
+	 * Undoes {@link #rollback(Instrumentation, Collection)} for the listed classes. The kept patched class file is used if the scripts
+	 * haven't changed since; otherwise, the scripts are run again on the kept original.
+	 *
+	 * @param classNames Standard java class names (with dots).
+	 * @return The number of classes that were patched again.
+	 * @throws IllegalStateException If class files aren't being kept; see {@link #setKeepClassBytes(boolean)}.
+	 */
+	public int repatch(Instrumentation instrumentation, Collection<String> classNames) {
+		ClassByteStore store = requireClassByteStore();
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			if (!classNames.contains(c.getName())) continue;
+			String className = c.getName().replace('.', '/');
+			if (!setRolledBack(c.getClassLoader(), className, false)) continue;
+			byte[] original = store.getOriginal(c.getClassLoader(), className);
+			if (original != null) definitions.add(new ClassDefinition(c, original));
+		}
+		redefine(instrumentation, definitions);
+		return definitions.size();
+	}
+	
+	/**
+	 * Writes all kept class files to the directory configured with the system property {@code lombok.patcher.patchDebugDir}.
+	 *
+	 * @return The number of classes written.
+	 * @throws IllegalStateException If class files aren't being kept, or no debug directory is configured.
+	 */
+	public int exportClassBytes() throws IOException {
+		ClassByteStore store = requireClassByteStore();
+		if (DEBUG_PATCHING == null) throw new IllegalStateException("lombok.patcher.patchDebugDir is not set");
+		return store.exportTo(new File(DEBUG_PATCHING));
+	}
+	
+	private ClassByteStore requireClassByteStore() {
+		ClassByteStore store = classByteStore;
+		if (store == null) throw new IllegalStateException("Class files aren't being kept; call setKeepClassBytes(true) first");
+		return store;
+	}
+	
+	private static void redefine(Instrumentation instrumentation, List<ClassDefinition> definitions) {
+		if (definitions.isEmpty()) return;
+		try {
+			instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[0]));
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Can't redefine already loaded classes. Reason: " + e, e);
+		}
+	}
+	
 	public void setFilter(Filter filter) {
 		this.filter = filter == null ? Filter.ALWAYS : filter;
+		settingsChanged();
+	}
+	
+	/**
+	 * Makes {@link #registerTransformer(Instrumentation)} join the {@link TransformerCoordinator JVM-wide transformer} that all
+	 * script managers which do the same share, instead of registering a transformer of its own. Every class is then handed to one
+	 * transformer, which runs the script managers one after the other, each with its own filter and transplant mapper.
+	 * <p>
+	 * This is also turned on if the system property {@code lombok.patcher.sharedTransformer} is set to {@code true}.
+	 */
+	public void setSharedTransformer(boolean sharedTransformer) {
+		this.sharedTransformer = sharedTransformer;
 	}
 	
 	public void registerTransformer(Instrumentation instrumentation) {
+		if (sharedTransformer) TransformerCoordinator.join(instrumentation, this);
+		else addTransformer(instrumentation, transformer);
+		if (warmUpOnRegister) warmUpInBackground();
+		if (STARTUP_PROFILE != null) recordStartupProfileTo(new File(STARTUP_PROFILE));
+	}
+	
+	/**
+	 * If the system property {@code lombok.patcher.startupProfile} is set to a file name, and that file exists, pre-patches the classes
+	 * it lists (see {@link #prepatch(StartupProfile, int)}). Call this once all scripts are added and the filter and transplant mapper
+	 * are set, as any of those changes throws away the classes pre-patched so far.
+	 *
+	 * @return The number of classes that will be pre-patched.
+	 */
+	public int prepatchStartupProfile() {
+		if (STARTUP_PROFILE == null) return 0;
+		File file = new File(STARTUP_PROFILE);
+		if (!file.isFile()) return 0;
+		try {
+			return prepatch(StartupProfile.read(file), Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+		} catch (Exception e) {
+			System.err.println("Can't read startup profile " + file + ": " + e);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Records the classes patched during this run, which are written to {@code file} when the JVM shuts down. This is what
+	 * {@link #registerTransformer(Instrumentation)} does if the system property {@code lombok.patcher.startupProfile} is set to a file name.
+	 */
+	private void recordStartupProfileTo(final File file) {
+		final StartupProfile recorder = new StartupProfile();
+		recordStartupProfile(recorder);
+		Runtime.getRuntime().addShutdownHook(new Thread("lombok.patcher startup profile") {
+			@Override public void run() {
+				try {
+					recorder.write(file);
+				} catch (IOException e) {
+					System.err.println("Can't write startup profile " + file + ": " + e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * From now on, every class that gets patched is added to {@code profile} (unless it came from somewhere other than a directory
+	 * or jar file). Pass {@code null} to stop recording.
+	 */
+	public void recordStartupProfile(StartupProfile profile) {
+		this.profileRecorder = profile;
+	}
+	
+	/**
+	 * Starts {@code threads} daemon threads that read the class files of the classes in {@code profile} from where they were loaded last
+	 * time, and run the scripts on them, in the order of the profile. When the JVM then asks to transform one of those classes, the
+	 * result is used instead of running the scripts, but only if the class file the JVM has is exactly the one that was pre-patched,
+	 * and the scripts haven't changed since (see {@link #getVersion()}); scripts that are added when a witness class loads also count as a change.
+	 * <p>
+	 * Pre-patching runs the real scripts, so everything they do while patching happens for classes that may not load in this run after
+	 * all: probe scripts register their sites, so those show up in for example {@link SiteCounters#snapshot()} and
+	 * {@link MethodTimings#snapshot()}, with no hits. Diagnostics for pre-patched classes are recorded when they are pre-patched.
+	 * Results the JVM never asks for are kept until {@link #discardPrepatchedClasses()} is called. Nothing that goes wrong while
+	 * pre-patching is reported, nor does it count towards {@link #setFailureThreshold(int) quarantining} the script; such classes are
+	 * simply patched when they load, as usual. Call this once the scripts are in place: changing them throws away the results.
+	 *
+	 * @return The number of classes that will be pre-patched.
+	 */
+	public int prepatch(StartupProfile profile, int threads) {
+		if (profile == null) throw new NullPointerException("profile");
+		if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+		List<StartupProfile.Entry> entries = profile.getEntries();
+		if (entries.isEmpty()) return 0;
+		
+		final Map<String, JarFile> jars = new HashMap<String, JarFile>();
+		final AtomicInteger remaining = new AtomicInteger(entries.size());
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "lombok.patcher prepatch " + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final StartupProfile.Entry entry : entries) pool.execute(new Runnable() {
+			public void run() {
+				try {
+					int scriptsVersion = getVersion();
+					byte[] original = StartupProfile.readClassFile(entry, jars);
+					if (original != null) {
+						prepatched.putIfAbsent(entry.getClassName(), new Prepatched(original, transformer.runScripts(entry.getClassName(), original, null, true), scriptsVersion));
+					}
+				} catch (Throwable ignore) {
+					// It'll be patched when it loads, as usual.
+				} finally {
+					if (remaining.decrementAndGet() == 0) closeAll(jars);
+				}
+			}
+		});
+		pool.shutdown();
+		return entries.size();
+	}
+	
+	private static void closeAll(Map<String, JarFile> jars) {
+		synchronized (jars) {
+			for (JarFile jar : jars.values()) try {
+				jar.close();
+			} catch (IOException ignore) {}
+			jars.clear();
+		}
+	}
+	
+	boolean isPrepatched(String className) {
+		return prepatched.containsKey(className);
+	}
+	
+	/**
+	 * Drops all pre-patched classes that haven't been asked for yet.
+	 *
+	 * @return The number of classes dropped.
+	 */
+	public int discardPrepatchedClasses() {
+		int count = prepatched.size();
+		prepatched.clear();
+		return count;
+	}
+	
+	/**
+	 * Stops patching classes that load from now on. Classes that are already patched stay patched.
+	 */
+	public void unregisterTransformer(Instrumentation instrumentation) {
+		if (!TransformerCoordinator.leave(this)) instrumentation.removeTransformer(transformer);
+	}
+	
+	static void addTransformer(Instrumentation instrumentation, ClassFileTransformer transformer) {
 		try {
 			Method m = Instrumentation.class.getMethod("addTransformer", ClassFileTransformer.class, boolean.class);
 			m.invoke(instrumentation, transformer, true);
@@ -98,11 +895,58 @@ public class ScriptManager {
 		}
 	}
 	
+	ClassFileTransformer getTransformer() {
+		return transformer;
+	}
+	
+	/**
+	 * If set, {@link #registerTransformer(Instrumentation)} also calls {@link #warmUpInBackground()}.
+	 * <p>
+	 * This is also turned on if the system property {@code lombok.patcher.warmUp} is set to {@code true}.
+	 */
+	public void setWarmUpOnRegister(boolean warmUpOnRegister) {
+		this.warmUpOnRegister = warmUpOnRegister;
+	}
+	
+	/**
+	 * Starts a low priority daemon thread that loads ASM, reads and parses the class files of the hooks that the registered scripts
+	 * transplant or insert, and runs a class file through ASM a few times so that the JIT compiles it. All of that would otherwise
+	 * happen while patching the first classes, which usually holds up startup.
+	 *
+	 * @return The thread, which has already been started.
+	 */
+	public Thread warmUpInBackground() {
+		return WarmUp.start(scripts);
+	}
+	
 	public void reloadClasses(Instrumentation instrumentation) {
 		Set<String> toReload = new HashSet<String>();
 		
 		for (PatchScript s : scripts) toReload.addAll(s.getClassesToReload());
+		synchronized (registryLock) {
+			toReload.addAll(pendingReloads);
+			pendingReloads.clear();
+		}
+		
+		retransform(instrumentation, toReload);
+	}
+	
+	/**
+	 * Like {@link #reloadClasses(Instrumentation)}, but only reloads the classes affected by adding, removing, or replacing scripts since
+	 * the last reload (see {@link #getPendingReloads()}). Reloading always starts from the original class file, so classes that only a
+	 * removed script patched end up unpatched.
+	 */
+	public void reloadChangedClasses(Instrumentation instrumentation) {
+		Set<String> toReload;
+		synchronized (registryLock) {
+			toReload = new HashSet<String>(pendingReloads);
+			pendingReloads.clear();
+		}
 		
+		if (!toReload.isEmpty()) retransform(instrumentation, toReload);
+	}
+	
+	private void retransform(Instrumentation instrumentation, Set<String> toReload) {
 		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
 			if (toReload.contains(c.getName())) {
 				try {
@@ -123,9 +967,23 @@ public class ScriptManager {
 	}
 	
 	private static final String DEBUG_PATCHING;
+	private static final boolean REPORT_METHOD_SIZES;
+	private static final boolean KEEP_CLASS_BYTES;
+	private static final boolean WARM_UP;
+	private static final String STARTUP_PROFILE;
+	private static final boolean SHARED_TRANSFORMER;
+	private static final int NEGATIVE_CACHE_SIZE;
+	private static final int FAILURE_THRESHOLD;
 	private static final boolean LOG_TO_STANDARD_ERR = false;
 	static {
 		DEBUG_PATCHING = System.getProperty("lombok.patcher.patchDebugDir", null);
+		REPORT_METHOD_SIZES = Boolean.getBoolean("lombok.patcher.sizeReport");
+		KEEP_CLASS_BYTES = Boolean.getBoolean("lombok.patcher.keepClassBytes");
+		WARM_UP = Boolean.getBoolean("lombok.patcher.warmUp");
+		STARTUP_PROFILE = System.getProperty("lombok.patcher.startupProfile", null);
+		SHARED_TRANSFORMER = Boolean.getBoolean("lombok.patcher.sharedTransformer");
+		NEGATIVE_CACHE_SIZE = Integer.getInteger("lombok.patcher.negativeCacheSize", 0);
+		FAILURE_THRESHOLD = Integer.getInteger("lombok.patcher.failureThreshold", 10);
 	}
 	
 	private final OurClassFileTransformer transformer = new OurClassFileTransformer();
@@ -134,22 +992,48 @@ public class ScriptManager {
 		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
 			if (className == null) return null;
 			
-			List<WitnessAction> actions = witnessActions.get(className);
-			if (actions != null) {
-				for (WitnessAction wa : actions) {
-					if (wa.triggered) continue;
-					wa.triggered = true;
-					if (wa.ifWitnessRemove) {
-						scripts.remove(wa.script);
-						if (LOG_TO_STANDARD_ERR) System.err.println("Removed script: " + wa.script.getPatchScriptName() + " because I saw " + className);
-					} else {
-						scripts.add(wa.script);
-						if (LOG_TO_STANDARD_ERR) System.err.println("Added script: " + wa.script.getPatchScriptName() + " because I saw " + className);
+			NegativeCache negatives = negativeCache;
+			long checksum = 0;
+			if (negatives != null) {
+				checksum = StartupProfile.checksum(classfileBuffer);
+				if (negatives.contains(loader, className, classfileBuffer, checksum, getVersion())) return null;
+			}
+			
+			if (witnessActions.containsKey(className)) {
+				List<PatchScript> removed = new ArrayList<PatchScript>();
+				synchronized (registryLock) {
+					List<WitnessAction> actions = witnessActions.get(className);
+					if (actions != null) {
+						for (WitnessAction wa : actions) {
+							if (wa.triggered) continue;
+							wa.triggered = true;
+							version++;
+							if (wa.ifWitnessRemove) {
+								if (scripts.remove(wa.script)) removed.add(wa.script);
+								if (LOG_TO_STANDARD_ERR) System.err.println("Removed script: " + wa.script.getPatchScriptName() + " because I saw " + className);
+							} else {
+								wa.script.activate();
+								scripts.add(wa.script);
+								if (LOG_TO_STANDARD_ERR) System.err.println("Added script: " + wa.script.getPatchScriptName() + " because I saw " + className);
+							}
+						}
 					}
 				}
+				for (PatchScript script : removed) script.deactivate();
 			}
 			
-			if (!filter.shouldTransform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer)) return null;
+			int scriptsVersion = getVersion();
+			if (!filter.shouldTransform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer)) {
+				if (negatives != null) negatives.put(loader, className, classfileBuffer, checksum, scriptsVersion);
+				return null;
+			}
+			
+			ClassByteStore store = classByteStore;
+			if (store != null) {
+				if (isRolledBack(loader, className)) return null;
+				byte[] kept = store.getPatchedIfCurrent(loader, className, classfileBuffer, scriptsVersion);
+				if (kept != null) return kept;
+			}
 			
 			if (LOG_TO_STANDARD_ERR) for (List<WitnessAction> list : witnessActions.values()) {
 				for (WitnessAction wa : list) {
@@ -160,11 +1044,68 @@ public class ScriptManager {
 				}
 			}
 			
+			DispatchIndex index = dispatchIndex;
+			if (index == null || index.version != scriptsVersion) dispatchIndex = index = new DispatchIndex(scripts, scriptsVersion);
+			
+			// Scripts that only patch on first load run again on a reload only if they were there when the class first loaded.
+			Set<PatchScript> firstLoadScripts = null;
+			if (!index.firstLoadOnly.isEmpty() && index.mightPatch(className)) {
+				if (classBeingRedefined == null) recordFirstLoadPatches(loader, className, index.firstLoadOnly);
+				else firstLoadScripts = getFirstLoadPatches(loader, className);
+			}
+			
+			Prepatched prepatchedResult = prepatched.isEmpty() || classBeingRedefined != null ? null : prepatched.remove(className);
+			byte[] byteCode;
+			if (!index.mightPatch(className)) byteCode = null;
+			else if (prepatchedResult != null && prepatchedResult.isResultFor(classfileBuffer, scriptsVersion)) byteCode = prepatchedResult.patched;
+			else byteCode = runScripts(className, classfileBuffer, firstLoadScripts, false);
+			boolean patched = byteCode != null;
+			if (!patched && negatives != null) negatives.put(loader, className, classfileBuffer, checksum, scriptsVersion);
+			
+			StartupProfile recorder = profileRecorder;
+			if (patched && recorder != null && protectionDomain != null && protectionDomain.getCodeSource() != null) {
+				recorder.record(className, protectionDomain.getCodeSource().getLocation(), classfileBuffer);
+			}
+			if (store != null) {
+				if (patched) store.put(loader, className, classfileBuffer, byteCode, scriptsVersion);
+				else store.remove(loader, className);
+			}
+			if (patched && DEBUG_PATCHING != null) {
+				try {
+					writeArray(DEBUG_PATCHING, className + ".class", byteCode);
+					writeArray(DEBUG_PATCHING, className + "_OLD.class", classfileBuffer);
+				} catch (IOException e) {
+					System.err.println("Can't log patch result.");
+					e.printStackTrace();
+				}
+			}
+			return patched ? byteCode : null;
+		}
+		
+		/**
+		 * Runs all scripts on {@code classfileBuffer}, recording diagnostics as it goes.
+		 *
+		 * @param firstLoadScripts If not {@code null}, the class is being reloaded, and of the scripts that only patch on first load,
+		 *     only these are run.
+		 * @param prepatching If set, a script that fails isn't recorded as having failed; instead, the exception is rethrown, so that the
+		 *     class is patched as usual when it loads.
+		 * @return The patched class file, or {@code null} if no script changed anything.
+		 */
+		byte[] runScripts(String className, byte[] classfileBuffer, Set<PatchScript> firstLoadScripts, boolean prepatching) {
 			byte[] byteCode = classfileBuffer;
 			boolean patched = false;
+			boolean measure = diagnostics.isTrackingMethodSizes() || !growthBudgets.isEmpty();
+			Map<String, Integer> originalSizes = null, sizes = null;
+			Map<String, List<String>> scriptsPerMethod = null;
 			
+			int wrappedCalls = 0, wrappers = 0;
 			for (PatchScript script : scripts) {
+				ScriptFailures failed = failures.isEmpty() ? null : failures.get(script);
+				if (failed != null && failed.quarantined) continue;
+				if (firstLoadScripts != null && script.patchesOnlyOnFirstLoad() && !firstLoadScripts.contains(script)) continue;
 				byte[] transformed = null;
+				PatchDiagnostics.Reports reports = null;
+				if (measure) PatchDiagnostics.startCollectingReports();
 				try {
 					if (LOG_TO_STANDARD_ERR) {
 						if (script.wouldPatch(className)) {
@@ -175,26 +1116,64 @@ public class ScriptManager {
 						transformed = script.patch(className, byteCode, transplantMapper);
 					}
 				} catch (Throwable t) {
-					//Exceptions get silently swallowed by instrumentation, so this is a slight improvement.
-					System.err.printf("Transformer %s failed on %s. Trace:\n", script.getPatchScriptName(), className);
-					t.printStackTrace();
+					if (prepatching) throw new IllegalStateException(script.getPatchScriptName() + " failed on " + className, t);
+					recordFailure(script, className, t);
 					transformed = null;
+				} finally {
+					if (measure) reports = PatchDiagnostics.stopCollectingReports();
+				}
+				if (transformed != null && measure) {
+					if (sizes == null) {
+						sizes = originalSizes = PatchDiagnostics.codeSizes(classfileBuffer);
+						scriptsPerMethod = new HashMap<String, List<String>>();
+					}
+					Map<String, Integer> newSizes = PatchDiagnostics.codeSizes(transformed);
+					if (exceedsGrowthBudget(script, className, sizes, newSizes)) {
+						transformed = null;
+					} else {
+						for (Map.Entry<String, Integer> e : newSizes.entrySet()) {
+							Integer oldSize = sizes.get(e.getKey());
+							if (oldSize == null || oldSize.intValue() == e.getValue().intValue()) continue;
+							List<String> list = scriptsPerMethod.get(e.getKey());
+							if (list == null) {
+								list = new ArrayList<String>();
+								scriptsPerMethod.put(e.getKey(), list);
+							}
+							list.add(script.getPatchScriptName());
+						}
+						if (!reports.sharedExits.isEmpty()) diagnostics.recordSharedExits(className, reports.sharedExits, sizes, newSizes);
+						sizes = newSizes;
+					}
 				}
 				if (transformed != null) {
+					if (failed != null && !prepatching) failed.succeeded();
 					patched = true;
 					byteCode = transformed;
+					if (reports != null) {
+						wrappedCalls += reports.wrappedCalls;
+						wrappers += reports.wrappers;
+					}
 				}
 			}
-			if (patched && DEBUG_PATCHING != null) {
-				try {
-					writeArray(DEBUG_PATCHING, className + ".class", byteCode);
-					writeArray(DEBUG_PATCHING, className + "_OLD.class", classfileBuffer);
-				} catch (IOException e) {
-					System.err.println("Can't log patch result.");
-					e.printStackTrace();
+			if (wrappers > 0) diagnostics.recordWrappers(className, wrappedCalls, wrappers);
+			if (patched && sizes != null) diagnostics.recordSizes(className, originalSizes, sizes, scriptsPerMethod);
+			return patched ? byteCode : null;
+		}
+		
+		private boolean exceedsGrowthBudget(PatchScript script, String className, Map<String, Integer> before, Map<String, Integer> after) {
+			Integer budget = growthBudgets.get(script);
+			if (budget == null) return false;
+			for (Map.Entry<String, Integer> e : after.entrySet()) {
+				Integer oldSize = before.get(e.getKey());
+				if (oldSize == null) continue;
+				int growth = e.getValue() - oldSize;
+				if (growth > budget) {
+					System.err.printf("Transformer %s skipped on %s: it grows %s by %d bytes, but its budget is %d bytes.\n",
+							script.getPatchScriptName(), className, e.getKey(), growth, budget);
+					return true;
 				}
 			}
-			return patched ? byteCode : null;
+			return false;
 		}
 		
 		private void writeArray(String dir, String fileName, byte[] bytes) throws IOException {
@@ -283,5 +1262,6 @@ public class ScriptManager {
 	
 	public void setTransplantMapper(TransplantMapper transplantMapper) {
 		this.transplantMapper = transplantMapper == null ? TransplantMapper.IDENTITY_MAPPER : transplantMapper;
+		settingsChanged();
 	}
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for {@link ProbeSite}s, incremented by patched code. Each site is assigned a slot when it is patched (the same site gets the
+ * same slot if it is patched again), and the patched code passes that slot to {@link #increment(int)} as a constant; counting costs a
+ * static call and an atomic add, and allocates nothing.
+ * <p>
+ * The counters are striped: each thread adds to one of a number of copies of the counter, picked by its thread ID. The copies of a slot
+ * are far apart in memory, so that threads counting the same site don't fight over one cache line. Reading a counter adds up its copies.
+ */
+public final class SiteCounters {
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16) stripes <<= 1;
+		STRIPES = stripes;
+	}
+	
+	private static final Object lock = new Object();
+	private static final Map<ProbeSite, Integer> slots = new HashMap<ProbeSite, Integer>();
+	// Chunks are never replaced, only added, so no increment is ever lost to the array growing.
+	private static volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+	private static volatile ProbeSite[] sites = new ProbeSite[0];
+	
+	private SiteCounters() {}
+	
+	/**
+	 * @return The slot to bake into the patched code for {@code site}.
+	 */
+	public static int register(ProbeSite site) {
+		if (site == null) throw new NullPointerException("site");
+		synchronized (lock) {
+			Integer slot = slots.get(site);
+			if (slot != null) return slot;
+			ProbeSite[] old = sites;
+			int newSlot = old.length;
+			if ((newSlot >>> CHUNK_BITS) == chunks.length) {
+				AtomicLongArray[] updated = new AtomicLongArray[chunks.length + 1];
+				System.arraycopy(chunks, 0, updated, 0, chunks.length);
+				updated[chunks.length] = new AtomicLongArray(CHUNK_SIZE * STRIPES);
+				chunks = updated;
+			}
+			ProbeSite[] updated = new ProbeSite[newSlot + 1];
+			System.arraycopy(old, 0, updated, 0, newSlot);
+			updated[newSlot] = site;
+			slots.put(site, newSlot);
+			sites = updated;
+			return newSlot;
+		}
+	}
+	
+	/**
+	 * Called by patched code.
+	 */
+	public static void increment(int slot) {
+		add(slot, 1);
+	}
+	
+	/**
+	 * Called by patched code.
+	 */
+	public static void add(int slot, long amount) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		chunks[slot >>> CHUNK_BITS].addAndGet(stripe * CHUNK_SIZE + (slot & (CHUNK_SIZE - 1)), amount);
+	}
+	
+	/**
+	 * Called by patched code, right before an array is created: counts it in {@code slot}, and adds its length to {@code lengthSlot}.
+	 *
+	 * @return {@code length}, so that the patched code doesn't need to duplicate it.
+	 */
+	public static int addArray(int length, int slot, int lengthSlot) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		chunks[slot >>> CHUNK_BITS].incrementAndGet(stripe * CHUNK_SIZE + (slot & (CHUNK_SIZE - 1)));
+		// A negative length is about to fail with NegativeArraySizeException; no point counting it as allocated memory.
+		if (length > 0) chunks[lengthSlot >>> CHUNK_BITS].addAndGet(stripe * CHUNK_SIZE + (lengthSlot & (CHUNK_SIZE - 1)), length);
+		return length;
+	}
+	
+	public static long get(int slot) {
+		AtomicLongArray chunk = chunks[slot >>> CHUNK_BITS];
+		int idx = slot & (CHUNK_SIZE - 1);
+		long total = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) total += chunk.get(stripe * CHUNK_SIZE + idx);
+		return total;
+	}
+	
+	/**
+	 * @return The site that was assigned {@code slot}.
+	 */
+	public static ProbeSite getSite(int slot) {
+		return sites[slot];
+	}
+	
+	/**
+	 * @return The count of every registered site, in the order they were registered.
+	 */
+	public static Map<ProbeSite, Long> snapshot() {
+		ProbeSite[] current = sites;
+		Map<ProbeSite, Long> out = new LinkedHashMap<ProbeSite, Long>();
+		for (int slot = 0; slot < current.length; slot++) out.put(current[slot], get(slot));
+		return out;
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * The classes a {@link ScriptManager} patched during a run, in the order it patched them, along with where each class file came from
+ * and a checksum of the class file. On the next run, {@link ScriptManager#prepatch(StartupProfile, int)} uses this to patch those
+ * classes on background threads before the JVM asks for them.
+ * <p>
+ * Only classes loaded from a directory or jar file can be recorded, as those are the only places the class file can be read back from.
+ */
+public final class StartupProfile {
+	private static final String HEADER = "# lombok.patcher startup profile";
+	
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Set<String> recorded = new HashSet<String>();
+	
+	public static final class Entry {
+		private final String className, codeSource;
+		private final int length;
+		private final long checksum;
+		
+		Entry(String className, String codeSource, int length, long checksum) {
+			this.className = className;
+			this.codeSource = codeSource;
+			this.length = length;
+			this.checksum = checksum;
+		}
+		
+		/**
+		 * @return The name of the class, JVM-style (such as {@code java/lang/String}).
+		 */
+		public String getClassName() {
+			return className;
+		}
+		
+		/**
+		 * @return The location of the directory or jar file the class was loaded from.
+		 */
+		public String getCodeSource() {
+			return codeSource;
+		}
+		
+		public int getLength() {
+			return length;
+		}
+		
+		/**
+		 * @return The CRC-32 of the class file as it was before patching.
+		 */
+		public long getChecksum() {
+			return checksum;
+		}
+		
+		@Override public String toString() {
+			return className + " from " + codeSource;
+		}
+	}
+	
+	/**
+	 * Adds a class to this profile, unless it has already been recorded (for example because it was retransformed).
+	 *
+	 * @param codeSource Where the class was loaded from; if this is {@code null} or not a {@code file:} URL, nothing is recorded.
+	 * @param classFile The class file before patching.
+	 */
+	public void record(String className, URL codeSource, byte[] classFile) {
+		if (className == null) throw new NullPointerException("className");
+		if (codeSource == null || !"file".equals(codeSource.getProtocol())) return;
+		String location = codeSource.toExternalForm();
+		synchronized (entries) {
+			if (!recorded.add(className + " " + location)) return;
+			entries.add(new Entry(className, location, classFile.length, checksum(classFile)));
+		}
+	}
+	
+	public List<Entry> getEntries() {
+		synchronized (entries) {
+			return new ArrayList<Entry>(entries);
+		}
+	}
+	
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	
+	/**
+	 * Writes this profile to {@code file}, one class per line, which {@link #read(File)} can read back.
+	 */
+	public void write(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(HEADER + "\n");
+			for (Entry e : getEntries()) {
+				out.write(e.className + "\t" + e.length + "\t" + Long.toHexString(e.checksum) + "\t" + e.codeSource + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * @throws IllegalArgumentException If {@code file} isn't a startup profile.
+	 */
+	public static StartupProfile read(File file) throws IOException {
+		StartupProfile profile = new StartupProfile();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			if (!HEADER.equals(in.readLine())) throw new IllegalArgumentException("Not a startup profile: " + file);
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.length() == 0) continue;
+				String[] parts = line.split("\t", 4);
+				if (parts.length != 4) throw new IllegalArgumentException("Malformed line in startup profile " + file + ": " + line);
+				try {
+					Entry e = new Entry(parts[0], parts[3], Integer.parseInt(parts[1]), Long.parseLong(parts[2], 16));
+					if (profile.recorded.add(e.className + " " + e.codeSource)) profile.entries.add(e);
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Malformed line in startup profile " + file + ": " + line, ex);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return profile;
+	}
+	
+	/**
+	 * Reads the class file of {@code entry} from its code source as it is now.
+	 *
+	 * @param jars Jar files opened so far, by code source; jar files this opens are added, and it's up to the caller to close them.
+	 * @return The class file, or {@code null} if it's not there anymore.
+	 */
+	static byte[] readClassFile(Entry entry, Map<String, JarFile> jars) throws IOException {
+		File location;
+		try {
+			location = new File(new URL(entry.codeSource).toURI());
+		} catch (Exception e) {
+			throw new IOException("Not a file location: " + entry.codeSource);
+		}
+		
+		String resourceName = entry.className + ".class";
+		if (location.isDirectory()) {
+			File f = new File(location, resourceName);
+			return f.isFile() ? readFully(new FileInputStream(f)) : null;
+		}
+		
+		JarFile jar;
+		synchronized (jars) {
+			jar = jars.get(entry.codeSource);
+			if (jar == null) {
+				jar = new JarFile(location);
+				jars.put(entry.codeSource, jar);
+			}
+		}
+		ZipEntry ze = jar.getEntry(resourceName);
+		return ze == null ? null : readFully(jar.getInputStream(ze));
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[8192];
+			for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative {@code long} values (usually nanoseconds) with power-of-two buckets, meant to be recorded into from many
+ * threads at once by patched code. Each thread records into one of a number of stripes, picked by its thread ID, so that threads rarely
+ * write to the same cache line; the stripes are only added up when a {@link #snapshot()} is taken.
+ */
+public final class StripedHistogram {
+	/**
+	 * Bucket 0 holds 0; bucket {@code i} holds the values from {@code 2^(i-1)} up to and including {@code 2^i - 1}.
+	 */
+	public static final int BUCKETS = 64;
+	
+	private static final int SUM = BUCKETS;
+	private static final int ROW = BUCKETS + 8; // the sum, then padding, so that rows of different stripes don't share a cache line.
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) stripes <<= 1;
+		STRIPES = stripes;
+	}
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * ROW);
+	
+	public void record(long value) {
+		if (value < 0) value = 0;
+		int row = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * ROW;
+		cells.incrementAndGet(row + bucketOf(value));
+		cells.addAndGet(row + SUM, value);
+	}
+	
+	public static int bucketOf(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+	
+	/**
+	 * @return The largest value that ends up in bucket {@code bucket}.
+	 */
+	public static long bucketUpperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+	
+	/**
+	 * Adds up all stripes. Values recorded while this runs may or may not be included.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			int row = stripe * ROW;
+			for (int i = 0; i < BUCKETS; i++) counts[i] += cells.get(row + i);
+			sum += cells.get(row + SUM);
+		}
+		return new Snapshot(counts, sum);
+	}
+	
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count, sum;
+		
+		Snapshot(long[] counts, long sum) {
+			this.counts = counts;
+			long count = 0;
+			for (long c : counts) count += c;
+			this.count = count;
+			this.sum = sum;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getSum() {
+			return sum;
+		}
+		
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+		
+		/**
+		 * @return The number of values in each bucket; see {@link StripedHistogram#BUCKETS}.
+		 */
+		public long[] getBucketCounts() {
+			return counts.clone();
+		}
+		
+		/**
+		 * Returns an upper bound for the given percentile: The upper bound of the bucket that holds it, so at most twice the real value.
+		 *
+		 * @param percentile Between 0 and 100.
+		 */
+		public long getPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile must be between 0 and 100");
+			if (count == 0) return 0;
+			long needed = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= needed) return bucketUpperBound(i);
+			}
+			return bucketUpperBound(BUCKETS - 1);
+		}
+		
+		/**
+		 * @return What was recorded since {@code earlier} was taken (of the same histogram).
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			long[] diff = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) diff[i] = counts[i] - earlier.counts[i];
+			return new Snapshot(diff, sum - earlier.sum);
+		}
+		
+		@Override public String toString() {
+			return String.format("%d samples, mean %.0f, p50 <= %d, p99 <= %d, max <= %d",
+					count, getMean(), getPercentile(50), getPercentile(99), getPercentile(100));
+		}
+	}
+}
@@ -22,43 +22,92 @@
 package lombok.patcher;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * The various SetSymbol patch scripts cause events in patched source to emit push and pop calls onto this symbol stack.
  * 
  * Use this class to see if a certain method is in the JVM thread stack (faster than looping through the stack trace).
+ * 
+ * The stack is an immutable linked list, so {@link #snapshot()} costs nothing; a snapshot can be {@link #restore(Snapshot) restored}
+ * on another thread, for example by a task handed to an executor (see {@link #wrap(Runnable)}).
  */
 public class Symbols {
-	private static final ThreadLocal<LinkedList<String>> stack = new ThreadLocal<LinkedList<String>>() {
-		@Override protected LinkedList<String> initialValue() {
-			return new LinkedList<String>();
+	private static final ThreadLocal<Node[]> stack = new ThreadLocal<Node[]>() {
+		@Override protected Node[] initialValue() {
+			return new Node[1];
 		}
 	};
 	
+	private static final class Node {
+		final String symbol;
+		final Node next;
+		final int size;
+		
+		Node(String symbol, Node next) {
+			this.symbol = symbol;
+			this.next = next;
+			this.size = next == null ? 1 : next.size + 1;
+		}
+	}
+	
+	/**
+	 * The symbol stack of a thread at some point in time. Snapshots never change, and are safe to hand to other threads.
+	 */
+	public static final class Snapshot {
+		private static final Snapshot EMPTY = new Snapshot(null);
+		private final Node top;
+		
+		private Snapshot(Node top) {
+			this.top = top;
+		}
+		
+		public boolean isEmpty() {
+			return top == null;
+		}
+		
+		public int size() {
+			return top == null ? 0 : top.size;
+		}
+		
+		/**
+		 * Returns the symbols in this snapshot, in the same order as {@link Symbols#getCopy()}.
+		 */
+		public List<String> toList() {
+			return copyOf(top);
+		}
+		
+		@Override public String toString() {
+			return toList().toString();
+		}
+	}
+	
 	private Symbols() {}
 	
 	/**
 	 * Calls to push are automatically generated by the SetSymbol patch scripts. Do not call it yourself!
 	 */
 	public static void push(String symbol) {
-		stack.get().addFirst(symbol);
+		Node[] s = stack.get();
+		s[0] = new Node(symbol, s[0]);
 	}
 	
 	/**
 	 * Calls to pop are automatically generated by the SetSymbol patch scripts. Do not call it yourself!
 	 */
 	public static void pop() {
-		stack.get().poll();
+		Node[] s = stack.get();
+		if (s[0] != null) s[0] = s[0].next;
 	}
 	
 	public static boolean isEmpty() {
-		return stack.get().isEmpty();
+		return stack.get()[0] == null;
 	}
 	
 	public static int size() {
-		return stack.get().size();
+		Node top = stack.get()[0];
+		return top == null ? 0 : top.size;
 	}
 	
 	/**
@@ -66,7 +115,8 @@ public class Symbols {
 	 */
 	public static boolean hasSymbol(String symbol) {
 		if (symbol == null) throw new NullPointerException("symbol");
-		return stack.get().contains(symbol);
+		for (Node n = stack.get()[0]; n != null; n = n.next) if (symbol.equals(n.symbol)) return true;
+		return false;
 	}
 	
 	/**
@@ -74,7 +124,8 @@ public class Symbols {
 	 */
 	public static boolean hasTail(String symbol) {
 		if (symbol == null) throw new NullPointerException("symbol");
-		return symbol.equals(stack.get().peek());
+		Node top = stack.get()[0];
+		return top != null && symbol.equals(top.symbol);
 	}
 	
 	/**
@@ -82,6 +133,78 @@ public class Symbols {
 	 * It's a copy, so mess with it, save it, modify it in another thread, whatever you want.
 	 */
 	public static List<String> getCopy() {
-		return new ArrayList<String>(stack.get());
+		return copyOf(stack.get()[0]);
+	}
+	
+	private static List<String> copyOf(Node top) {
+		List<String> out = new ArrayList<String>(top == null ? 0 : top.size);
+		for (Node n = top; n != null; n = n.next) out.add(n.symbol);
+		return out;
+	}
+	
+	/**
+	 * Captures the symbol stack of the current thread. This doesn't copy anything.
+	 */
+	public static Snapshot snapshot() {
+		Node top = stack.get()[0];
+		return top == null ? Snapshot.EMPTY : new Snapshot(top);
+	}
+	
+	/**
+	 * Replaces the symbol stack of the current thread with {@code snapshot}, and returns what it was, so that you can put it back:
+	 *
+	 * <pre>
+	 * Symbols.Snapshot previous = Symbols.restore(captured);
+	 * try {
+	 *     ...
+	 * } finally {
+	 *     Symbols.restore(previous);
+	 * }
+	 * </pre>
+	 */
+	public static Snapshot restore(Snapshot snapshot) {
+		if (snapshot == null) throw new NullPointerException("snapshot");
+		Node[] s = stack.get();
+		Node previous = s[0];
+		s[0] = snapshot.top;
+		return previous == null ? Snapshot.EMPTY : new Snapshot(previous);
+	}
+	
+	/**
+	 * Returns a {@code Runnable} that runs {@code task} with the symbol stack the current thread has right now.
+	 * The {@link lombok.patcher.scripts.ScriptBuilder#propagateSymbols() propagateSymbols} script calls this. {@code null} is returned as is.
+	 */
+	public static Runnable wrap(final Runnable task) {
+		if (task == null) return null;
+		final Snapshot captured = snapshot();
+		return new Runnable() {
+			public void run() {
+				Snapshot previous = restore(captured);
+				try {
+					task.run();
+				} finally {
+					restore(previous);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns a {@code Callable} that calls {@code task} with the symbol stack the current thread has right now.
+	 * The {@link lombok.patcher.scripts.ScriptBuilder#propagateSymbols() propagateSymbols} script calls this. {@code null} is returned as is.
+	 */
+	public static <T> Callable<T> wrap(final Callable<T> task) {
+		if (task == null) return null;
+		final Snapshot captured = snapshot();
+		return new Callable<T>() {
+			public T call() throws Exception {
+				Snapshot previous = restore(captured);
+				try {
+					return task.call();
+				} finally {
+					restore(previous);
+				}
+			}
+		};
 	}
 }
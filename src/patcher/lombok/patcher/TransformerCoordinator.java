@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One transformer for all {@link ScriptManager}s that {@link ScriptManager#setSharedTransformer(boolean) share} it, such as those of
+ * different agents in the same JVM. Each class is handed to the script managers in the order they joined; each one sees the result of
+ * the ones before it, and applies its own filter and transplant mapper. Script managers that have none of their scripts targeting a
+ * class pass over it without further work.
+ * <p>
+ * There's one of these for each copy of lombok.patcher: agents that load it from the system class path share it, but agents that
+ * each carry a relocated copy, or load it in a class loader of their own, each have their own.
+ */
+final class TransformerCoordinator implements ClassFileTransformer {
+	private static TransformerCoordinator instance;
+	
+	private final Instrumentation instrumentation;
+	private final List<ScriptManager> members = new CopyOnWriteArrayList<ScriptManager>();
+	
+	private TransformerCoordinator(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+	
+	/**
+	 * Adds {@code manager}, registering the shared transformer with {@code instrumentation} if it's the first.
+	 */
+	static synchronized void join(Instrumentation instrumentation, ScriptManager manager) {
+		if (instance == null) {
+			instance = new TransformerCoordinator(instrumentation);
+			ScriptManager.addTransformer(instrumentation, instance);
+		}
+		if (!instance.members.contains(manager)) instance.members.add(manager);
+	}
+	
+	/**
+	 * Removes {@code manager}; once none are left, the shared transformer is unregistered.
+	 *
+	 * @return {@code true} if {@code manager} had joined.
+	 */
+	static synchronized boolean leave(ScriptManager manager) {
+		if (instance == null || !instance.members.remove(manager)) return false;
+		if (instance.members.isEmpty()) {
+			instance.instrumentation.removeTransformer(instance);
+			instance = null;
+		}
+		return true;
+	}
+	
+	static synchronized int getMemberCount() {
+		return instance == null ? 0 : instance.members.size();
+	}
+	
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		byte[] byteCode = classfileBuffer;
+		boolean patched = false;
+		for (ScriptManager manager : members) {
+			try {
+				byte[] transformed = manager.getTransformer().transform(loader, className, classBeingRedefined, protectionDomain, byteCode);
+				if (transformed != null) {
+					byteCode = transformed;
+					patched = true;
+				}
+			} catch (Throwable t) {
+				//Exceptions get silently swallowed by instrumentation, and they shouldn't stop the other script managers.
+				System.err.printf("Script manager failed on %s. Trace:\n", className);
+				t.printStackTrace();
+			}
+		}
+		return patched ? byteCode : null;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Does ahead of time, on a background thread, what patching the first class would otherwise do on whatever thread happens to load
+ * it (usually the main thread, during startup): loading ASM, reading the class files of hooks that get copied into patched classes,
+ * and running ASM often enough for the JIT to pick it up.
+ * 
+ * @see ScriptManager#warmUpInBackground()
+ */
+final class WarmUp {
+	private static final String[] CLASSES_TO_LOAD = {
+		"org.objectweb.asm.ClassReader", "org.objectweb.asm.ClassWriter", "org.objectweb.asm.MethodWriter", "org.objectweb.asm.SymbolTable",
+		"org.objectweb.asm.Frame", "org.objectweb.asm.commons.AnalyzerAdapter", "org.objectweb.asm.commons.LocalVariablesSorter",
+		"org.objectweb.asm.tree.MethodNode", "org.objectweb.asm.tree.InsnList",
+		"lombok.patcher.HookInliner", "lombok.patcher.MethodLogistics", "lombok.patcher.PatchDiagnostics",
+	};
+	
+	/**
+	 * How often to run a class file through ASM; enough for the JIT to compile the hot loops of {@code ClassReader} and {@code ClassWriter}.
+	 */
+	static final int ROUNDS = 50;
+	
+	private WarmUp() {}
+	
+	static Thread start(final Collection<PatchScript> scripts) {
+		Thread t = new Thread("lombok.patcher warm-up") {
+			@Override public void run() {
+				WarmUp.run(scripts);
+			}
+		};
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+		return t;
+	}
+	
+	/**
+	 * Nothing that goes wrong here is reported: the same work is done again when it's actually needed, and reported there if it fails.
+	 *
+	 * @return The number of hook class files that were read.
+	 */
+	static int run(Collection<PatchScript> scripts) {
+		ClassLoader loader = WarmUp.class.getClassLoader();
+		for (String className : CLASSES_TO_LOAD) {
+			try {
+				Class.forName(className, true, loader);
+			} catch (Throwable ignore) {}
+		}
+		
+		Set<String> read = new HashSet<String>();
+		for (PatchScript script : scripts) for (Hook hook : script.getCopiedHooks()) {
+			String resourceName = "/" + hook.getClassSpec() + ".class";
+			if (read.contains(resourceName)) continue;
+			try {
+				new ClassReader(PatchScript.readStream(resourceName)).accept(new ClassNode(), 0);
+				read.add(resourceName);
+			} catch (Throwable ignore) {}
+		}
+		
+		try {
+			byte[] sample = PatchScript.readResource("/lombok/patcher/ScriptManager.class");
+			PatchScript roundTrip = new RoundTrip();
+			for (int i = 0; i < ROUNDS; i++) roundTrip.patch("lombok/patcher/ScriptManager", sample, TransplantMapper.IDENTITY_MAPPER);
+		} catch (Throwable ignore) {}
+		
+		return read.size();
+	}
+	
+	/**
+	 * Runs a class file through ASM the same way scripts do, without changing it.
+	 */
+	private static final class RoundTrip extends PatchScript {
+		@Override public String getPatchScriptName() {
+			return "warm-up";
+		}
+		
+		@Override public Collection<String> getClassesToReload() {
+			return Collections.emptyList();
+		}
+		
+		@Override public boolean wouldPatch(String className) {
+			return false;
+		}
+		
+		@Override public byte[] patch(String className, byte[] byteCode, TransplantMapper mapper) {
+			return runASM(byteCode, true, true, mapper);
+		}
+		
+		@Override protected ClassVisitor createClassVisitor(ClassWriter writer, String classSpec, TransplantMapper transplantMapper) {
+			return new ClassVisitor(Opcodes.ASM9, writer) {};
+		}
+	}
+}
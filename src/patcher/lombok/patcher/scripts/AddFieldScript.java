@@ -95,4 +95,8 @@ public class AddFieldScript extends PatchScript {
 	@Override public Collection<String> getClassesToReload() {
 		return targetClasses;
 	}
+	
+	@Override public boolean patchesOnlyClassesToReload() {
+		return true;
+	}
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.SiteCounters;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Counts how often each allocation inside the target methods runs: every {@code NEW}, {@code NEWARRAY}, {@code ANEWARRAY} and
+ * {@code MULTIANEWARRAY} instruction is assigned its own slot in {@link SiteCounters} while patching. Optionally, the lengths of the
+ * arrays created by {@code NEWARRAY} and {@code ANEWARRAY} are added up in a second slot per site.
+ * <p>
+ * The counting code can't be switched off at runtime; to get rid of it, remove the script from the {@link lombok.patcher.ScriptManager}
+ * and call {@link lombok.patcher.ScriptManager#reloadChangedClasses(java.lang.instrument.Instrumentation)}, which reloads the patched
+ * classes without it.
+ */
+public final class AllocationCounterScript extends MethodLevelPatchScript {
+	private final boolean arrayLengths;
+	// count slot -> length slot, or -1 if the site doesn't track lengths.
+	private final Map<Integer, Integer> slots = Collections.synchronizedMap(new LinkedHashMap<Integer, Integer>());
+	private final SampleBaselines samples = new SampleBaselines() {
+		@Override long samplesAt(int slot) {
+			return SiteCounters.get(slot);
+		}
+	};
+	
+	@Override public String getPatchScriptName() {
+		return "count allocations in " + describeMatchers();
+	}
+	
+	AllocationCounterScript(List<TargetMatcher> matchers, boolean arrayLengths) {
+		super(matchers);
+		this.arrayLengths = arrayLengths;
+	}
+	
+	/**
+	 * @return The count of every allocation site this script has patched so far.
+	 */
+	public Map<ProbeSite, Long> getCounts() {
+		Map<ProbeSite, Long> out = new LinkedHashMap<ProbeSite, Long>();
+		synchronized (slots) {
+			for (Integer slot : slots.keySet()) out.put(SiteCounters.getSite(slot), SiteCounters.get(slot));
+		}
+		return out;
+	}
+	
+	@Override public long getSamplesTaken() {
+		return samples.getSamplesTaken();
+	}
+	
+	/**
+	 * @return For every array allocation site this script has patched so far, the total length of all arrays created there. Empty unless
+	 *   the script was built with {@code arrayLengths()}.
+	 */
+	public Map<ProbeSite, Long> getArrayLengths() {
+		Map<ProbeSite, Long> out = new LinkedHashMap<ProbeSite, Long>();
+		synchronized (slots) {
+			for (Map.Entry<Integer, Integer> e : slots.entrySet()) {
+				if (e.getValue() != -1) out.put(SiteCounters.getSite(e.getKey()), SiteCounters.get(e.getValue()));
+			}
+		}
+		return out;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				return new CountAllocations(parent, classSpec, name, desc);
+			}
+		});
+	}
+	
+	private static String primitiveArrayName(int operand) {
+		switch (operand) {
+		case Opcodes.T_BOOLEAN: return "boolean";
+		case Opcodes.T_CHAR: return "char";
+		case Opcodes.T_FLOAT: return "float";
+		case Opcodes.T_DOUBLE: return "double";
+		case Opcodes.T_BYTE: return "byte";
+		case Opcodes.T_SHORT: return "short";
+		case Opcodes.T_INT: return "int";
+		case Opcodes.T_LONG: return "long";
+		default: return "?" + operand;
+		}
+	}
+	
+	private class CountAllocations extends SiteTrackingMethodVisitor {
+		CountAllocations(MethodVisitor mv, String ownClassSpec, String methodName, String methodDescriptor) {
+			super(mv, ownClassSpec, methodName, methodDescriptor);
+		}
+		
+		/* Inject, in front of the array creation (the length is on the stack):
+		 * SiteCounters.addArray(length, slot, lengthSlot);
+		 * or, if lengths aren't tracked:
+		 * SiteCounters.increment(slot);
+		 */
+		private void countArray(String description) {
+			ProbeSite site = nextSite(description);
+			int slot = SiteCounters.register(site);
+			samples.register(slot);
+			if (!arrayLengths) {
+				slots.put(slot, -1);
+				generateIncrement(slot);
+				return;
+			}
+			int lengthSlot = SiteCounters.register(new ProbeSite(site.getClassSpec(), site.getMethodName(), site.getDescriptor(),
+				site.getInstructionIndex(), site.getLine(), description + " length"));
+			slots.put(slot, lengthSlot);
+			mv.visitLdcInsn(Integer.valueOf(slot));
+			mv.visitLdcInsn(Integer.valueOf(lengthSlot));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/SiteCounters", "addArray", "(III)I", false);
+		}
+		
+		private void generateIncrement(int slot) {
+			mv.visitLdcInsn(Integer.valueOf(slot));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/SiteCounters", "increment", "(I)V", false);
+		}
+		
+		/* Inject, right after the NEW (and not in front of it; stack map frames refer to the uninitialized object by the position of its
+		 * NEW instruction, which must therefore stay where it is):
+		 * SiteCounters.increment(slot);
+		 */
+		@Override public void visitTypeInsn(int opcode, String type) {
+			if (opcode == Opcodes.NEW) {
+				int slot = SiteCounters.register(nextSite("new " + type));
+				samples.register(slot);
+				slots.put(slot, -1);
+				super.visitTypeInsn(opcode, type);
+				generateIncrement(slot);
+				return;
+			}
+			if (opcode == Opcodes.ANEWARRAY) countArray("anewarray " + type);
+			super.visitTypeInsn(opcode, type);
+		}
+		
+		@Override public void visitIntInsn(int opcode, int operand) {
+			if (opcode == Opcodes.NEWARRAY) countArray("newarray " + primitiveArrayName(operand));
+			super.visitIntInsn(opcode, operand);
+		}
+		
+		@Override public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+			int slot = SiteCounters.register(nextSite("multianewarray " + descriptor));
+			samples.register(slot);
+			slots.put(slot, -1);
+			super.visitMultiANewArrayInsn(descriptor, numDimensions);
+			generateIncrement(slot);
+		}
+	}
+}
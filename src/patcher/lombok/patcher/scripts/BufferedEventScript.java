@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.List;
+import java.util.Set;
+
+import lombok.patcher.EventRing;
+import lombok.patcher.Hook;
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.MethodTarget;
+import lombok.patcher.StackRequest;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Like a {@link WrapReturnValuesScript} or {@link WrapMethodCallScript} with a wrapper that returns {@code void}, except that instead
+ * of calling a hook, the requested values are put in an {@link EventRing} as one event, and the target carries on right away. The
+ * ring's handler gets the events later, in batches, on a background thread.
+ * 
+ * An event is an {@code Object[]} with one element per requested {@link StackRequest}, in the order of that enum, with primitives boxed.
+ * Without a call to wrap, the event is published in front of every return of the target, and the return value is that of the target;
+ * otherwise, it's published right after every call to the wrapped method, and the return value is that of the call.
+ */
+public final class BufferedEventScript extends MethodLevelPatchScript {
+	private static final String EVENT_RING = "lombok/patcher/EventRing";
+	
+	private final Hook callToWrap;
+	private final Set<StackRequest> requests;
+	private final EventRing ring;
+	
+	@Override public String getPatchScriptName() {
+		return "buffer events " + (callToWrap == null ? "on return" : "after " + callToWrap.getMethodName()) + " in " + describeMatchers();
+	}
+	
+	BufferedEventScript(List<TargetMatcher> matchers, Hook callToWrap, Set<StackRequest> requests, EventRing ring) {
+		super(matchers);
+		if (ring == null) throw new NullPointerException("ring");
+		this.callToWrap = callToWrap;
+		this.requests = requests;
+		this.ring = ring;
+	}
+	
+	/**
+	 * @return The ring this script publishes to; use it to read the drop counters, or to start and stop it if the script isn't run
+	 *     by a {@link lombok.patcher.ScriptManager}.
+	 */
+	public EventRing getRing() {
+		return ring;
+	}
+	
+	@Override public void activate() {
+		ring.start();
+	}
+	
+	/**
+	 * Waits for the consumer to handle what is in the ring.
+	 */
+	@Override public void deactivate() {
+		try {
+			ring.stop();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				return new PublishEvents(parent, logistics, desc);
+			}
+		});
+	}
+	
+	private class PublishEvents extends MethodVisitor {
+		private final MethodLogistics logistics;
+		private final String returnType;
+		private final Type[] paramTypes;
+		
+		PublishEvents(MethodVisitor mv, MethodLogistics logistics, String desc) {
+			super(Opcodes.ASM9, mv);
+			this.logistics = logistics;
+			this.returnType = Type.getReturnType(desc).getDescriptor();
+			this.paramTypes = Type.getArgumentTypes(desc);
+		}
+		
+		@Override public void visitInsn(int opcode) {
+			if (callToWrap == null && opcode == logistics.getReturnOpcode()) generatePublish(returnType);
+			super.visitInsn(opcode);
+		}
+		
+		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			super.visitMethodInsn(opcode, owner, name, desc, itf);
+			if (callToWrap != null && callToWrap.getClassSpec().equals(owner) && callToWrap.getMethodName().equals(name) &&
+			    callToWrap.getMethodDescriptor().equals(desc)) {
+				generatePublish(callToWrap.isConstructor() ? "Ljava/lang/Object;" : MethodTarget.decomposeFullDesc(desc).get(0));
+			}
+		}
+		
+		/* Inject, with the return value (if any) on the stack, and leaving it there:
+		 * EventRing.publish(new Object[] {returnValue, this, param1, ...}, id);
+		 * Only the requested values go in the array.
+		 */
+		private void generatePublish(String valueType) {
+			int size = requests.size();
+			int idx = 0;
+			if (requests.contains(StackRequest.RETURN_VALUE)) {
+				if (valueType.equals("V")) {
+					newEventArray(size);
+				} else {
+					MethodLogistics.generateDupForType(valueType, mv);
+					MethodLogistics.generateBoxForType(valueType, mv);
+					newEventArray(size);
+					// value, array -> array, array, 0, value
+					mv.visitInsn(Opcodes.DUP_X1);
+					mv.visitInsn(Opcodes.SWAP);
+					pushInt(0);
+					mv.visitInsn(Opcodes.SWAP);
+					mv.visitInsn(Opcodes.AASTORE);
+				}
+				idx++;
+			} else {
+				newEventArray(size);
+			}
+			
+			if (requests.contains(StackRequest.THIS)) {
+				mv.visitInsn(Opcodes.DUP);
+				pushInt(idx++);
+				logistics.generateLoadOpcodeForThis(mv);
+				mv.visitInsn(Opcodes.AASTORE);
+			}
+			
+			for (StackRequest param : StackRequest.PARAMS_IN_ORDER) {
+				if (!requests.contains(param)) continue;
+				mv.visitInsn(Opcodes.DUP);
+				pushInt(idx++);
+				logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
+				MethodLogistics.generateBoxForType(paramTypes[param.getParamPos()].getDescriptor(), mv);
+				mv.visitInsn(Opcodes.AASTORE);
+			}
+			
+			mv.visitLdcInsn(Integer.valueOf(ring.getId()));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, EVENT_RING, "publish", "([Ljava/lang/Object;I)V", false);
+		}
+		
+		private void newEventArray(int size) {
+			pushInt(size);
+			mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+		}
+		
+		private void pushInt(int value) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		}
+	}
+}
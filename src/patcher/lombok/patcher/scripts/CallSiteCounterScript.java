@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009-2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.patcher.Hook;
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.SiteCounters;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Counts how often each call to a given method (or to any method), inside the target methods, is executed. Every such call instruction
+ * is assigned its own slot in {@link SiteCounters} while patching, and is preceded by an increment of that slot.
+ */
+public final class CallSiteCounterScript extends MethodLevelPatchScript {
+	private final List<Hook> callsToCount;
+	private final Set<Integer> slots = Collections.synchronizedSet(new LinkedHashSet<Integer>());
+	private final SampleBaselines samples = new SampleBaselines() {
+		@Override long samplesAt(int slot) {
+			return SiteCounters.get(slot);
+		}
+	};
+	
+	@Override public String getPatchScriptName() {
+		if (callsToCount.isEmpty()) return "count calls in " + describeMatchers();
+		StringBuilder names = new StringBuilder();
+		for (Hook h : callsToCount) names.append(names.length() == 0 ? "" : ", ").append(h.getMethodName());
+		return "count calls to " + names + " in " + describeMatchers();
+	}
+	
+	CallSiteCounterScript(List<TargetMatcher> matchers, List<Hook> callsToCount) {
+		super(matchers);
+		this.callsToCount = new ArrayList<Hook>(callsToCount);
+	}
+	
+	/**
+	 * @return The count of every call site this script has patched so far.
+	 */
+	public Map<ProbeSite, Long> getCounts() {
+		Map<ProbeSite, Long> out = new LinkedHashMap<ProbeSite, Long>();
+		synchronized (slots) {
+			for (Integer slot : slots) out.put(SiteCounters.getSite(slot), SiteCounters.get(slot));
+		}
+		return out;
+	}
+	
+	@Override public long getSamplesTaken() {
+		return samples.getSamplesTaken();
+	}
+	
+	private boolean shouldCount(String owner, String name, String desc) {
+		if (callsToCount.isEmpty()) return true;
+		for (Hook h : callsToCount) {
+			if (h.getClassSpec().equals(owner) && h.getMethodName().equals(name) && h.getMethodDescriptor().equals(desc)) return true;
+		}
+		return false;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				return new CountCalls(parent, classSpec, name, desc);
+			}
+		});
+	}
+	
+	private class CountCalls extends SiteTrackingMethodVisitor {
+		CountCalls(MethodVisitor mv, String ownClassSpec, String methodName, String methodDescriptor) {
+			super(mv, ownClassSpec, methodName, methodDescriptor);
+		}
+		
+		/* Inject, in front of the call:
+		 * SiteCounters.increment(slot);
+		 */
+		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			if (shouldCount(owner, name, desc)) {
+				int slot = SiteCounters.register(nextSite("call " + owner + "." + name + desc));
+				slots.add(slot);
+				samples.register(slot);
+				mv.visitLdcInsn(Integer.valueOf(slot));
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/SiteCounters", "increment", "(I)V", false);
+			}
+			super.visitMethodInsn(opcode, owner, name, desc, itf);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.SiteCounters;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Counts how often each target method is called, by incrementing its slot in {@link SiteCounters} on entry. This is about the
+ * cheapest probe there is, which makes it suitable for finding out which of many candidate methods are hot; see {@link TieredProbe}.
+ */
+public final class EntryCounterScript extends MethodLevelPatchScript {
+	private final Set<Integer> slots = Collections.synchronizedSet(new LinkedHashSet<Integer>());
+	private final SampleBaselines samples = new SampleBaselines() {
+		@Override long samplesAt(int slot) {
+			return SiteCounters.get(slot);
+		}
+	};
+	
+	@Override public String getPatchScriptName() {
+		return "count entries of " + describeMatchers();
+	}
+	
+	EntryCounterScript(List<TargetMatcher> matchers) {
+		super(matchers);
+	}
+	
+	/**
+	 * @return The number of calls of every method this script has patched so far. The sites have an instruction index of -1.
+	 */
+	public Map<ProbeSite, Long> getCounts() {
+		Map<ProbeSite, Long> out = new LinkedHashMap<ProbeSite, Long>();
+		synchronized (slots) {
+			for (Integer slot : slots) out.put(SiteCounters.getSite(slot), SiteCounters.get(slot));
+		}
+		return out;
+	}
+	
+	@Override public long getSamplesTaken() {
+		return samples.getSamplesTaken();
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				return new CountEntries(parent, new ProbeSite(classSpec, name, desc, -1, -1, "entry"));
+			}
+		});
+	}
+	
+	private class CountEntries extends MethodVisitor {
+		private final ProbeSite site;
+		
+		CountEntries(MethodVisitor mv, ProbeSite site) {
+			super(Opcodes.ASM9, mv);
+			this.site = site;
+		}
+		
+		/* Inject:
+		 * SiteCounters.increment(slot);
+		 */
+		@Override public void visitCode() {
+			super.visitCode();
+			int slot = SiteCounters.register(site);
+			slots.add(slot);
+			samples.register(slot);
+			mv.visitLdcInsn(Integer.valueOf(slot));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/SiteCounters", "increment", "(I)V", false);
+		}
+	}
+}
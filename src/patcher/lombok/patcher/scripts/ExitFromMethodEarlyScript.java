@@ -21,11 +21,16 @@
  */
 package lombok.patcher.scripts;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import lombok.patcher.Hook;
+import lombok.patcher.HookLinker;
 import lombok.patcher.MethodLogistics;
+import lombok.patcher.NotHandled;
 import lombok.patcher.StackRequest;
 import lombok.patcher.TargetMatcher;
 import lombok.patcher.TransplantMapper;
@@ -34,64 +39,219 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 /**
  * Receive (optional) 'this' reference as well as any parameters, then choose to return early with provided value, or let
  * the method continue.
+ * 
+ * In single-call mode there is no decision hook; the value hook is called once, and its result is returned unless it is the sentinel,
+ * in which case the sentinel is discarded and the method continues.
  */
 public class ExitFromMethodEarlyScript extends MethodLevelPatchScript {
 	private final Hook decisionWrapper, valueWrapper;
 	private final Set<StackRequest> requests;
-	private final boolean transplant, insert;
+	private final boolean transplant, insert, dynamic, guarded, outline;
 	private final boolean insertCallOnly;
+	private final boolean singleCall;
+	private final Object sentinel;
 	
 	@Override public String getPatchScriptName() {
 		return "Exit Early from " + describeMatchers();
 	}
 	
-	ExitFromMethodEarlyScript(List<TargetMatcher> matchers, Hook decisionWrapper, Hook valueWrapper, boolean transplant, boolean insert, Set<StackRequest> requests) {
+	ExitFromMethodEarlyScript(List<TargetMatcher> matchers, Hook decisionWrapper, Hook valueWrapper, boolean transplant, boolean insert, boolean dynamic, boolean guarded, boolean outline, boolean singleCall, Object sentinel, Set<StackRequest> requests) {
 		super(matchers);
 		this.decisionWrapper = decisionWrapper;
 		this.valueWrapper = valueWrapper;
 		this.requests = requests;
 		this.transplant = transplant;
 		this.insert = insert;
+		this.dynamic = dynamic || guarded;
+		this.guarded = guarded;
+		this.outline = outline;
+		this.singleCall = singleCall;
+		this.sentinel = sentinel;
 		this.insertCallOnly = decisionWrapper != null && decisionWrapper.getMethodDescriptor().endsWith(")V");
 		if (!this.insertCallOnly && decisionWrapper != null && !decisionWrapper.getMethodDescriptor().endsWith(")Z")) {
 			throw new IllegalArgumentException("The decisionWrapper method must either return 'boolean' or return 'void'.");
 		}
+		if (singleCall && (decisionWrapper != null || valueWrapper == null)) {
+			throw new IllegalArgumentException("A sentinel requires a valueWrapper method and no decisionWrapper method.");
+		}
+		if (guarded && decisionWrapper == null && !singleCall) {
+			throw new IllegalArgumentException("Without a decisionWrapper or a sentinel, exiting early cannot be switched off.");
+		}
 		assert !(insert && transplant);
 	}
 	
+	@Override protected boolean insertsHooks() {
+		return insert;
+	}
+	
+	@Override public Collection<Hook> getCopiedHooks() {
+		List<Hook> hooks = new ArrayList<Hook>();
+		if (transplant || insert) {
+			if (decisionWrapper != null) hooks.add(decisionWrapper);
+			if (valueWrapper != null) hooks.add(valueWrapper);
+		}
+		return hooks;
+	}
+	
+	@Override protected boolean isGuarded() {
+		return guarded;
+	}
+	
+	@Override protected void checkCanBeSampled() {
+		if (decisionWrapper == null && !singleCall) {
+			throw new IllegalArgumentException("Without a decisionWrapper or a sentinel, exiting early cannot be sampled.");
+		}
+	}
+	
+	/**
+	 * The hook that decides whether to exit early: when sampled, this is the one that is skipped on unsampled calls.
+	 */
+	private Hook getDecidingHook() {
+		return singleCall ? valueWrapper : decisionWrapper;
+	}
+	
 	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		final boolean[] patchedAny = new boolean[1];
+		final boolean[] outlineNeeded = new boolean[1];
+		final Set<String> existingMethods = new HashSet<String>();
+		
 		MethodPatcher patcher = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
 			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				if (singleCall) checkSentinel(name, desc);
+				patchedAny[0] = true;
 				if (valueWrapper == null && !insertCallOnly && logistics.getReturnOpcode() != Opcodes.RETURN) {
 					throw new IllegalStateException("method " + name + desc + " must return something, but " +
 							"you did not provide a value hook method.");
 				}
-				return new ExitEarly(parent, logistics, classSpec);
+				if (outline && decisionWrapper != null && !insertCallOnly && logistics.getReturnOpcode() != Opcodes.RETURN) outlineNeeded[0] = true;
+				return new ExitEarly(parent, logistics, classSpec, desc);
+			}
+		}) {
+			@Override public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				existingMethods.add(name + desc);
+				return super.visitMethod(access, name, desc, signature, exceptions);
+			}
+			
+			@Override public void visitEnd() {
+				if (outlineNeeded[0] && !existingMethods.contains(getOutlinedMethodName() + valueWrapper.getMethodDescriptor())) {
+					makeOutlinedMethod(this, classSpec);
+				}
+				if (patchedAny[0] && isSampled()) {
+					// Skipped, the hook returns what it would when switched off: 'don't exit early'.
+					if (!singleCall) makeSampledMethod(this, classSpec, decisionWrapper, transplant, insert, HookLinker.WHEN_DISABLED_RETURN_DEFAULT, null);
+					else if (sentinel == NotHandled.NOT_HANDLED) makeSampledMethod(this, classSpec, valueWrapper, transplant, insert, HookLinker.WHEN_DISABLED_RETURN_NOT_HANDLED, null);
+					else if (sentinel == null) makeSampledMethod(this, classSpec, valueWrapper, transplant, insert, HookLinker.WHEN_DISABLED_RETURN_DEFAULT, null);
+					else makeSampledMethod(this, classSpec, valueWrapper, transplant, insert, HookLinker.WHEN_DISABLED_RETURN_CONSTANT, constantOf(sentinel));
+				}
+				super.visitEnd();
 			}
-		});
+		};
 		
 		if (transplant) {
 			patcher.addTransplant(decisionWrapper);
 			if (valueWrapper != null) patcher.addTransplant(valueWrapper);
 		}
+		if (guarded && singleCall) {
+			// Disabled, the value hook returns the sentinel, so the method continues.
+			if (sentinel == NotHandled.NOT_HANDLED) patcher.addGuardedHook(valueWrapper, getSwitchId(), HookLinker.WHEN_DISABLED_RETURN_NOT_HANDLED, null);
+			else if (sentinel == null) patcher.addGuardedHook(valueWrapper, getSwitchId(), HookLinker.WHEN_DISABLED_RETURN_DEFAULT, null);
+			else patcher.addGuardedHook(valueWrapper, getSwitchId(), HookLinker.WHEN_DISABLED_RETURN_CONSTANT, constantOf(sentinel));
+		} else if (guarded) {
+			// Disabled, the decision hook returns false (or does nothing), so the value hook is never reached.
+			patcher.addGuardedHook(decisionWrapper, getSwitchId(), HookLinker.WHEN_DISABLED_RETURN_DEFAULT, null);
+			if (valueWrapper != null) patcher.addDynamicHook(valueWrapper);
+		} else if (dynamic) {
+			if (decisionWrapper != null) patcher.addDynamicHook(decisionWrapper);
+			if (valueWrapper != null) patcher.addDynamicHook(valueWrapper);
+		}
 		return patcher;
 	}
 	
+	/**
+	 * The name of the synthetic method holding the code that runs when exiting early; there is no need for one per patched method,
+	 * as they'd all be the same. The owner of the value hook is part of the name, as another script may outline a hook with the same
+	 * name and descriptor from another class into the same class.
+	 */
+	private String getOutlinedMethodName() {
+		return "$lombok$$exitEarly$" + valueWrapper.getClassSpec().replace('/', '$') + "$" + valueWrapper.getMethodName();
+	}
+	
+	private void makeOutlinedMethod(MethodPatcher patcher, String classSpec) {
+		String desc = valueWrapper.getMethodDescriptor();
+		MethodVisitor mv = patcher.createMethod(Opcodes.ACC_SYNTHETIC | Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, getOutlinedMethodName(), desc);
+		MethodLogistics logistics = new MethodLogistics(Opcodes.ACC_STATIC, desc);
+		
+		mv.visitCode();
+		for (int i = 0; i < logistics.getParamCount(); i++) logistics.generateLoadOpcodeForParam(i, mv);
+		generateValueWrapperCall(mv, classSpec);
+		logistics.generateReturnOpcode(mv);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+	
+	private void checkSentinel(String name, String desc) {
+		Type returnType = Type.getReturnType(desc);
+		Type hookReturnType = Type.getReturnType(valueWrapper.getMethodDescriptor());
+		String problem = null;
+		switch (returnType.getSort()) {
+		case Type.VOID:
+			problem = "returns void; use a decision hook instead";
+			break;
+		case Type.OBJECT:
+		case Type.ARRAY:
+			if (hookReturnType.getSort() != Type.OBJECT && hookReturnType.getSort() != Type.ARRAY) problem = "returns an object, but the value hook does not";
+			else if (sentinel != null && sentinel != NotHandled.NOT_HANDLED) problem = "returns an object; the sentinel must be null or NOT_HANDLED";
+			break;
+		case Type.BOOLEAN:
+			if (!(sentinel instanceof Boolean)) problem = "returns a boolean; the sentinel must be a Boolean";
+			break;
+		case Type.CHAR:
+			if (!(sentinel instanceof Character) && !(sentinel instanceof Number)) problem = "returns a char; the sentinel must be a Character";
+			break;
+		default:
+			if (!(sentinel instanceof Number)) problem = "returns a primitive; the sentinel must be a boxed primitive";
+		}
+		if (problem == null && returnType.getSort() != Type.OBJECT && returnType.getSort() != Type.ARRAY && !returnType.equals(hookReturnType)) {
+			problem = "returns " + returnType.getClassName() + ", but the value hook returns " + hookReturnType.getClassName();
+		}
+		if (problem != null) throw new IllegalStateException("method " + name + desc + " " + problem + ".");
+	}
+	
+	private void generateValueWrapperCall(MethodVisitor mv, String ownClassSpec) {
+		if (insert) insertMethod(valueWrapper, mv);
+		else mv.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : valueWrapper.getClassSpec(),
+				valueWrapper.getMethodName(), valueWrapper.getMethodDescriptor(), false);
+	}
+	
+	private void generateSampledCall(MethodVisitor mv, String ownClassSpec) {
+		Hook hook = getDecidingHook();
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, ownClassSpec, getSampledMethodName(hook), hook.getMethodDescriptor(), false);
+	}
+	
 	private class ExitEarly extends MethodVisitor {
 		private final MethodLogistics logistics;
 		private final String ownClassSpec;
+		private final Type returnType;
 		
-		public ExitEarly(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec) {
+		public ExitEarly(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String desc) {
 			super(Opcodes.ASM9, mv);
 			this.logistics = logistics;
 			this.ownClassSpec = ownClassSpec;
+			this.returnType = Type.getReturnType(desc);
 		}
 		
 		@Override public void visitCode() {
+			if (singleCall) {
+				insertSingleCall();
+				super.visitCode();
+				return;
+			}
+			
 			if (decisionWrapper == null) {
 				//Always return early.
 				if (logistics.getReturnOpcode() == Opcodes.RETURN) {
@@ -109,7 +269,8 @@ public class ExitFromMethodEarlyScript extends MethodLevelPatchScript {
 				logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
 			}
 			
-			if (insert) insertMethod(decisionWrapper, mv);
+			if (isSampled()) generateSampledCall(mv, ownClassSpec);
+			else if (insert) insertMethod(decisionWrapper, mv);
 			else super.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : decisionWrapper.getClassSpec(),
 					decisionWrapper.getMethodName(), decisionWrapper.getMethodDescriptor(), false);
 			
@@ -138,9 +299,8 @@ public class ExitFromMethodEarlyScript extends MethodLevelPatchScript {
 					if (!requests.contains(param)) continue;
 					logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
 				}
-				if (insert) insertMethod(valueWrapper, mv);
-				else super.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : valueWrapper.getClassSpec(),
-						valueWrapper.getMethodName(), valueWrapper.getMethodDescriptor(), false);
+				if (outline) mv.visitMethodInsn(Opcodes.INVOKESTATIC, ownClassSpec, getOutlinedMethodName(), valueWrapper.getMethodDescriptor(), false);
+				else generateValueWrapperCall(mv, ownClassSpec);
 				logistics.generateReturnOpcode(mv);
 			}
 			mv.visitLabel(label0);
@@ -159,5 +319,78 @@ public class ExitFromMethodEarlyScript extends MethodLevelPatchScript {
 					valueWrapper.getMethodName(), valueWrapper.getMethodDescriptor(), false);
 			logistics.generateReturnOpcode(mv);
 		}
+		
+		/* Inject:
+		 * result = invokeValueHook;
+		 * if (result != sentinel) xRETURN (cast) result;
+		 * pop result;
+		 */
+		private void insertSingleCall() {
+			if (requests.contains(StackRequest.THIS)) logistics.generateLoadOpcodeForThis(mv);
+			for (StackRequest param : StackRequest.PARAMS_IN_ORDER) {
+				if (!requests.contains(param)) continue;
+				logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
+			}
+			if (isSampled()) generateSampledCall(mv, ownClassSpec);
+			else generateValueWrapperCall(mv, ownClassSpec);
+			
+			Type hookReturnType = Type.getReturnType(valueWrapper.getMethodDescriptor());
+			Label proceed = new Label();
+			MethodLogistics.generateDupForType(hookReturnType.getDescriptor(), mv);
+			switch (hookReturnType.getSort()) {
+			case Type.OBJECT:
+			case Type.ARRAY:
+				if (sentinel == null) {
+					mv.visitJumpInsn(Opcodes.IFNULL, proceed);
+				} else {
+					mv.visitFieldInsn(Opcodes.GETSTATIC, "lombok/patcher/NotHandled", "NOT_HANDLED", "Ljava/lang/Object;");
+					mv.visitJumpInsn(Opcodes.IF_ACMPEQ, proceed);
+				}
+				break;
+			case Type.LONG:
+				mv.visitLdcInsn(Long.valueOf(((Number) sentinel).longValue()));
+				mv.visitInsn(Opcodes.LCMP);
+				mv.visitJumpInsn(Opcodes.IFEQ, proceed);
+				break;
+			case Type.FLOAT:
+				// Compared bit-wise, so that NaN works as a sentinel.
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+				mv.visitLdcInsn(Integer.valueOf(Float.floatToIntBits(((Number) sentinel).floatValue())));
+				mv.visitJumpInsn(Opcodes.IF_ICMPEQ, proceed);
+				break;
+			case Type.DOUBLE:
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+				mv.visitLdcInsn(Long.valueOf(Double.doubleToLongBits(((Number) sentinel).doubleValue())));
+				mv.visitInsn(Opcodes.LCMP);
+				mv.visitJumpInsn(Opcodes.IFEQ, proceed);
+				break;
+			default:
+				mv.visitLdcInsn(Integer.valueOf(intValueOf(sentinel)));
+				mv.visitJumpInsn(Opcodes.IF_ICMPEQ, proceed);
+			}
+			
+			boolean isObject = returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY;
+			if (isObject && !returnType.equals(hookReturnType)) {
+				mv.visitTypeInsn(Opcodes.CHECKCAST, returnType.getInternalName());
+			}
+			logistics.generateReturnOpcode(mv);
+			mv.visitLabel(proceed);
+			mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {MethodLogistics.frameTypeOf(hookReturnType.getDescriptor())});
+			mv.visitInsn(hookReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+		}
+	}
+	
+	/**
+	 * Class file constants can't be a {@code Boolean} or {@code Character}.
+	 */
+	private static Object constantOf(Object sentinel) {
+		if (sentinel instanceof Boolean || sentinel instanceof Character) return intValueOf(sentinel);
+		return sentinel;
+	}
+	
+	private static int intValueOf(Object sentinel) {
+		if (sentinel instanceof Boolean) return ((Boolean) sentinel).booleanValue() ? 1 : 0;
+		if (sentinel instanceof Character) return ((Character) sentinel).charValue();
+		return ((Number) sentinel).intValue();
 	}
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009-2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import lombok.patcher.MemoCache;
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.StackRequest;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
+
+/**
+ * Caches the results of the target method in a {@link MemoCache}, keyed on the requested parameters (and/or {@code this}). On entry,
+ * the cache is consulted, and if it has a result for the key, that is returned immediately; otherwise, the method runs as normal and
+ * every value it returns is stored in the cache.
+ * 
+ * The key is built once, on entry, and kept in a new local, so the result is stored under the same key even if the target assigns new
+ * values to its parameters. The target should be free of side effects, as it won't run at all on a hit.
+ */
+public final class MemoizeScript extends MethodLevelPatchScript {
+	private static final String MEMO_CACHE = "lombok/patcher/MemoCache";
+	
+	private final Set<StackRequest> requests;
+	private final MemoCache cache;
+	
+	@Override public String getPatchScriptName() {
+		return "memoize " + describeMatchers();
+	}
+	
+	MemoizeScript(List<TargetMatcher> matchers, Set<StackRequest> requests, MemoCache cache) {
+		super(matchers);
+		if (cache == null) throw new NullPointerException("cache");
+		this.requests = requests;
+		this.cache = cache;
+	}
+	
+	/**
+	 * @return The cache that all methods patched by this script share; mostly useful for its hit and miss counters.
+	 */
+	public MemoCache getCache() {
+		return cache;
+	}
+	
+	@Override protected boolean needsExpandedFrames() {
+		return true;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				checkTarget(name, desc, logistics);
+				return new Memoize(parent, logistics, classSpec, desc);
+			}
+		});
+	}
+	
+	private void checkTarget(String name, String desc, MethodLogistics logistics) {
+		if (logistics.getReturnOpcode() == Opcodes.RETURN) {
+			throw new IllegalArgumentException("method " + name + desc + " returns nothing, so there is nothing to memoize");
+		}
+		for (StackRequest param : StackRequest.PARAMS_IN_ORDER) {
+			if (requests.contains(param) && param.getParamPos() >= logistics.getParamCount()) {
+				throw new IllegalArgumentException("method " + name + desc + " has no " + param);
+			}
+		}
+		if (cache.getEviction() == MemoCache.Eviction.WEAK_KEYS) {
+			Type[] params = Type.getArgumentTypes(desc);
+			for (StackRequest param : StackRequest.PARAMS_IN_ORDER) {
+				if (!requests.contains(param)) continue;
+				int sort = params[param.getParamPos()].getSort();
+				if (sort != Type.OBJECT && sort != Type.ARRAY) {
+					throw new IllegalArgumentException("method " + name + desc + ": weak keys must be objects, but " + param + " is a primitive");
+				}
+			}
+		}
+	}
+	
+	private class Memoize extends LocalVariablesSorter {
+		private final MethodLogistics logistics;
+		private final String ownClassSpec, returnDesc;
+		private final Type[] paramTypes;
+		private int keyLocal;
+		
+		public Memoize(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String desc) {
+			super(Opcodes.ASM9, logistics.isStatic() ? Opcodes.ACC_STATIC : 0, desc, mv);
+			this.logistics = logistics;
+			this.ownClassSpec = ownClassSpec;
+			this.returnDesc = Type.getReturnType(desc).getDescriptor();
+			this.paramTypes = Type.getArgumentTypes(desc);
+		}
+		
+		/* Inject:
+		 * Object[] key = new Object[] {key...};
+		 * Object cached = MemoCache.lookup(id, key);
+		 * if (cached != NOT_HANDLED) xRETURN (unbox) cached;
+		 */
+		@Override public void visitCode() {
+			super.visitCode();
+			keyLocal = newLocal(Type.getType(Object[].class));
+			generateKey();
+			mv.visitVarInsn(Opcodes.ASTORE, keyLocal);
+			mv.visitLdcInsn(Integer.valueOf(cache.getId()));
+			mv.visitVarInsn(Opcodes.ALOAD, keyLocal);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, MEMO_CACHE, "lookup", "(I[Ljava/lang/Object;)Ljava/lang/Object;", false);
+			Label miss = new Label();
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitFieldInsn(Opcodes.GETSTATIC, "lombok/patcher/NotHandled", "NOT_HANDLED", "Ljava/lang/Object;");
+			mv.visitJumpInsn(Opcodes.IF_ACMPEQ, miss);
+			MethodLogistics.generateUnboxForType(returnDesc, mv);
+			logistics.generateReturnOpcode(mv);
+			mv.visitLabel(miss);
+			insertMissFrame();
+			mv.visitInsn(Opcodes.POP);
+		}
+		
+		/**
+		 * Frames have to be expanded, as the {@code LocalVariablesSorter} needs those; at this point, only the parameters and the key are set.
+		 */
+		private void insertMissFrame() {
+			List<Object> locals = new ArrayList<Object>();
+			if (!logistics.isStatic()) locals.add(ownClassSpec);
+			for (Type param : paramTypes) locals.add(MethodLogistics.frameTypeOf(param.getDescriptor()));
+			locals.add("[Ljava/lang/Object;");
+			mv.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), 1, new Object[] {"java/lang/Object"});
+		}
+		
+		/* Inject, in front of every return:
+		 * MemoCache.store((box) returnValue, id, key);
+		 */
+		@Override public void visitInsn(int opcode) {
+			if (opcode == logistics.getReturnOpcode()) {
+				logistics.generateDupForReturn(mv);
+				MethodLogistics.generateBoxForType(returnDesc, mv);
+				mv.visitLdcInsn(Integer.valueOf(cache.getId()));
+				mv.visitVarInsn(Opcodes.ALOAD, keyLocal);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, MEMO_CACHE, "store", "(Ljava/lang/Object;I[Ljava/lang/Object;)V", false);
+			}
+			super.visitInsn(opcode);
+		}
+		
+		private void generateKey() {
+			int size = requests.size();
+			mv.visitIntInsn(Opcodes.BIPUSH, size);
+			mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+			int idx = 0;
+			if (requests.contains(StackRequest.THIS)) {
+				mv.visitInsn(Opcodes.DUP);
+				mv.visitIntInsn(Opcodes.BIPUSH, idx++);
+				logistics.generateLoadOpcodeForThis(mv);
+				mv.visitInsn(Opcodes.AASTORE);
+			}
+			for (StackRequest param : StackRequest.PARAMS_IN_ORDER) {
+				if (!requests.contains(param)) continue;
+				mv.visitInsn(Opcodes.DUP);
+				mv.visitIntInsn(Opcodes.BIPUSH, idx++);
+				logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
+				MethodLogistics.generateBoxForType(paramTypes[param.getParamPos()].getDescriptor(), mv);
+				mv.visitInsn(Opcodes.AASTORE);
+			}
+		}
+	}
+}
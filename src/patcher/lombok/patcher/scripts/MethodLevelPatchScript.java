@@ -25,15 +25,28 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import lombok.patcher.Hook;
+import lombok.patcher.HookLinker;
+import lombok.patcher.MethodLogistics;
 import lombok.patcher.PatchScript;
+import lombok.patcher.Sampler;
 import lombok.patcher.TargetMatcher;
 import lombok.patcher.TransplantMapper;
 
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 public abstract class MethodLevelPatchScript extends PatchScript {
+	private static final AtomicInteger nextSwitchId = new AtomicInteger();
+	
+	private final int switchId = nextSwitchId.incrementAndGet();
+	private volatile int samplerId = -1;
 	private final Set<String> affectedClasses;
 	private final Collection<TargetMatcher> matchers;
 	
@@ -57,18 +70,171 @@ public abstract class MethodLevelPatchScript extends PatchScript {
 		return affectedClasses;
 	}
 	
+	@Override public boolean patchesOnlyClassesToReload() {
+		return true;
+	}
+	
 	@Override public boolean wouldPatch(String className) {
 		return classMatches(className, affectedClasses);
 	}
 	
 	@Override public byte[] patch(String className, byte[] byteCode, TransplantMapper transplantMapper) {
 		if (!classMatches(className, affectedClasses)) return null;
-		return runASM(byteCode, true, transplantMapper);
+		return runASM(byteCode, true, insertsHooks() || needsExpandedFrames(), transplantMapper);
+	}
+	
+	/**
+	 * Return {@code true} if this script puts the body of its hooks straight into the target (see {@link ScriptBuilder}).
+	 */
+	protected boolean insertsHooks() {
+		return false;
+	}
+	
+	/**
+	 * Return {@code true} if the visitors this script creates need all stack map frames in expanded form, for example because they
+	 * add locals with a {@code LocalVariablesSorter}.
+	 */
+	protected boolean needsExpandedFrames() {
+		return false;
+	}
+	
+	/**
+	 * Return {@code true} if this script calls its hooks via {@code invokedynamic} such that they can be switched off at runtime
+	 * (see {@link ScriptBuilder}).
+	 */
+	protected boolean isGuarded() {
+		return false;
+	}
+	
+	@Override public int getSwitchId() {
+		return isGuarded() ? switchId : -1;
+	}
+	
+	/**
+	 * Called by the builders; from now on, patched code only calls the hook on one in {@code oneIn} calls.
+	 */
+	void enableSampling(int oneIn) {
+		if (samplerId != -1) throw new IllegalStateException("Sampling is already enabled");
+		checkCanBeSampled();
+		samplerId = Sampler.register(oneIn);
+	}
+	
+	/**
+	 * Throw an {@code IllegalArgumentException} if skipping the hook on some calls can't leave the patched code behaving as if it
+	 * wasn't patched; scripts that don't support sampling at all throw an {@code UnsupportedOperationException}.
+	 */
+	protected void checkCanBeSampled() {
+		throw new UnsupportedOperationException(getPatchScriptName() + " can't be sampled");
+	}
+	
+	/**
+	 * @return {@code true} if this script was built with {@code sample}, so it only calls its hook on some calls.
+	 */
+	public boolean isSampled() {
+		return samplerId != -1;
+	}
+	
+	/**
+	 * Changes how often the hook of this script is called, in all code it has patched or will patch, without transforming
+	 * any classes again.
+	 *
+	 * @param oneIn Call the hook on one in this many calls: 1 for every call, 0 for none at all.
+	 * @throws IllegalStateException If this script wasn't built with {@code sample}.
+	 */
+	public void setSampleRate(int oneIn) {
+		Sampler.setRate(requireSamplerId(), oneIn);
+	}
+	
+	public int getSampleRate() {
+		return Sampler.getRate(requireSamplerId());
+	}
+	
+	private int requireSamplerId() {
+		int id = samplerId;
+		if (id == -1) throw new IllegalStateException("Script " + getPatchScriptName() + " isn't sampled");
+		return id;
+	}
+	
+	/**
+	 * The name of the synthetic method that a sampled script calls instead of {@code hook}.
+	 */
+	protected String getSampledMethodName(Hook hook) {
+		return "$lombok$$sampled" + samplerId + "$" + hook.getMethodName();
+	}
+	
+	/**
+	 * Adds the synthetic method that a sampled script calls instead of {@code hook}. It has the same signature as {@code hook}; it asks
+	 * the {@link Sampler} whether to call {@code hook} (as configured: normally, transplanted, or inserted) with all its arguments,
+	 * and if not, returns what {@code whenSkipped} says instead, which must leave the patched code behaving as if it wasn't patched.
+	 *
+	 * @param whenSkipped One of the {@code WHEN_DISABLED_RETURN_} constants of {@link HookLinker}.
+	 * @param whenSkippedArgument The constant to return, for {@code WHEN_DISABLED_RETURN_CONSTANT}.
+	 */
+	protected void makeSampledMethod(MethodPatcher patcher, String ownClassSpec, Hook hook, boolean transplant, boolean insert, int whenSkipped, Object whenSkippedArgument) {
+		String desc = hook.getMethodDescriptor();
+		MethodVisitor mv = patcher.createMethod(Opcodes.ACC_SYNTHETIC | Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, getSampledMethodName(hook), desc);
+		MethodLogistics logistics = new MethodLogistics(Opcodes.ACC_STATIC, desc);
+		Type returnType = Type.getReturnType(desc);
+		
+		mv.visitCode();
+		Label skip = new Label();
+		mv.visitLdcInsn(Integer.valueOf(samplerId));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/Sampler", "sample", "(I)Z", false);
+		mv.visitJumpInsn(Opcodes.IFEQ, skip);
+		for (int i = 0; i < logistics.getParamCount(); i++) logistics.generateLoadOpcodeForParam(i, mv);
+		if (insert) insertMethod(hook, mv);
+		else mv.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : hook.getClassSpec(), hook.getMethodName(), desc, false);
+		logistics.generateReturnOpcode(mv);
+		
+		mv.visitLabel(skip);
+		Type[] params = Type.getArgumentTypes(desc);
+		Object[] locals = new Object[params.length];
+		for (int i = 0; i < params.length; i++) locals[i] = MethodLogistics.frameTypeOf(params[i].getDescriptor());
+		mv.visitFrame(Opcodes.F_NEW, locals.length, locals, 0, new Object[0]);
+		switch (whenSkipped) {
+		case HookLinker.WHEN_DISABLED_RETURN_FIRST_ARGUMENT:
+			logistics.generateLoadOpcodeForParam(0, mv);
+			break;
+		case HookLinker.WHEN_DISABLED_RETURN_CONSTANT:
+			mv.visitLdcInsn(whenSkippedArgument);
+			break;
+		case HookLinker.WHEN_DISABLED_RETURN_NOT_HANDLED:
+			mv.visitFieldInsn(Opcodes.GETSTATIC, "lombok/patcher/NotHandled", "NOT_HANDLED", "Ljava/lang/Object;");
+			break;
+		default:
+			generateDefaultValue(returnType, mv);
+		}
+		logistics.generateReturnOpcode(mv);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+	
+	private static void generateDefaultValue(Type type, MethodVisitor mv) {
+		switch (type.getSort()) {
+		case Type.VOID:
+			break;
+		case Type.LONG:
+			mv.visitInsn(Opcodes.LCONST_0);
+			break;
+		case Type.FLOAT:
+			mv.visitInsn(Opcodes.FCONST_0);
+			break;
+		case Type.DOUBLE:
+			mv.visitInsn(Opcodes.DCONST_0);
+			break;
+		case Type.OBJECT:
+		case Type.ARRAY:
+			mv.visitInsn(Opcodes.ACONST_NULL);
+			break;
+		default:
+			mv.visitInsn(Opcodes.ICONST_0);
+		}
 	}
 	
 	@Override protected final ClassVisitor createClassVisitor(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
 		MethodPatcher patcher = createPatcher(writer, classSpec, transplantMapper);
 		for (TargetMatcher matcher : matchers) patcher.addTargetMatcher(matcher);
+		patcher.setInsertHooks(insertsHooks());
 		return patcher;
 	}
 	
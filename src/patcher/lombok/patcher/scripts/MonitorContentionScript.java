@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.MonitorWaits;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.StripedHistogram;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
+
+/**
+ * Measures how long the target methods wait to acquire monitors, at every {@code MONITORENTER} instruction (the start of a
+ * {@code synchronized} block) and, optionally, on entry of the target methods that are {@code synchronized} themselves. The results end
+ * up in {@link MonitorWaits}, in a histogram per site.
+ * 
+ * The time is taken right before and right after the monitor is acquired, and the difference is passed to
+ * {@link MonitorWaits#record(long, int)}. If it is below the threshold, the monitor is assumed to have been free, and nothing is recorded:
+ * an uncontended acquisition costs two clock reads and a static call, but never writes to memory that other threads share.
+ * 
+ * A synchronized method's monitor is acquired by the JVM before the method's first instruction runs, so to time it, the method is made
+ * non-synchronized, and locks and unlocks the monitor explicitly instead, the same way {@code javac} compiles a {@code synchronized}
+ * block: the monitor is released in front of every return, and in a handler around the entire method body that rethrows.
+ * The JVM doesn't allow a reload to change the modifiers of a method, so with that option, this script
+ * {@link #patchesOnlyOnFirstLoad() only patches classes as they first load}. Static synchronized methods lock their class, which can't be
+ * loaded with a single instruction in class files older than java 1.5; those are left alone.
+ */
+public final class MonitorContentionScript extends MethodLevelPatchScript {
+	private static final String MONITOR_WAITS = "lombok/patcher/MonitorWaits";
+	
+	private final boolean synchronizedMethods;
+	private final long thresholdNanos;
+	private final Set<Integer> ids = Collections.synchronizedSet(new LinkedHashSet<Integer>());
+	private final SampleBaselines samples = new SampleBaselines() {
+		@Override long samplesAt(int id) {
+			return MonitorWaits.get(id).getCount();
+		}
+	};
+	
+	@Override public String getPatchScriptName() {
+		return "time monitor contention in " + describeMatchers();
+	}
+	
+	MonitorContentionScript(List<TargetMatcher> matchers, boolean synchronizedMethods, long thresholdNanos) {
+		super(matchers);
+		if (thresholdNanos < 0) throw new IllegalArgumentException("thresholdNanos must be 0 or more");
+		this.synchronizedMethods = synchronizedMethods;
+		this.thresholdNanos = thresholdNanos;
+	}
+	
+	@Override protected boolean needsExpandedFrames() {
+		return synchronizedMethods;
+	}
+	
+	@Override public boolean patchesOnlyOnFirstLoad() {
+		return synchronizedMethods;
+	}
+	
+	/**
+	 * @return The contended waits, in nanoseconds, of every site this script has patched so far.
+	 */
+	public Map<ProbeSite, StripedHistogram.Snapshot> getWaits() {
+		Map<ProbeSite, StripedHistogram.Snapshot> out = new LinkedHashMap<ProbeSite, StripedHistogram.Snapshot>();
+		synchronized (ids) {
+			for (Integer id : ids) out.put(MonitorWaits.getSite(id), MonitorWaits.get(id));
+		}
+		return out;
+	}
+	
+	/**
+	 * Only contended acquisitions count as samples.
+	 */
+	@Override public long getSamplesTaken() {
+		return samples.getSamplesTaken();
+	}
+	
+	private int register(ProbeSite site) {
+		int id = MonitorWaits.register(site, thresholdNanos);
+		ids.add(id);
+		samples.register(id);
+		return id;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		final boolean[] lockedMethod = new boolean[1];
+		final int[] classFileVersion = new int[1];
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				MethodVisitor mv = parent;
+				if (lockedMethod[0]) mv = new LockedMethodProbe(parent, logistics, classSpec, name, desc);
+				return new MonitorEnterProbe(mv, classSpec, name, desc);
+			}
+		}) {
+			@Override public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				classFileVersion[0] = version;
+				super.visit(version, access, name, signature, superName, interfaces);
+			}
+			
+			@Override public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				if (!synchronizedMethods || (access & Opcodes.ACC_SYNCHRONIZED) == 0 || !isTarget(name, desc)) {
+					return super.visitMethod(access, name, desc, signature, exceptions);
+				}
+				// LDC of a class constant needs class file version 49.
+				if ((access & Opcodes.ACC_STATIC) != 0 && (classFileVersion[0] & 0xFFFF) < Opcodes.V1_5) {
+					return super.visitMethod(access, name, desc, signature, exceptions);
+				}
+				lockedMethod[0] = true;
+				try {
+					return super.visitMethod(access & ~Opcodes.ACC_SYNCHRONIZED, name, desc, signature, exceptions);
+				} finally {
+					lockedMethod[0] = false;
+				}
+			}
+		};
+	}
+	
+	/* Generates, with the monitor on the stack, and only the start time left on it afterwards:
+	 * long start = System.nanoTime();
+	 * monitorenter(monitor);
+	 */
+	private static void generateTimedMonitorEnter(MethodVisitor mv) {
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+		mv.visitInsn(Opcodes.DUP2_X1);
+		mv.visitInsn(Opcodes.POP2);
+		mv.visitInsn(Opcodes.MONITORENTER);
+	}
+	
+	/* Generates, with the start time on the stack:
+	 * MonitorWaits.record(start, id);
+	 */
+	private static void generateRecord(MethodVisitor mv, int id) {
+		mv.visitLdcInsn(Integer.valueOf(id));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, MONITOR_WAITS, "record", "(JI)V", false);
+	}
+	
+	private class MonitorEnterProbe extends SiteTrackingMethodVisitor {
+		MonitorEnterProbe(MethodVisitor mv, String ownClassSpec, String methodName, String methodDescriptor) {
+			super(mv, ownClassSpec, methodName, methodDescriptor);
+		}
+		
+		/* Replace the monitorenter with:
+		 * long start = System.nanoTime();
+		 * monitorenter(monitor);
+		 * MonitorWaits.record(start, id);
+		 * The start time is kept on the stack underneath the monitor, so no local (and no change to the frames) is needed.
+		 */
+		@Override public void visitInsn(int opcode) {
+			if (opcode != Opcodes.MONITORENTER) {
+				super.visitInsn(opcode);
+				return;
+			}
+			int id = register(nextSite("monitorenter"));
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+			mv.visitInsn(Opcodes.DUP2_X1);
+			mv.visitInsn(Opcodes.POP2);
+			super.visitInsn(Opcodes.MONITORENTER);
+			generateRecord(mv, id);
+		}
+	}
+	
+	private class LockedMethodProbe extends LocalVariablesSorter {
+		private final MethodLogistics logistics;
+		private final String ownClassSpec, name, desc;
+		private final Label start = new Label();
+		private int monitorLocal = -1;
+		
+		LockedMethodProbe(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String name, String desc) {
+			super(Opcodes.ASM9, logistics.isStatic() ? Opcodes.ACC_STATIC : 0, desc, mv);
+			this.logistics = logistics;
+			this.ownClassSpec = ownClassSpec;
+			this.name = name;
+			this.desc = desc;
+		}
+		
+		private String monitorType() {
+			return logistics.isStatic() ? "java/lang/Class" : ownClassSpec;
+		}
+		
+		/* Inject:
+		 * Object monitor = this; // or OwnClass.class, if static
+		 * long start = System.nanoTime();
+		 * monitorenter(monitor);
+		 * MonitorWaits.record(start, id);
+		 */
+		@Override public void visitCode() {
+			super.visitCode();
+			int id = register(new ProbeSite(ownClassSpec, name, desc, -1, -1, "synchronized method"));
+			monitorLocal = newLocal(Type.getObjectType(monitorType()));
+			if (logistics.isStatic()) mv.visitLdcInsn(Type.getObjectType(ownClassSpec));
+			else mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitVarInsn(Opcodes.ASTORE, monitorLocal);
+			generateTimedMonitorEnter(mv);
+			mv.visitLabel(start);
+			generateRecord(mv, id);
+		}
+		
+		/* Inject, in front of every return:
+		 * monitorexit(monitor);
+		 */
+		@Override public void visitInsn(int opcode) {
+			if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+				mv.visitVarInsn(Opcodes.ALOAD, monitorLocal);
+				mv.visitInsn(Opcodes.MONITOREXIT);
+			}
+			super.visitInsn(opcode);
+		}
+		
+		/* Inject, around the entire method:
+		 * catch (Throwable t) {
+		 *     monitorexit(monitor);
+		 *     throw t;
+		 * }
+		 */
+		@Override public void visitMaxs(int maxStack, int maxLocals) {
+			if (monitorLocal != -1) {
+				Label end = new Label(), handler = new Label();
+				mv.visitLabel(end);
+				mv.visitTryCatchBlock(start, end, handler, null);
+				mv.visitLabel(handler);
+				insertHandlerFrame();
+				mv.visitVarInsn(Opcodes.ALOAD, monitorLocal);
+				mv.visitInsn(Opcodes.MONITOREXIT);
+				mv.visitInsn(Opcodes.ATHROW);
+			}
+			super.visitMaxs(maxStack, maxLocals);
+		}
+		
+		/**
+		 * In the handler, only the monitor is needed; the parameters in front of it are left untyped, as the target might have
+		 * assigned anything to them.
+		 */
+		private void insertHandlerFrame() {
+			List<Object> locals = new ArrayList<Object>();
+			if (!logistics.isStatic()) locals.add(Opcodes.TOP);
+			for (Type param : Type.getArgumentTypes(desc)) {
+				for (int i = 0; i < param.getSize(); i++) locals.add(Opcodes.TOP);
+			}
+			locals.add(monitorType());
+			mv.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), 1, new Object[] {"java/lang/Throwable"});
+		}
+	}
+}
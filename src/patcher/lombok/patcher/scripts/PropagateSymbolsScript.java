@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.List;
+import java.util.Set;
+
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Finds every call to {@code execute} or {@code submit} on an executor in the target method, and wraps the task with
+ * {@link lombok.patcher.Symbols#wrap(Runnable)} (or the {@code Callable} variant) first, so that the task runs with the symbols that
+ * were on the stack when it was handed over, instead of the ones (if any) of whatever pool thread ends up running it.
+ * 
+ * Executors only see the wrapper, so something like {@code ThreadPoolExecutor.remove(task)} won't find a task submitted by patched code.
+ */
+public final class PropagateSymbolsScript extends MethodLevelPatchScript {
+	private static final String RUNNABLE = "Ljava/lang/Runnable;", CALLABLE = "Ljava/util/concurrent/Callable;";
+	
+	private final Set<String> executorTypes;
+	
+	@Override public String getPatchScriptName() {
+		return "propagate symbols to executors in " + describeMatchers();
+	}
+	
+	/**
+	 * @param executorTypes Calls on these types (JVM-style names, such as {@code java/util/concurrent/Executor}) are wrapped.
+	 */
+	PropagateSymbolsScript(List<TargetMatcher> matchers, Set<String> executorTypes) {
+		super(matchers);
+		if (executorTypes == null) throw new NullPointerException("executorTypes");
+		this.executorTypes = executorTypes;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				return new PropagateSymbols(parent);
+			}
+		});
+	}
+	
+	private class PropagateSymbols extends MethodVisitor {
+		PropagateSymbols(MethodVisitor mv) {
+			super(Opcodes.ASM9, mv);
+		}
+		
+		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			if ((opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKEVIRTUAL) && executorTypes.contains(owner)) {
+				if (name.equals("execute") && desc.equals("(" + RUNNABLE + ")V")) {
+					wrapTask(RUNNABLE);
+				} else if (name.equals("submit")) {
+					if (desc.startsWith("(" + RUNNABLE + ")")) wrapTask(RUNNABLE);
+					else if (desc.startsWith("(" + CALLABLE + ")")) wrapTask(CALLABLE);
+					else if (desc.startsWith("(" + RUNNABLE + "Ljava/lang/Object;)")) {
+						// The result is on top of the task; both take one slot.
+						mv.visitInsn(Opcodes.SWAP);
+						wrapTask(RUNNABLE);
+						mv.visitInsn(Opcodes.SWAP);
+					}
+				}
+			}
+			super.visitMethodInsn(opcode, owner, name, desc, itf);
+		}
+		
+		private void wrapTask(String taskDesc) {
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "lombok/patcher/Symbols", "wrap", "(" + taskDesc + ")" + taskDesc, false);
+		}
+	}
+}
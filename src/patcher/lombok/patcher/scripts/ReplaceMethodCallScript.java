@@ -21,10 +21,13 @@
  */
 package lombok.patcher.scripts;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import lombok.patcher.Hook;
+import lombok.patcher.HookLinker;
 import lombok.patcher.MethodLogistics;
 import lombok.patcher.StackRequest;
 import lombok.patcher.TargetMatcher;
@@ -42,14 +45,14 @@ import org.objectweb.asm.Opcodes;
 public class ReplaceMethodCallScript extends MethodLevelPatchScript {
 	private final Hook wrapper;
 	private final Hook methodToReplace;
-	private final boolean transplant, insert;
+	private final boolean transplant, insert, dynamic, guarded;
 	private final Set<StackRequest> extraRequests;
 	
 	@Override public String getPatchScriptName() {
 		return "replace " + methodToReplace.getMethodName() + " with " + wrapper.getMethodName() + " in " + describeMatchers();
 	}
 	
-	ReplaceMethodCallScript(List<TargetMatcher> matchers, Hook callToReplace, Hook wrapper, boolean transplant, boolean insert, Set<StackRequest> extraRequests) {
+	ReplaceMethodCallScript(List<TargetMatcher> matchers, Hook callToReplace, Hook wrapper, boolean transplant, boolean insert, boolean dynamic, boolean guarded, Set<StackRequest> extraRequests) {
 		super(matchers);
 		if (callToReplace == null) throw new NullPointerException("callToReplace");
 		if (wrapper == null) throw new NullPointerException("wrapper");
@@ -57,30 +60,56 @@ public class ReplaceMethodCallScript extends MethodLevelPatchScript {
 		this.wrapper = wrapper;
 		this.transplant = transplant;
 		this.insert = insert;
+		this.dynamic = dynamic || guarded;
+		this.guarded = guarded;
 		assert !(insert && transplant);
 		this.extraRequests = extraRequests;
 	}
 	
+	@Override protected boolean insertsHooks() {
+		return insert;
+	}
+	
+	@Override public Collection<Hook> getCopiedHooks() {
+		return transplant || insert ? Collections.singletonList(wrapper) : Collections.<Hook>emptyList();
+	}
+	
+	@Override protected boolean isGuarded() {
+		return guarded;
+	}
+	
 	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
-		final MethodPatcher patcher = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+		final MethodPatcher[] patcher = new MethodPatcher[1];
+		patcher[0] = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
 			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
-				return new ReplaceMethodCall(parent, classSpec, logistics);
+				return new ReplaceMethodCall(parent, classSpec, logistics, patcher[0]);
 			}
 		});
 		
-		if (transplant) patcher.addTransplant(wrapper);
+		if (transplant) patcher[0].addTransplant(wrapper);
+		if (guarded) {
+			patcher[0].addGuardedHook(wrapper, getSwitchId(), HookLinker.WHEN_DISABLED_CALL_ORIGINAL, describeOriginal());
+		} else if (dynamic) {
+			patcher[0].addDynamicHook(wrapper);
+		}
 		
-		return patcher;
+		return patcher[0];
+	}
+	
+	private String describeOriginal() {
+		return methodToReplace.getClassSpec() + " " + methodToReplace.getMethodName() + " " + methodToReplace.getMethodDescriptor();
 	}
 	
 	private class ReplaceMethodCall extends MethodVisitor {
 		private final String ownClassSpec;
 		private final MethodLogistics logistics;
+		private final MethodPatcher patcher;
 		
-		public ReplaceMethodCall(MethodVisitor mv, String ownClassSpec, MethodLogistics logistics) {
+		public ReplaceMethodCall(MethodVisitor mv, String ownClassSpec, MethodLogistics logistics, MethodPatcher patcher) {
 			super(Opcodes.ASM9, mv);
 			this.ownClassSpec = ownClassSpec;
 			this.logistics = logistics;
+			this.patcher = patcher;
 		}
 		
 		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
@@ -93,6 +122,8 @@ public class ReplaceMethodCallScript extends MethodLevelPatchScript {
 					logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
 				}
 				if (insert) insertMethod(wrapper, mv);
+				// When switched off, a super call has to stay one; the others of this script share the fallback set up in createPatcher.
+				else if (guarded && opcode == Opcodes.INVOKESPECIAL) patcher.generateGuardedHookCall(mv, wrapper, describeOriginal() + " special");
 				else super.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : wrapper.getClassSpec(),
 						wrapper.getMethodName(), wrapper.getMethodDescriptor(), itf);
 			} else {
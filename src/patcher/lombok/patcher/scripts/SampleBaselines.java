@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Probe slots are shared by every script that probes the same site, and keep their counts for good, so a probe script that is added
+ * after another one was retired would otherwise start out with the samples of its predecessor. This remembers how many samples each
+ * slot had when a script first registered it, so that the script only counts the samples taken since.
+ */
+abstract class SampleBaselines {
+	private final Map<Integer, Long> baselines = new HashMap<Integer, Long>();
+	
+	/**
+	 * @return The number of samples taken at {@code slot} since it was registered with {@code SiteCounters} or the like.
+	 */
+	abstract long samplesAt(int slot);
+	
+	synchronized void register(int slot) {
+		if (!baselines.containsKey(slot)) baselines.put(slot, samplesAt(slot));
+	}
+	
+	synchronized long getSamplesTaken() {
+		long total = 0;
+		for (Map.Entry<Integer, Long> e : baselines.entrySet()) total += samplesAt(e.getKey()) - e.getValue();
+		return total;
+	}
+}
@@ -22,11 +22,15 @@
 package lombok.patcher.scripts;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import lombok.patcher.EventRing;
 import lombok.patcher.Hook;
+import lombok.patcher.MemoCache;
+import lombok.patcher.NotHandled;
 import lombok.patcher.StackRequest;
 import lombok.patcher.TargetMatcher;
 
@@ -52,9 +56,30 @@ import org.objectweb.asm.Opcodes;
  * <h2>insert</h2>
  * 
  * Insert is like transplant but even more aggressive: The actual bytecode is dropped straight into the relevant place inside the target
- * method. insertion only works for extremely simple methods, because no effort is made to ensure that the target location's local space
- * and/or framesizes are sufficient, and in any case any usage of local slots by your injected code would simply overwrite. Generally,
- * for one-liners, especially if the one-liner is to replace something with a constant or wrap it with a single method call, you can use it.
+ * method, so there is no call overhead at all, and the JIT doesn't need to decide to inline your hook. The hook must be static. Its
+ * parameters and locals are moved to local slots beyond those of the target method, every return becomes a jump to the end of the inserted
+ * code, and its try/catch blocks and stack map frames are merged into those of the target, so your hook may contain branches, loops, locals
+ * and multiple returns. As the code is copied, the same restriction as for transplant applies: don't refer to anything that isn't accessible
+ * from the target class (such as private helper methods next to your hook). Also, hooks with branches need to be compiled for java 1.6 or up
+ * if the target class is.
+ * 
+ * <h2>invokeDynamic</h2>
+ * 
+ * The hook stays where it is, but is called via an {@code invokedynamic} instruction, linked by {@link lombok.patcher.HookLinker} the
+ * first time it runs. The hook class is then looked up via a class loader of your choosing, instead of having to be visible to the
+ * target, and the JIT can still inline it as well as a normal call. You can also {@link lombok.patcher.HookLinker#swap swap} the hook
+ * for another method at runtime without transforming any classes again. {@code HookLinker} itself does need to be visible to the target.
+ * Targets in class files older than java 1.7 cannot contain {@code invokedynamic}; for those, the hook is called normally.
+ * 
+ * <h2>guarded</h2>
+ * 
+ * Like invokeDynamic, but the hook call is guarded by a {@code SwitchPoint} per script, which the JIT folds away as long as the script is
+ * enabled. Via {@link lombok.patcher.ScriptManager#setScriptEnabled ScriptManager.setScriptEnabled} you can then switch the script off
+ * (and back on) at runtime, without transforming any classes again. While switched off, the patched code does what it would do if it
+ * had not been patched: a wrapper returns the value it was given, a decision method says 'don't exit early', and a replaced call goes to
+ * the original method. This is not possible for scripts that can't be undone that way, such as wrapping returns with a method that
+ * supplies a new return value without receiving the old one. As with invokeDynamic, classes older than java 1.7 are patched with
+ * normal calls, and cannot be switched off.
  * 
  * <h2>cast</h2>
  * 
@@ -176,12 +201,19 @@ public class ScriptBuilder {
 		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
 		private Hook decisionMethod, valueMethod;
 		private Set<StackRequest> requests = new HashSet<StackRequest>();
-		private boolean transplant, insert;
+		private boolean transplant, insert, dynamic, guarded, outline;
+		private boolean singleCall;
+		private Object sentinel;
+		private Integer sampleOneIn;
 		
 		public ExitFromMethodEarlyScript build() {
 			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			if (singleCall && decisionMethod != null) throw new IllegalStateException("You cannot combine a sentinel with a decision method");
+			if (singleCall && valueMethod == null) throw new IllegalStateException("A sentinel requires a value method");
 			
-			return new ExitFromMethodEarlyScript(matchers, decisionMethod, valueMethod, transplant, insert, requests);
+			ExitFromMethodEarlyScript script = new ExitFromMethodEarlyScript(matchers, decisionMethod, valueMethod, transplant, insert, dynamic, guarded, outline, singleCall, sentinel, requests);
+			if (sampleOneIn != null) script.enableSampling(sampleOneIn);
+			return script;
 		}
 		
 		/**
@@ -217,6 +249,8 @@ public class ScriptBuilder {
 		public ExitEarlyBuilder transplant() {
 			this.transplant = true;
 			this.insert = false;
+			this.dynamic = false;
+			this.guarded = false;
 			return this;
 		}
 		
@@ -227,6 +261,83 @@ public class ScriptBuilder {
 		public ExitEarlyBuilder insert() {
 			this.transplant = false;
 			this.insert = true;
+			this.dynamic = false;
+			this.guarded = false;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to both the {@code valueMethod} and the {@code decisionMethod}.
+		 */
+		public ExitEarlyBuilder invokeDynamic() {
+			this.transplant = false;
+			this.insert = false;
+			this.dynamic = true;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to both the {@code valueMethod} and the {@code decisionMethod}.
+		 */
+		public ExitEarlyBuilder guarded() {
+			this.transplant = false;
+			this.insert = false;
+			this.guarded = true;
+			return this;
+		}
+		
+		/**
+		 * Only runs the hook on some calls: the {@code decisionMethod} (or, with a sentinel, the {@code valueMethod}) is only called on one in {@code oneIn} calls of the {@code target};
+		 * on the others, the target runs as if it wasn't patched.
+		 * Counting which calls to sample costs a few instructions, and the rate can be changed at any time with {@link MethodLevelPatchScript#setSampleRate(int)}.
+		 * Not possible if skipping the hook can't be undone, under the same conditions as {@link #guarded()}.
+		 *
+		 * @param oneIn Call the hook on one in this many calls: 1 for every call, 0 for none at all.
+		 */
+		public ExitEarlyBuilder sample(int oneIn) {
+			if (oneIn < 0) throw new IllegalArgumentException("oneIn must be 0 or more");
+			this.sampleOneIn = oneIn;
+			return this;
+		}
+		
+		/**
+		 * Moves the {@code valueMethod} into a private static method of the target class, so the target method itself only grows by the call
+		 * to the {@code decisionMethod}, a conditional jump, and a call to that method with the requested parameters. Worth it if exiting early is rare and the target is hot, especially together with
+		 * {@link #insert()}, as the inserted {@code valueMethod} then ends up in the synthetic method. Only has an effect if there is a
+		 * {@code decisionMethod} and the target doesn't return {@code void}.
+		 */
+		public ExitEarlyBuilder outline() {
+			this.outline = true;
+			return this;
+		}
+		
+		/**
+		 * Switches to single-call mode: instead of a {@code decisionMethod} and a {@code valueMethod}, only the {@code valueMethod} is called,
+		 * once. If it returns {@code sentinel}, the target method continues as normal; any other value is returned immediately.
+		 * This saves a call and a second round of loading the requested parameters.
+		 *
+		 * The {@code valueMethod} must have the same (primitive) return type as {@code target}, and {@code sentinel} must be the boxed
+		 * form of that type ({@code float} and {@code double} sentinels are compared bit for bit, so {@code Double.NaN} works).
+		 * For targets that return an object, {@code sentinel} must be {@code null}; see {@link #sentinelNotHandled()} if {@code null} is a
+		 * legitimate return value.
+		 */
+		public ExitEarlyBuilder sentinel(Object sentinel) {
+			if (sentinel == NotHandled.NOT_HANDLED) return sentinelNotHandled();
+			this.singleCall = true;
+			this.sentinel = sentinel;
+			return this;
+		}
+		
+		/**
+		 * Like {@link #sentinel(Object)}, for targets that return an object: the {@code valueMethod} returns {@code java.lang.Object},
+		 * and returning {@link NotHandled#NOT_HANDLED} lets the target method continue. Anything else is cast to the return type of the target
+		 * and returned.
+		 */
+		public ExitEarlyBuilder sentinelNotHandled() {
+			this.singleCall = true;
+			this.sentinel = NotHandled.NOT_HANDLED;
 			return this;
 		}
 		
@@ -249,14 +360,14 @@ public class ScriptBuilder {
 		private Hook replacementMethod;
 		private Hook methodToReplace;
 		private Set<StackRequest> extraRequests = new HashSet<StackRequest>();
-		private boolean transplant, insert;
+		private boolean transplant, insert, dynamic, guarded;
 		
 		public ReplaceMethodCallScript build() {
 			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
 			if (replacementMethod == null) throw new IllegalStateException("You have to set a replacement method");
 			if (methodToReplace == null) throw new IllegalStateException("You have to set a method call to replace");
 			
-			return new ReplaceMethodCallScript(matchers, methodToReplace, replacementMethod, transplant, insert, extraRequests);
+			return new ReplaceMethodCallScript(matchers, methodToReplace, replacementMethod, transplant, insert, dynamic, guarded, extraRequests);
 		}
 		
 		/**
@@ -299,6 +410,8 @@ public class ScriptBuilder {
 		public ReplaceMethodCallBuilder transplant() {
 			this.transplant = true;
 			this.insert = false;
+			this.dynamic = false;
+			this.guarded = false;
 			return this;
 		}
 		
@@ -309,6 +422,30 @@ public class ScriptBuilder {
 		public ReplaceMethodCallBuilder insert() {
 			this.transplant = false;
 			this.insert = true;
+			this.dynamic = false;
+			this.guarded = false;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code replacementMethod}.
+		 */
+		public ReplaceMethodCallBuilder invokeDynamic() {
+			this.transplant = false;
+			this.insert = false;
+			this.dynamic = true;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code replacementMethod}.
+		 */
+		public ReplaceMethodCallBuilder guarded() {
+			this.transplant = false;
+			this.insert = false;
+			this.guarded = true;
 			return this;
 		}
 		
@@ -332,14 +469,17 @@ public class ScriptBuilder {
 		private Hook wrapMethod;
 		private Hook methodToWrap;
 		private Set<StackRequest> extraRequests = new HashSet<StackRequest>();
-		private boolean transplant, insert;
+		private boolean transplant, insert, dynamic, guarded;
+		private Integer sampleOneIn;
 		
 		public WrapMethodCallScript build() {
 			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
 			if (wrapMethod == null) throw new IllegalStateException("You have to set method to wrap with");
 			if (methodToWrap == null) throw new IllegalStateException("You have to set a method call to wrap");
 			
-			return new WrapMethodCallScript(matchers, methodToWrap, wrapMethod, transplant, insert, extraRequests);
+			WrapMethodCallScript script = new WrapMethodCallScript(matchers, methodToWrap, wrapMethod, transplant, insert, dynamic, guarded, extraRequests);
+			if (sampleOneIn != null) script.enableSampling(sampleOneIn);
+			return script;
 		}
 		
 		/**
@@ -384,6 +524,8 @@ public class ScriptBuilder {
 		public WrapMethodCallBuilder transplant() {
 			this.transplant = true;
 			this.insert = false;
+			this.dynamic = false;
+			this.guarded = false;
 			return this;
 		}
 		
@@ -394,6 +536,44 @@ public class ScriptBuilder {
 		public WrapMethodCallBuilder insert() {
 			this.transplant = false;
 			this.insert = true;
+			this.dynamic = false;
+			this.guarded = false;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code wrapMethod}.
+		 */
+		public WrapMethodCallBuilder invokeDynamic() {
+			this.transplant = false;
+			this.insert = false;
+			this.dynamic = true;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code wrapMethod}.
+		 */
+		public WrapMethodCallBuilder guarded() {
+			this.transplant = false;
+			this.insert = false;
+			this.guarded = true;
+			return this;
+		}
+		
+		/**
+		 * Only runs the hook on some calls: the {@code wrapMethod} is only called for one in {@code oneIn} calls to the {@code methodToWrap}; for the others, the
+		 * result of the call is left as is.
+		 * Counting which calls to sample costs a few instructions, and the rate can be changed at any time with {@link MethodLevelPatchScript#setSampleRate(int)}.
+		 * Not possible if skipping the hook can't be undone, under the same conditions as {@link #guarded()}.
+		 *
+		 * @param oneIn Call the hook on one in this many calls: 1 for every call, 0 for none at all.
+		 */
+		public WrapMethodCallBuilder sample(int oneIn) {
+			if (oneIn < 0) throw new IllegalArgumentException("oneIn must be 0 or more");
+			this.sampleOneIn = oneIn;
 			return this;
 		}
 		
@@ -415,13 +595,16 @@ public class ScriptBuilder {
 		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
 		private Hook wrapMethod;
 		private Set<StackRequest> requests = new HashSet<StackRequest>();
-		private boolean transplant, insert, cast;
+		private boolean transplant, insert, dynamic, guarded, cast, sharedExit;
+		private Integer sampleOneIn;
 		
 		public WrapReturnValuesScript build() {
 			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
 			if (wrapMethod == null) throw new IllegalStateException("You have to set a method you'd like to wrap the return values with");
 			
-			return new WrapReturnValuesScript(matchers, wrapMethod, transplant, insert, cast, requests);
+			WrapReturnValuesScript script = new WrapReturnValuesScript(matchers, wrapMethod, transplant, insert, dynamic, guarded, cast, sharedExit, requests);
+			if (sampleOneIn != null) script.enableSampling(sampleOneIn);
+			return script;
 		}
 		
 		/**
@@ -447,6 +630,8 @@ public class ScriptBuilder {
 		public WrapReturnValueBuilder transplant() {
 			this.transplant = true;
 			this.insert = false;
+			this.dynamic = false;
+			this.guarded = false;
 			return this;
 		}
 		
@@ -458,6 +643,43 @@ public class ScriptBuilder {
 			if (this.cast) throw new IllegalArgumentException("cast and insert are mutually exlusive");
 			this.transplant = false;
 			this.insert = true;
+			this.dynamic = false;
+			this.guarded = false;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code wrapMethod}.
+		 */
+		public WrapReturnValueBuilder invokeDynamic() {
+			this.transplant = false;
+			this.insert = false;
+			this.dynamic = true;
+			return this;
+		}
+		
+		/**
+		 * See {@link ScriptBuilder} javadoc for details.
+		 * Applies to {@code wrapMethod}.
+		 */
+		public WrapReturnValueBuilder guarded() {
+			this.transplant = false;
+			this.insert = false;
+			this.guarded = true;
+			return this;
+		}
+		
+		/**
+		 * Only runs the hook on some calls: the {@code wrapMethod} is only called for one in {@code oneIn} returns; for the others, the value is returned as is.
+		 * Counting which calls to sample costs a few instructions, and the rate can be changed at any time with {@link MethodLevelPatchScript#setSampleRate(int)}.
+		 * Not possible if skipping the hook can't be undone, under the same conditions as {@link #guarded()}.
+		 *
+		 * @param oneIn Call the hook on one in this many calls: 1 for every call, 0 for none at all.
+		 */
+		public WrapReturnValueBuilder sample(int oneIn) {
+			if (oneIn < 0) throw new IllegalArgumentException("oneIn must be 0 or more");
+			this.sampleOneIn = oneIn;
 			return this;
 		}
 		
@@ -471,12 +693,333 @@ public class ScriptBuilder {
 			return this;
 		}
 		
+		/**
+		 * Instead of calling {@code wrapMethod} in front of every return in the {@code target}, all returns jump to a single block at the end
+		 * of the method which calls it. Worth it for targets with many returns, as the code to load the requested parameters and call (or
+		 * {@link #insert() insert}) the {@code wrapMethod} is then only there once. If the {@code ScriptManager} is tracking method sizes,
+		 * the bytes this saves are listed in its {@link lombok.patcher.PatchDiagnostics diagnostics}.
+		 *
+		 * Note that unlike without a shared exit, exceptions thrown by {@code wrapMethod} are never caught by the {@code target}'s own
+		 * {@code catch} blocks.
+		 */
+		public WrapReturnValueBuilder sharedExit() {
+			this.sharedExit = true;
+			return this;
+		}
+		
 		public WrapReturnValueBuilder request(StackRequest... requests) {
 			for (StackRequest r : requests) this.requests.add(r);
 			return this;
 		}
 	}
 	
+	/**
+	 * This script caches the results of a side-effect free target method, keyed on some of its parameters.
+	 */
+	public static class MemoizeBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private Set<StackRequest> key = new HashSet<StackRequest>();
+		private MemoCache.Eviction eviction = MemoCache.Eviction.LRU;
+		private int maxSize = 1024;
+		
+		public MemoizeScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			if (eviction == MemoCache.Eviction.WEAK_KEYS && key.size() != 1) {
+				throw new IllegalStateException("With weak keys, the key must be exactly one parameter (or this)");
+			}
+			
+			return new MemoizeScript(matchers, key, MemoCache.create(eviction, maxSize));
+		}
+		
+		/**
+		 * The method whose results should be cached. If you add more than one, they all share one cache, so make sure their keys can't clash.
+		 */
+		public MemoizeBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * The parameters (and/or {@code THIS}) that together determine the result of the {@code target}. Primitives are boxed; everything is
+		 * compared with {@code equals}, so arrays only match if they are the same array. Without a key, the {@code target} only ever runs once.
+		 */
+		public MemoizeBuilder key(StackRequest... key) {
+			for (StackRequest r : key) {
+				if (r == StackRequest.RETURN_VALUE) throw new IllegalArgumentException("The return value can't be part of the key");
+				this.key.add(r);
+			}
+			return this;
+		}
+		
+		/**
+		 * How to make room once the cache holds {@code maxSize} results. The default is {@link MemoCache.Eviction#LRU}.
+		 */
+		public MemoizeBuilder eviction(MemoCache.Eviction eviction) {
+			if (eviction == null) throw new NullPointerException("eviction");
+			this.eviction = eviction;
+			return this;
+		}
+		
+		/**
+		 * The most results the cache will hold. The default is 1024.
+		 */
+		public MemoizeBuilder maxSize(int maxSize) {
+			if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+			this.maxSize = maxSize;
+			return this;
+		}
+	}
+	
+	/**
+	 * This script measures how long each call to the target takes; see {@link lombok.patcher.MethodTimings} for the results.
+	 */
+	public static class TimingProbeBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		
+		public TimingProbeScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new TimingProbeScript(matchers);
+		}
+		
+		/**
+		 * A method to time. Constructors can't be timed.
+		 */
+		public TimingProbeBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+	}
+	
+	/**
+	 * This script counts how often calls inside the target are executed, per call site; see {@link lombok.patcher.SiteCounters}.
+	 */
+	public static class CountCallsBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private List<Hook> callsToCount = new ArrayList<Hook>();
+		
+		public CallSiteCounterScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new CallSiteCounterScript(matchers, callsToCount);
+		}
+		
+		/**
+		 * A method in which to count calls.
+		 */
+		public CountCallsBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * Only count calls to this method. Can be called more than once; if it isn't called at all, every call in the {@code target} is counted.
+		 */
+		public CountCallsBuilder callTo(Hook call) {
+			if (call == null) throw new NullPointerException("call");
+			this.callsToCount.add(call);
+			return this;
+		}
+	}
+	
+	public static class CountAllocationsBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private boolean arrayLengths;
+		
+		public AllocationCounterScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new AllocationCounterScript(matchers, arrayLengths);
+		}
+		
+		/**
+		 * A method in which to count allocations.
+		 */
+		public CountAllocationsBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * Also adds up the lengths of the (one-dimensional) arrays created at each site. This costs an extra atomic add per array.
+		 */
+		public CountAllocationsBuilder arrayLengths() {
+			this.arrayLengths = true;
+			return this;
+		}
+	}
+	
+	public static class MonitorContentionBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private boolean synchronizedMethods;
+		private long thresholdNanos = 1000;
+		
+		public MonitorContentionScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new MonitorContentionScript(matchers, synchronizedMethods, thresholdNanos);
+		}
+		
+		/**
+		 * A method in which to time the {@code synchronized} blocks.
+		 */
+		public MonitorContentionBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * Also times acquiring the monitor of {@code target} methods that are {@code synchronized} themselves. This turns them into
+		 * methods that lock and unlock their monitor explicitly, which the JVM optimizes less well than synchronized methods.
+		 * The JVM won't change the modifiers of a method once its class is loaded, so the script then only patches classes as they
+		 * first load, and can't be removed or replaced (see {@link lombok.patcher.PatchScript#patchesOnlyOnFirstLoad()}).
+		 */
+		public MonitorContentionBuilder synchronizedMethods() {
+			this.synchronizedMethods = true;
+			return this;
+		}
+		
+		/**
+		 * Waits shorter than this are taken to mean the monitor was free, and aren't recorded. The default is 1000 (1 microsecond).
+		 */
+		public MonitorContentionBuilder contendedAfter(long nanos) {
+			if (nanos < 0) throw new IllegalArgumentException("nanos must be 0 or more");
+			this.thresholdNanos = nanos;
+			return this;
+		}
+	}
+	
+	public static class CountEntriesBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		
+		public EntryCounterScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new EntryCounterScript(matchers);
+		}
+		
+		/**
+		 * A method of which to count calls.
+		 */
+		public CountEntriesBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+	}
+	
+	public static class BufferEventsBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private Hook callToWrap;
+		private Set<StackRequest> requests = new HashSet<StackRequest>();
+		private EventRing.Handler handler;
+		private EventRing.Overflow overflow = EventRing.Overflow.DROP;
+		private int capacity = 1024, batchSize = 64;
+		
+		/**
+		 * Builds the script, and creates its {@link EventRing}. The ring is started when the script is added to a
+		 * {@link lombok.patcher.ScriptManager}, and stopped when it is removed from it.
+		 */
+		public BufferedEventScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			if (handler == null) throw new IllegalStateException("You have to set a handler for the events");
+			
+			EventRing ring = new EventRing(capacity, overflow, batchSize, handler);
+			return new BufferedEventScript(matchers, callToWrap, requests, ring);
+		}
+		
+		/**
+		 * The method in which to publish events.
+		 */
+		public BufferEventsBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * Publish an event after every call to this method, instead of in front of every return of the {@code target}.
+		 */
+		public BufferEventsBuilder afterCall(Hook callToWrap) {
+			this.callToWrap = callToWrap;
+			return this;
+		}
+		
+		/**
+		 * The values to put in each event. {@link StackRequest#RETURN_VALUE} is the value returned by the target, or by the
+		 * {@link #afterCall(Hook) call}; {@code null} if that is void.
+		 */
+		public BufferEventsBuilder request(StackRequest... requests) {
+			for (StackRequest r : requests) this.requests.add(r);
+			return this;
+		}
+		
+		/**
+		 * Called on a background thread with the events, in batches.
+		 */
+		public BufferEventsBuilder handler(EventRing.Handler handler) {
+			this.handler = handler;
+			return this;
+		}
+		
+		/**
+		 * What to do with an event when the ring is full; the default is to drop it.
+		 */
+		public BufferEventsBuilder overflow(EventRing.Overflow overflow) {
+			if (overflow == null) throw new NullPointerException("overflow");
+			this.overflow = overflow;
+			return this;
+		}
+		
+		/**
+		 * The number of events the ring can hold, rounded up to a power of two; the default is 1024.
+		 */
+		public BufferEventsBuilder capacity(int capacity) {
+			this.capacity = capacity;
+			return this;
+		}
+		
+		/**
+		 * The most events passed to the handler at once; the default is 64.
+		 */
+		public BufferEventsBuilder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+	}
+	
+	public static class PropagateSymbolsBuilder {
+		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
+		private Set<String> executorTypes = new HashSet<String>(Arrays.asList(
+				"java/util/concurrent/Executor", "java/util/concurrent/ExecutorService", "java/util/concurrent/ScheduledExecutorService",
+				"java/util/concurrent/AbstractExecutorService", "java/util/concurrent/ThreadPoolExecutor",
+				"java/util/concurrent/ScheduledThreadPoolExecutor", "java/util/concurrent/ForkJoinPool"));
+		
+		public PropagateSymbolsScript build() {
+			if (matchers.isEmpty()) throw new IllegalStateException("You have to set a target method matcher");
+			
+			return new PropagateSymbolsScript(matchers, executorTypes);
+		}
+		
+		/**
+		 * A method in which to wrap the tasks handed to executors.
+		 */
+		public PropagateSymbolsBuilder target(TargetMatcher matcher) {
+			this.matchers.add(matcher);
+			return this;
+		}
+		
+		/**
+		 * Also wrap tasks passed to {@code execute} and {@code submit} calls on this type, such as an executor of your own.
+		 * Calls on the interfaces and classes of {@code java.util.concurrent} are always wrapped.
+		 *
+		 * @param typeName A fully qualified type name, such as {@code com.example.MyExecutor}.
+		 */
+		public PropagateSymbolsBuilder executorType(String typeName) {
+			if (typeName == null) throw new NullPointerException("typeName");
+			this.executorTypes.add(typeName.replace('.', '/'));
+			return this;
+		}
+	}
+	
 	public static class SetSymbolDuringMethodCallBuilder {
 		private List<TargetMatcher> matchers = new ArrayList<TargetMatcher>();
 		private Hook callToWrap;
@@ -553,6 +1096,67 @@ public class ScriptBuilder {
 		return new WrapReturnValueBuilder();
 	}
 	
+	/**
+	 * Caches the results of a method: On entry, the cache is checked, and at every return, the result is stored in it.
+	 * This replaces combining an {@link #exitEarly()} and a {@link #wrapReturnValue()} script around a cache of your own.
+	 */
+	public static MemoizeBuilder memoize() {
+		return new MemoizeBuilder();
+	}
+	
+	/**
+	 * Times every call to a method, whether it returns or throws, into a histogram per method. This replaces combining an
+	 * {@link #exitEarly()} and a {@link #wrapReturnValue()} script that share a start time, which can't see exceptions.
+	 */
+	public static TimingProbeBuilder timingProbe() {
+		return new TimingProbeBuilder();
+	}
+	
+	/**
+	 * Counts how often a method is called. To then probe only the most called of a set of methods in detail, see {@link TieredProbe}.
+	 */
+	public static CountEntriesBuilder countEntries() {
+		return new CountEntriesBuilder();
+	}
+	
+	/**
+	 * Counts how often each call site inside a method runs, without calling a hook of your own for it.
+	 */
+	public static CountCallsBuilder countCalls() {
+		return new CountCallsBuilder();
+	}
+	
+	/**
+	 * Counts how often each object and array creation inside a method runs. Remove the script from the {@code ScriptManager} and reload
+	 * the changed classes to get rid of the counting code again.
+	 */
+	public static CountAllocationsBuilder countAllocations() {
+		return new CountAllocationsBuilder();
+	}
+	
+	/**
+	 * Times how long each {@code synchronized} block inside a method waits for its monitor, when it has to wait at all.
+	 */
+	public static MonitorContentionBuilder monitorContention() {
+		return new MonitorContentionBuilder();
+	}
+	
+	/**
+	 * Like {@link #wrapReturnValue()} or {@link #wrapMethodCall()} with a wrapper that returns nothing, except that the requested values
+	 * are handed to a background thread, so the patched code doesn't wait for the work the wrapper would have done.
+	 */
+	public static BufferEventsBuilder bufferEvents() {
+		return new BufferEventsBuilder();
+	}
+	
+	/**
+	 * Makes tasks that method B hands to executors run with the symbols that were on the stack when they were handed over, so that
+	 * {@link #setSymbolDuringMethodCall()} symbols survive the hop to a pool thread; see {@link lombok.patcher.Symbols#snapshot()}.
+	 */
+	public static PropagateSymbolsBuilder propagateSymbols() {
+		return new PropagateSymbolsBuilder();
+	}
+	
 	/**
 	 * Allows you to push a symbol for the duration of all calls to method A in method B.
 	 */
@@ -21,11 +21,13 @@
  */
 package lombok.patcher.scripts;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import lombok.patcher.Hook;
 import lombok.patcher.MethodLogistics;
+import lombok.patcher.PatchDiagnostics;
 import lombok.patcher.TargetMatcher;
 import lombok.patcher.TransplantMapper;
 
@@ -39,6 +41,8 @@ import org.objectweb.asm.Opcodes;
  * Will wrap any invocation to a given method in another given method by setting a symbol for the duration
  * of the method, properly guarded with a try/finally block. See {@link lombok.patcher.Symbols} for how to
  * query symbols states.
+ * 
+ * All calls in a class to the same method, with the same opcode, go through the same wrapper method.
  */
 public class SetSymbolDuringMethodCallScript extends MethodLevelPatchScript {
 	private final Hook callToWrap;
@@ -59,17 +63,19 @@ public class SetSymbolDuringMethodCallScript extends MethodLevelPatchScript {
 	}
 	
 	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
-		final List<WrapperMethodDescriptor> descriptors = new ArrayList<WrapperMethodDescriptor>();
+		final Map<String, WrapperMethodDescriptor> descriptors = new LinkedHashMap<String, WrapperMethodDescriptor>();
+		final int[] wrappedCalls = new int[1];
 		
 		final MethodPatcher patcher = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
 			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
-				return new WrapWithSymbol(name, parent, classSpec, descriptors);
+				return new WrapWithSymbol(name, parent, classSpec, descriptors, wrappedCalls);
 			}
 		}) {
 			@Override public void visitEnd() {
-				for (WrapperMethodDescriptor wmd : descriptors) {
+				for (WrapperMethodDescriptor wmd : descriptors.values()) {
 					makeWrapperMethod(this, wmd);
 				}
+				if (wrappedCalls[0] > 0) PatchDiagnostics.reportWrappers(wrappedCalls[0], descriptors.size());
 				super.visitEnd();
 			}
 		};
@@ -108,13 +114,15 @@ public class SetSymbolDuringMethodCallScript extends MethodLevelPatchScript {
 	private class WrapWithSymbol extends MethodVisitor {
 		private final String selfMethodName;
 		private final String selfTypeName;
-		private final List<WrapperMethodDescriptor> descriptors;
+		private final Map<String, WrapperMethodDescriptor> descriptors;
+		private final int[] wrappedCalls;
 		
-		public WrapWithSymbol(String selfMethodName, MethodVisitor mv, String selfTypeName, List<WrapperMethodDescriptor> descriptors) {
+		public WrapWithSymbol(String selfMethodName, MethodVisitor mv, String selfTypeName, Map<String, WrapperMethodDescriptor> descriptors, int[] wrappedCalls) {
 			super(Opcodes.ASM9, mv);
 			this.selfMethodName = selfMethodName;
 			this.selfTypeName = selfTypeName;
 			this.descriptors = descriptors;
+			this.wrappedCalls = wrappedCalls;
 		}
 		
 		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
@@ -141,11 +149,16 @@ public class SetSymbolDuringMethodCallScript extends MethodLevelPatchScript {
 				fixedDesc = desc;
 			}
 			
-			WrapperMethodDescriptor wmd = new WrapperMethodDescriptor(descriptors.size(), opcode, owner, name, fixedDesc, desc, itf);
+			String key = opcode + " " + owner + "." + name + desc + (itf ? " itf" : "");
+			WrapperMethodDescriptor wmd = descriptors.get(key);
+			if (wmd == null) {
+				wmd = new WrapperMethodDescriptor(descriptors.size(), opcode, owner, name, fixedDesc, desc, itf);
+				descriptors.put(key, wmd);
+			}
+			wrappedCalls[0]++;
 			
 			if (report) System.out.println("Changing method " + selfTypeName + "::" + selfMethodName + " wrapping call to " + owner + "::" + name + " to set symbol " + symbol);
 			super.visitMethodInsn(Opcodes.INVOKESTATIC, selfTypeName, wmd.getWrapperName(), fixedDesc, false);
-			descriptors.add(wmd);
 		}
 	}
 }
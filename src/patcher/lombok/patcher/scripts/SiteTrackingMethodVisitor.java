@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import lombok.patcher.ProbeSite;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Keeps track of the index of the instruction being visited, and the line it is on, so that probe scripts can describe the
+ * {@link ProbeSite} they are instrumenting. Subclasses must call {@code super} for every instruction of the original method, and must
+ * write the instructions they add straight to {@code mv}, so that those aren't counted.
+ */
+abstract class SiteTrackingMethodVisitor extends MethodVisitor {
+	private final String ownClassSpec, methodName, methodDescriptor;
+	private int instructionIndex = -1;
+	private int line = -1;
+	
+	SiteTrackingMethodVisitor(MethodVisitor mv, String ownClassSpec, String methodName, String methodDescriptor) {
+		super(Opcodes.ASM9, mv);
+		this.ownClassSpec = ownClassSpec;
+		this.methodName = methodName;
+		this.methodDescriptor = methodDescriptor;
+	}
+	
+	/**
+	 * Describes the instruction that is about to be passed on to {@code super}.
+	 */
+	protected ProbeSite nextSite(String description) {
+		return new ProbeSite(ownClassSpec, methodName, methodDescriptor, instructionIndex + 1, line, description);
+	}
+	
+	@Override public void visitLineNumber(int line, Label start) {
+		this.line = line;
+		super.visitLineNumber(line, start);
+	}
+	
+	@Override public void visitInsn(int opcode) {
+		instructionIndex++;
+		super.visitInsn(opcode);
+	}
+	
+	@Override public void visitIntInsn(int opcode, int operand) {
+		instructionIndex++;
+		super.visitIntInsn(opcode, operand);
+	}
+	
+	@Override public void visitVarInsn(int opcode, int var) {
+		instructionIndex++;
+		super.visitVarInsn(opcode, var);
+	}
+	
+	@Override public void visitTypeInsn(int opcode, String type) {
+		instructionIndex++;
+		super.visitTypeInsn(opcode, type);
+	}
+	
+	@Override public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+		instructionIndex++;
+		super.visitFieldInsn(opcode, owner, name, descriptor);
+	}
+	
+	@Override public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+		instructionIndex++;
+		super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+	}
+	
+	@Override public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+		instructionIndex++;
+		super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+	}
+	
+	@Override public void visitJumpInsn(int opcode, Label label) {
+		instructionIndex++;
+		super.visitJumpInsn(opcode, label);
+	}
+	
+	@Override public void visitLdcInsn(Object value) {
+		instructionIndex++;
+		super.visitLdcInsn(value);
+	}
+	
+	@Override public void visitIincInsn(int var, int increment) {
+		instructionIndex++;
+		super.visitIincInsn(var, increment);
+	}
+	
+	@Override public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+		instructionIndex++;
+		super.visitTableSwitchInsn(min, max, dflt, labels);
+	}
+	
+	@Override public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+		instructionIndex++;
+		super.visitLookupSwitchInsn(dflt, keys, labels);
+	}
+	
+	@Override public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+		instructionIndex++;
+		super.visitMultiANewArrayInsn(descriptor, numDimensions);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import lombok.patcher.MethodTarget;
+import lombok.patcher.PatchScript;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.ScriptManager;
+import lombok.patcher.TargetMatcher;
+
+import org.objectweb.asm.Type;
+
+/**
+ * Instruments many candidate methods in two stages, so that only the hot ones pay for a detailed probe.
+ * 
+ * Stage one ({@link #start()}) patches all candidates with an {@link EntryCounterScript}. Stage two ({@link #promote()}, or
+ * {@link #promoteAfter(long)} to have it happen on a background thread) picks the {@code topN} most called candidates, asks the
+ * {@link ProbeFactory} for a detailed probe for exactly those methods, and puts it in the place of the entry counters. The changed
+ * classes are then reloaded: hot methods get the probe, and everything else goes back to its unpatched form.
+ */
+public final class TieredProbe {
+	private final ScriptManager manager;
+	private final Instrumentation instrumentation;
+	private final EntryCounterScript counters;
+	private final int topN;
+	private final ProbeFactory factory;
+	
+	private boolean started;
+	private List<MethodTarget> hotMethods;
+	private PatchScript probe;
+	
+	public interface ProbeFactory {
+		/**
+		 * @param hotMethods The methods to probe in detail, hottest first. Never empty.
+		 * @return A script that probes (at least) these methods, such as one built with {@link ScriptBuilder#timingProbe()}.
+		 */
+		PatchScript createProbe(List<MethodTarget> hotMethods);
+	}
+	
+	/**
+	 * @param topN How many of the candidates to probe in detail.
+	 * @param candidates The methods to count calls of in stage one.
+	 */
+	public TieredProbe(ScriptManager manager, Instrumentation instrumentation, ProbeFactory factory, int topN, TargetMatcher... candidates) {
+		if (manager == null) throw new NullPointerException("manager");
+		if (instrumentation == null) throw new NullPointerException("instrumentation");
+		if (factory == null) throw new NullPointerException("factory");
+		if (topN < 1) throw new IllegalArgumentException("topN must be at least 1");
+		if (candidates.length == 0) throw new IllegalArgumentException("You have to supply at least one candidate");
+		this.manager = manager;
+		this.instrumentation = instrumentation;
+		this.factory = factory;
+		this.topN = topN;
+		this.counters = new EntryCounterScript(new ArrayList<TargetMatcher>(Arrays.asList(candidates)));
+	}
+	
+	/**
+	 * Stage one: adds the entry counters, and reloads the classes that changed (see
+	 * {@link ScriptManager#reloadChangedClasses(Instrumentation)}).
+	 */
+	public synchronized void start() {
+		if (started) throw new IllegalStateException("Already started");
+		started = true;
+		manager.addScript(counters);
+		manager.reloadChangedClasses(instrumentation);
+	}
+	
+	/**
+	 * Schedules {@link #promote()} to run on a background thread after {@code millis} milliseconds.
+	 */
+	public void promoteAfter(long millis) {
+		final Timer timer = new Timer("lombok.patcher tiered probe", true);
+		timer.schedule(new TimerTask() {
+			@Override public void run() {
+				try {
+					promote();
+				} catch (Throwable t) {
+					System.err.printf("Promoting %s failed. Trace:\n", counters.getPatchScriptName());
+					t.printStackTrace();
+				} finally {
+					timer.cancel();
+				}
+			}
+		}, millis);
+	}
+	
+	/**
+	 * Stage two: replaces the entry counters with a detailed probe for the {@code topN} most called candidates, and reloads the classes
+	 * that changed. Candidates that were never called are never picked; if none were, the counters are just removed.
+	 *
+	 * @return The methods that are now probed, hottest first.
+	 */
+	public synchronized List<MethodTarget> promote() {
+		if (!started) throw new IllegalStateException("Not started");
+		if (hotMethods != null) throw new IllegalStateException("Already promoted");
+		
+		List<Map.Entry<ProbeSite, Long>> counts = new ArrayList<Map.Entry<ProbeSite, Long>>(counters.getCounts().entrySet());
+		Collections.sort(counts, new Comparator<Map.Entry<ProbeSite, Long>>() {
+			public int compare(Map.Entry<ProbeSite, Long> a, Map.Entry<ProbeSite, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		List<MethodTarget> hot = new ArrayList<MethodTarget>();
+		for (Map.Entry<ProbeSite, Long> e : counts) {
+			if (hot.size() == topN || e.getValue() == 0) break;
+			hot.add(toMethodTarget(e.getKey()));
+		}
+		hotMethods = Collections.unmodifiableList(hot);
+		
+		if (hot.isEmpty()) {
+			manager.removeScript(counters);
+		} else {
+			probe = factory.createProbe(hotMethods);
+			manager.replaceScript(counters, probe);
+		}
+		manager.reloadChangedClasses(instrumentation);
+		return hotMethods;
+	}
+	
+	private static MethodTarget toMethodTarget(ProbeSite site) {
+		Type[] params = Type.getArgumentTypes(site.getDescriptor());
+		String[] paramSpecs = new String[params.length];
+		for (int i = 0; i < params.length; i++) paramSpecs[i] = params[i].getClassName();
+		return new MethodTarget(site.getClassSpec().replace('/', '.'), site.getMethodName(), Type.getReturnType(site.getDescriptor()).getClassName(), paramSpecs);
+	}
+	
+	/**
+	 * @return The number of calls of every candidate so far; stops going up once promoted.
+	 */
+	public Map<ProbeSite, Long> getEntryCounts() {
+		return counters.getCounts();
+	}
+	
+	/**
+	 * @return The methods that were picked by {@link #promote()}, hottest first, or {@code null} if it hasn't run yet.
+	 */
+	public synchronized List<MethodTarget> getHotMethods() {
+		return hotMethods;
+	}
+	
+	/**
+	 * @return The probe that replaced the entry counters, or {@code null} if there is none (yet).
+	 */
+	public synchronized PatchScript getProbe() {
+		return probe;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2009-2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.patcher.MethodLogistics;
+import lombok.patcher.MethodTimings;
+import lombok.patcher.TargetMatcher;
+import lombok.patcher.TransplantMapper;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
+
+/**
+ * Measures how long each call to the target method takes, including calls that end with an exception. The results end up in
+ * {@link MethodTimings}.
+ * 
+ * On entry, {@code System.nanoTime()} is stored in a new local. In front of every return, {@link MethodTimings#record(int, long)} is
+ * called with it, and a handler around the entire method body calls {@link MethodTimings#recordThrown(int, long)} and rethrows. As this
+ * handler is the last one in the exception table, exceptions the target catches itself are not affected. Constructors can't be timed.
+ */
+public final class TimingProbeScript extends MethodLevelPatchScript {
+	private static final String METHOD_TIMINGS = "lombok/patcher/MethodTimings";
+	
+	private final SampleBaselines samples = new SampleBaselines() {
+		@Override long samplesAt(int id) {
+			MethodTimings.Timing timing = MethodTimings.get(id);
+			return timing.getReturned().getCount() + timing.getThrown().getCount();
+		}
+	};
+	
+	@Override public String getPatchScriptName() {
+		return "time " + describeMatchers();
+	}
+	
+	TimingProbeScript(List<TargetMatcher> matchers) {
+		super(matchers);
+	}
+	
+	@Override public long getSamplesTaken() {
+		return samples.getSamplesTaken();
+	}
+	
+	@Override protected boolean needsExpandedFrames() {
+		return true;
+	}
+	
+	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		return new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
+			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				if (name.equals("<init>")) throw new IllegalArgumentException("constructor " + desc + " of " + classSpec + " can't be timed");
+				return new TimingProbe(parent, logistics, classSpec, name, desc);
+			}
+		});
+	}
+	
+	private class TimingProbe extends LocalVariablesSorter {
+		private final MethodLogistics logistics;
+		private final String ownClassSpec, name, desc;
+		private final Label start = new Label();
+		private int id = -1;
+		private int startLocal;
+		
+		TimingProbe(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String name, String desc) {
+			super(Opcodes.ASM9, logistics.isStatic() ? Opcodes.ACC_STATIC : 0, desc, mv);
+			this.logistics = logistics;
+			this.ownClassSpec = ownClassSpec;
+			this.name = name;
+			this.desc = desc;
+		}
+		
+		/* Inject:
+		 * long start = System.nanoTime();
+		 */
+		@Override public void visitCode() {
+			super.visitCode();
+			id = MethodTimings.register(ownClassSpec, name, desc);
+			samples.register(id);
+			startLocal = newLocal(Type.LONG_TYPE);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+			mv.visitVarInsn(Opcodes.LSTORE, startLocal);
+			mv.visitLabel(start);
+		}
+		
+		/* Inject, in front of every return:
+		 * MethodTimings.record(id, start);
+		 */
+		@Override public void visitInsn(int opcode) {
+			if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+				mv.visitLdcInsn(Integer.valueOf(id));
+				mv.visitVarInsn(Opcodes.LLOAD, startLocal);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, METHOD_TIMINGS, "record", "(IJ)V", false);
+			}
+			super.visitInsn(opcode);
+		}
+		
+		/* Inject, around the entire method:
+		 * catch (Throwable t) {
+		 *     MethodTimings.recordThrown(id, start);
+		 *     throw t;
+		 * }
+		 */
+		@Override public void visitMaxs(int maxStack, int maxLocals) {
+			if (id != -1) {
+				Label end = new Label(), handler = new Label();
+				mv.visitLabel(end);
+				mv.visitTryCatchBlock(start, end, handler, null);
+				mv.visitLabel(handler);
+				insertHandlerFrame();
+				mv.visitLdcInsn(Integer.valueOf(id));
+				mv.visitVarInsn(Opcodes.LLOAD, startLocal);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, METHOD_TIMINGS, "recordThrown", "(IJ)V", false);
+				mv.visitInsn(Opcodes.ATHROW);
+			}
+			super.visitMaxs(maxStack, maxLocals);
+		}
+		
+		/**
+		 * In the handler, only the start time is needed; the parameters in front of it are left untyped, as the target might have
+		 * assigned anything to them.
+		 */
+		private void insertHandlerFrame() {
+			List<Object> locals = new ArrayList<Object>();
+			if (!logistics.isStatic()) locals.add(Opcodes.TOP);
+			for (Type param : Type.getArgumentTypes(desc)) {
+				for (int i = 0; i < param.getSize(); i++) locals.add(Opcodes.TOP);
+			}
+			locals.add(Opcodes.LONG);
+			mv.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), 1, new Object[] {"java/lang/Throwable"});
+		}
+	}
+}
@@ -21,10 +21,13 @@
  */
 package lombok.patcher.scripts;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import lombok.patcher.Hook;
+import lombok.patcher.HookLinker;
 import lombok.patcher.MethodLogistics;
 import lombok.patcher.MethodTarget;
 import lombok.patcher.StackRequest;
@@ -34,6 +37,7 @@ import lombok.patcher.TransplantMapper;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 /**
  * Inserts a method call to your static method immediately after any method call to a given method. You can inspect the returned
@@ -46,7 +50,7 @@ import org.objectweb.asm.Opcodes;
 public class WrapMethodCallScript extends MethodLevelPatchScript {
 	private final Hook wrapper;
 	private final Hook callToWrap;
-	private final boolean transplant, insert;
+	private final boolean transplant, insert, dynamic, guarded;
 	private final boolean leaveReturnValueIntact;
 	private final Set<StackRequest> extraRequests;
 	
@@ -54,7 +58,7 @@ public class WrapMethodCallScript extends MethodLevelPatchScript {
 		return "wrap " + callToWrap.getMethodName() + " with " + wrapper.getMethodName() + " in " + describeMatchers();
 	}
 	
-	WrapMethodCallScript(List<TargetMatcher> matchers, Hook callToWrap, Hook wrapper, boolean transplant, boolean insert, Set<StackRequest> extraRequests) {
+	WrapMethodCallScript(List<TargetMatcher> matchers, Hook callToWrap, Hook wrapper, boolean transplant, boolean insert, boolean dynamic, boolean guarded, Set<StackRequest> extraRequests) {
 		super(matchers);
 		if (callToWrap == null) throw new NullPointerException("callToWrap");
 		if (wrapper == null) throw new NullPointerException("wrapper");
@@ -63,18 +67,61 @@ public class WrapMethodCallScript extends MethodLevelPatchScript {
 		this.wrapper = wrapper;
 		this.transplant = transplant;
 		this.insert = insert;
+		this.dynamic = dynamic || guarded;
+		this.guarded = guarded;
+		if (guarded && !wrapper.getMethodDescriptor().endsWith(")V") && callToWrap.getMethodDescriptor().endsWith(")V") && !callToWrap.isConstructor()) {
+			throw new IllegalArgumentException("A wrapper that produces a value for a void method call cannot be switched off.");
+		}
 		assert !(insert && transplant);
 		this.extraRequests = extraRequests;
 	}
 	
+	@Override protected boolean insertsHooks() {
+		return insert;
+	}
+	
+	@Override public Collection<Hook> getCopiedHooks() {
+		return transplant || insert ? Collections.singletonList(wrapper) : Collections.<Hook>emptyList();
+	}
+	
+	@Override protected boolean isGuarded() {
+		return guarded;
+	}
+	
+	@Override protected void checkCanBeSampled() {
+		if (wrapper.getMethodDescriptor().endsWith(")V")) return;
+		Type[] params = Type.getArgumentTypes(wrapper.getMethodDescriptor());
+		if (params.length == 0 || !params[0].equals(Type.getReturnType(wrapper.getMethodDescriptor()))) {
+			throw new IllegalArgumentException("A wrapper that produces a value without receiving the same kind of value cannot be sampled.");
+		}
+	}
+	
 	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		final boolean[] patchedAny = new boolean[1];
 		final MethodPatcher patcher = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
 			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
+				patchedAny[0] = true;
 				return new WrapMethodCall(parent, classSpec, logistics);
 			}
-		});
+		}) {
+			@Override public void visitEnd() {
+				if (patchedAny[0] && isSampled()) {
+					boolean returnsValue = !wrapper.getMethodDescriptor().endsWith(")V");
+					int whenSkipped = returnsValue ? HookLinker.WHEN_DISABLED_RETURN_FIRST_ARGUMENT : HookLinker.WHEN_DISABLED_RETURN_DEFAULT;
+					makeSampledMethod(this, classSpec, wrapper, transplant, insert, whenSkipped, null);
+				}
+				super.visitEnd();
+			}
+		};
 		
 		if (transplant) patcher.addTransplant(wrapper);
+		if (guarded) {
+			boolean returnsValue = !wrapper.getMethodDescriptor().endsWith(")V");
+			int whenDisabled = returnsValue ? HookLinker.WHEN_DISABLED_RETURN_FIRST_ARGUMENT : HookLinker.WHEN_DISABLED_RETURN_DEFAULT;
+			patcher.addGuardedHook(wrapper, getSwitchId(), whenDisabled, null);
+		} else if (dynamic) {
+			patcher.addDynamicHook(wrapper);
+		}
 		
 		return patcher;
 	}
@@ -103,7 +150,8 @@ public class WrapMethodCallScript extends MethodLevelPatchScript {
 					if (!extraRequests.contains(param)) continue;
 					logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
 				}
-				if (insert) insertMethod(wrapper, mv);
+				if (isSampled()) super.visitMethodInsn(Opcodes.INVOKESTATIC, ownClassSpec, getSampledMethodName(wrapper), wrapper.getMethodDescriptor(), false);
+				else if (insert) insertMethod(wrapper, mv);
 				else super.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : wrapper.getClassSpec(),
 						wrapper.getMethodName(), wrapper.getMethodDescriptor(), false);
 			}
@@ -21,27 +21,45 @@
  */
 package lombok.patcher.scripts;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import lombok.patcher.Hook;
+import lombok.patcher.HookLinker;
 import lombok.patcher.MethodLogistics;
+import lombok.patcher.PatchDiagnostics;
 import lombok.patcher.StackRequest;
 import lombok.patcher.TargetMatcher;
 import lombok.patcher.TransplantMapper;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
 
 /**
  * Will find every 'return' instruction in the target method and will insert right before it a call to the wrapper.
+ * 
+ * With a shared exit, every 'return' instruction is instead replaced by a jump to a single block at the end of the method, which calls the
+ * wrapper and returns. The code to call the wrapper is then only there once, no matter how many returns the target method has.
+ * A 'return' that leaves more than its return value on the stack can't jump to that block, and gets its own call to the wrapper instead.
  */
 public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 	private final Hook wrapper;
 	private final Set<StackRequest> requests;
 	private final boolean hijackReturnValue;
-	private final boolean transplant, insert, cast;
+	private final boolean transplant, insert, dynamic, guarded, cast, sharedExit;
 	
 	@Override public String getPatchScriptName() {
 		return "wrap returns with " + wrapper.getMethodName() + " in " + describeMatchers();
@@ -52,9 +70,12 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 	 * @param wrapper A call to this method will be inserted in front of each return in the target method (must be static).
 	 * @param transplant If true, the method content is loaded directly into the target class. Make sure you don't call
 	 *   helper methods if you use this!
+	 * @param dynamic If true, the wrapper is called via {@code invokedynamic}; see {@link lombok.patcher.HookLinker}.
+	 * @param guarded If true, the wrapper is called via {@code invokedynamic} in a way that lets it be switched off at runtime.
+	 * @param sharedExit If true, all returns jump to one block that calls the wrapper, instead of calling it in front of each return.
 	 * @param requests The kinds of parameters you want your hook method to receive.
 	 */
-	WrapReturnValuesScript(List<TargetMatcher> matchers, Hook wrapper, boolean transplant, boolean insert, boolean cast, Set<StackRequest> requests) {
+	WrapReturnValuesScript(List<TargetMatcher> matchers, Hook wrapper, boolean transplant, boolean insert, boolean dynamic, boolean guarded, boolean cast, boolean sharedExit, Set<StackRequest> requests) {
 		super(matchers);
 		if (wrapper == null) throw new NullPointerException("wrapper");
 		this.wrapper = wrapper;
@@ -62,19 +83,66 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 		this.requests = requests;
 		this.transplant = transplant;
 		this.insert = insert;
+		this.dynamic = dynamic || guarded;
+		this.guarded = guarded;
 		this.cast = cast && hijackReturnValue;
+		this.sharedExit = sharedExit;
+		if (guarded && hijackReturnValue && !requests.contains(StackRequest.RETURN_VALUE)) {
+			throw new IllegalArgumentException("A wrapper that replaces the return value without receiving it cannot be switched off.");
+		}
 		assert !(insert && transplant);
 		assert !(cast && insert);
 	}
 	
+	@Override protected boolean insertsHooks() {
+		return insert;
+	}
+	
+	@Override public Collection<Hook> getCopiedHooks() {
+		return transplant || insert ? Collections.singletonList(wrapper) : Collections.<Hook>emptyList();
+	}
+	
+	@Override protected boolean isGuarded() {
+		return guarded;
+	}
+	
+	@Override protected void checkCanBeSampled() {
+		if (hijackReturnValue && !receivesAndReturnsReturnValue()) {
+			throw new IllegalArgumentException("A wrapper that replaces the return value without receiving it cannot be sampled.");
+		}
+	}
+	
+	private boolean receivesAndReturnsReturnValue() {
+		if (!requests.contains(StackRequest.RETURN_VALUE)) return false;
+		Type[] params = Type.getArgumentTypes(wrapper.getMethodDescriptor());
+		return params.length > 0 && params[0].equals(Type.getReturnType(wrapper.getMethodDescriptor()));
+	}
+	
 	@Override protected MethodPatcher createPatcher(ClassWriter writer, final String classSpec, TransplantMapper transplantMapper) {
+		final boolean[] patchedAny = new boolean[1];
 		final MethodPatcher patcher = new MethodPatcher(writer, transplantMapper, new MethodPatcherFactory() {
 			public MethodVisitor createMethodVisitor(String name, String desc, MethodVisitor parent, MethodLogistics logistics) {
-				return new WrapReturnValues(parent, logistics, classSpec, desc);
+				patchedAny[0] = true;
+				if (sharedExit) return new FindSharedReturns(parent, logistics, classSpec, name, desc);
+				return new WrapReturnValues(parent, logistics, classSpec, name, desc, null);
+			}
+		}) {
+			@Override public void visitEnd() {
+				if (patchedAny[0] && isSampled()) {
+					int whenSkipped = hijackReturnValue ? HookLinker.WHEN_DISABLED_RETURN_FIRST_ARGUMENT : HookLinker.WHEN_DISABLED_RETURN_DEFAULT;
+					makeSampledMethod(this, classSpec, wrapper, transplant, insert, whenSkipped, null);
+				}
+				super.visitEnd();
 			}
-		});
+		};
 		
 		if (transplant) patcher.addTransplant(wrapper);
+		if (guarded) {
+			int whenDisabled = hijackReturnValue ? HookLinker.WHEN_DISABLED_RETURN_FIRST_ARGUMENT : HookLinker.WHEN_DISABLED_RETURN_DEFAULT;
+			patcher.addGuardedHook(wrapper, getSwitchId(), whenDisabled, null);
+		} else if (dynamic) {
+			patcher.addDynamicHook(wrapper);
+		}
 		
 		return patcher;
 	}
@@ -88,16 +156,62 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 		return rd;
 	}
 	
+	/**
+	 * Buffers the method to find, by analysis, which of its returns leave nothing but the return value on the stack, as only those can
+	 * jump to the shared exit. Analysis works whether or not the class file has stack map frames.
+	 */
+	private class FindSharedReturns extends MethodNode {
+		private final MethodVisitor parent;
+		private final MethodLogistics logistics;
+		private final String ownClassSpec;
+		
+		FindSharedReturns(MethodVisitor parent, MethodLogistics logistics, String ownClassSpec, String name, String desc) {
+			super(Opcodes.ASM9, logistics.isStatic() ? Opcodes.ACC_STATIC : 0, name, desc, null, null);
+			this.parent = parent;
+			this.logistics = logistics;
+			this.ownClassSpec = ownClassSpec;
+		}
+		
+		@Override public void visitEnd() {
+			Frame<BasicValue>[] frames;
+			try {
+				frames = new Analyzer<BasicValue>(new BasicInterpreter()).analyze(ownClassSpec, this);
+			} catch (AnalyzerException e) {
+				throw new IllegalStateException("Can't analyze " + name + desc + " in " + ownClassSpec, e);
+			}
+			
+			int returnValueSize = Type.getReturnType(desc).getSort() == Type.VOID ? 0 : 1;
+			List<Boolean> shared = new ArrayList<Boolean>();
+			for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn.getOpcode() != logistics.getReturnOpcode()) continue;
+				Frame<BasicValue> frame = frames[instructions.indexOf(insn)];
+				shared.add(frame != null && frame.getStackSize() == returnValueSize);
+			}
+			
+			accept(new WrapReturnValues(parent, logistics, ownClassSpec, name, desc, shared));
+		}
+	}
+	
 	private class WrapReturnValues extends MethodVisitor {
 		private final MethodLogistics logistics;
 		private final String ownClassSpec;
 		private final String returnValueDesc;
+		private final String name, desc;
+		private final Label exit = new Label();
+		private final List<Boolean> shared;
+		private int returnIndex, returnCount;
 		
-		public WrapReturnValues(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String desc) {
+		/**
+		 * @param shared For each return in the method, in order, whether it can jump to the shared exit; {@code null} if none of them do.
+		 */
+		public WrapReturnValues(MethodVisitor mv, MethodLogistics logistics, String ownClassSpec, String name, String desc, List<Boolean> shared) {
 			super(Opcodes.ASM9, mv);
+			this.shared = shared;
 			this.logistics = logistics;
 			this.ownClassSpec = ownClassSpec;
 			this.returnValueDesc = extractReturnValueFromDesc(desc);
+			this.name = name;
+			this.desc = desc;
 		}
 		
 		@Override public void visitInsn(int opcode) {
@@ -106,6 +220,50 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 				return;
 			}
 			
+			if (shared != null && shared.get(returnIndex++)) {
+				returnCount++;
+				super.visitJumpInsn(Opcodes.GOTO, exit);
+				return;
+			}
+			
+			insertWrapperCall();
+			super.visitInsn(opcode);
+		}
+		
+		@Override public void visitMaxs(int maxStack, int maxLocals) {
+			if (returnCount > 0) {
+				mv.visitLabel(exit);
+				insertExitFrame();
+				insertWrapperCall();
+				logistics.generateReturnOpcode(mv);
+				PatchDiagnostics.reportSharedExit(name, desc, returnCount);
+			}
+			super.visitMaxs(maxStack, maxLocals);
+		}
+		
+		/**
+		 * Only the return value, and the parameters the wrapper asked for, are guaranteed to hold something sensible at every return.
+		 */
+		private void insertExitFrame() {
+			List<Object> locals = new ArrayList<Object>();
+			if (!logistics.isStatic()) locals.add(requests.contains(StackRequest.THIS) ? ownClassSpec : Opcodes.TOP);
+			Type[] paramTypes = Type.getArgumentTypes(desc);
+			for (int i = 0; i < paramTypes.length; i++) {
+				if (i < StackRequest.PARAMS_IN_ORDER.size() && requests.contains(StackRequest.PARAMS_IN_ORDER.get(i))) {
+					locals.add(MethodLogistics.frameTypeOf(paramTypes[i].getDescriptor()));
+				} else {
+					for (int j = 0; j < paramTypes[i].getSize(); j++) locals.add(Opcodes.TOP);
+				}
+			}
+			while (!locals.isEmpty() && locals.get(locals.size() - 1) == Opcodes.TOP) locals.remove(locals.size() - 1);
+			
+			Type returnType = Type.getReturnType(desc);
+			Object[] stack = new Object[0];
+			if (returnType.getSort() != Type.VOID) stack = new Object[] {MethodLogistics.frameTypeOf(returnType.getDescriptor())};
+			mv.visitFrame(Opcodes.F_FULL, locals.size(), locals.toArray(), stack.length, stack);
+		}
+		
+		private void insertWrapperCall() {
 			if (requests.contains(StackRequest.RETURN_VALUE)) {
 				if (!hijackReturnValue) {
 					//The supposed return value is on stack, but the wrapper wants it and will not supply a new one, so duplicate it.
@@ -125,7 +283,9 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 				logistics.generateLoadOpcodeForParam(param.getParamPos(), mv);
 			}
 			
-			if (insert) {
+			if (isSampled()) {
+				super.visitMethodInsn(Opcodes.INVOKESTATIC, ownClassSpec, getSampledMethodName(wrapper), wrapper.getMethodDescriptor(), false);
+			} else if (insert) {
 				insertMethod(wrapper, mv);
 			} else {
 				super.visitMethodInsn(Opcodes.INVOKESTATIC, transplant ? ownClassSpec : wrapper.getClassSpec(), wrapper.getMethodName(),
@@ -133,11 +293,10 @@ public final class WrapReturnValuesScript extends MethodLevelPatchScript {
 			}
 			
 			if (cast) super.visitTypeInsn(Opcodes.CHECKCAST, returnValueDesc);
-			super.visitInsn(opcode);
 		}
 	}
 	
 	@Override public String toString() {
-		return "WrapReturnValues(wrapper: " + wrapper + ", hijackReturn: " + hijackReturnValue + ", transplant: " + transplant + ", insert: " + insert + ", requests: " + requests + ")";
+		return "WrapReturnValues(wrapper: " + wrapper + ", hijackReturn: " + hijackReturnValue + ", transplant: " + transplant + ", insert: " + insert + ", dynamic: " + dynamic + ", guarded: " + guarded + ", sharedExit: " + sharedExit + ", sampled: " + isSampled() + ", requests: " + requests + ")";
 	}
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestClassByteStore {
+	private static byte[] bytes(String s, int repeat) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < repeat; i++) sb.append(s);
+		return sb.toString().getBytes("UTF-8");
+	}
+	
+	@Test
+	public void keepsBothVersionsPerLoader() throws Exception {
+		ClassByteStore store = new ClassByteStore();
+		ClassLoader loader = TestClassByteStore.class.getClassLoader();
+		byte[] original = bytes("original", 500);
+		byte[] patched = bytes("patched!", 600);
+		store.put(null, "a/B", original, patched, 1);
+		store.put(loader, "a/B", patched, original, 1);
+		
+		assertTrue(Arrays.equals(original, store.getOriginal(null, "a/B")));
+		assertTrue(Arrays.equals(patched, store.getPatched(null, "a/B")));
+		assertTrue(Arrays.equals(patched, store.getOriginal(loader, "a/B")));
+		assertNull(store.getOriginal(null, "a/C"));
+		assertEquals(2, store.size());
+		assertTrue("compressed", store.getOffHeapBytes() < 2 * (original.length + patched.length) / 10);
+		
+		store.remove(loader, "a/B");
+		assertEquals(1, store.size());
+		assertFalse(store.contains(loader, "a/B"));
+	}
+	
+	@Test
+	public void patchedIsOnlyCurrentForSameInputAndVersion() throws Exception {
+		ClassByteStore store = new ClassByteStore();
+		byte[] original = bytes("abc", 10);
+		byte[] patched = bytes("xyz", 10);
+		store.put(null, "a/B", original, patched, 3);
+		
+		assertTrue(Arrays.equals(patched, store.getPatchedIfCurrent(null, "a/B", bytes("abc", 10), 3)));
+		assertNull("other version", store.getPatchedIfCurrent(null, "a/B", original, 4));
+		assertNull("other input", store.getPatchedIfCurrent(null, "a/B", bytes("abd", 10), 3));
+	}
+	
+	@Test
+	public void exportsLikeTheDebugDir() throws Exception {
+		ClassByteStore store = new ClassByteStore();
+		store.put(null, "a/B", bytes("o", 3), bytes("p", 3), 1);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "lombok.patcher.export." + System.nanoTime());
+		assertEquals(1, store.exportTo(dir));
+		assertEquals("ppp", read(new File(dir, "a/B.class")));
+		assertEquals("ooo", read(new File(dir, "a/B_OLD.class")));
+		new File(dir, "a/B.class").delete();
+		new File(dir, "a/B_OLD.class").delete();
+		new File(dir, "a").delete();
+		dir.delete();
+	}
+	
+	private static String read(File f) throws Exception {
+		FileInputStream in = new FileInputStream(f);
+		byte[] b = new byte[(int) f.length()];
+		in.read(b);
+		in.close();
+		return new String(b, "UTF-8");
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestEventRing {
+	private final List<Object> handled = Collections.synchronizedList(new ArrayList<Object>());
+	private final List<Integer> batchSizes = new ArrayList<Integer>();
+	private final EventRing.Handler handler = new EventRing.Handler() {
+		public void handle(List<Object[]> events) {
+			batchSizes.add(events.size());
+			for (Object[] event : events) handled.add(event[0]);
+		}
+	};
+	
+	@Test
+	public void dropWhenFull() {
+		EventRing ring = new EventRing(3, EventRing.Overflow.DROP, 3, handler);
+		assertEquals(4, ring.getCapacity());
+		for (int i = 0; i < 6; i++) assertEquals(i < 4, ring.offer(new Object[] {i}));
+		assertEquals(2, ring.getDropped());
+		assertEquals(4, ring.size());
+		
+		assertEquals(3, ring.drain());
+		assertEquals(1, ring.drain());
+		assertEquals(0, ring.drain());
+		assertEquals(Arrays.<Object>asList(0, 1, 2, 3), handled);
+		assertEquals(Arrays.asList(3, 1), batchSizes);
+	}
+	
+	@Test
+	public void overwriteOldest() {
+		EventRing ring = new EventRing(2, EventRing.Overflow.OVERWRITE, 10, handler);
+		for (int i = 0; i < 5; i++) assertTrue(ring.offer(new Object[] {i}));
+		assertEquals(3, ring.getOverwritten());
+		assertEquals(0, ring.getDropped());
+		ring.drain();
+		assertEquals(Arrays.<Object>asList(3, 4), handled);
+	}
+	
+	@Test
+	public void manyProducersOneConsumer() throws Exception {
+		final EventRing ring = new EventRing(64, EventRing.Overflow.BLOCK, 16, handler);
+		ring.start();
+		Thread[] producers = new Thread[4];
+		for (int t = 0; t < producers.length; t++) {
+			final int base = t * 1000;
+			producers[t] = new Thread() {
+				@Override public void run() {
+					for (int i = 0; i < 1000; i++) EventRing.publish(new Object[] {base + i}, ring.getId());
+				}
+			};
+			producers[t].start();
+		}
+		for (Thread t : producers) t.join();
+		ring.stop();
+		
+		assertEquals(4000, handled.size());
+		assertEquals(4000, new HashSet<Object>(handled).size());
+		assertEquals(0, ring.getDropped());
+		assertEquals(0, ring.size());
+	}
+	
+	@Test
+	public void publishOnlyWhileStarted() throws Exception {
+		EventRing ring = new EventRing(4, EventRing.Overflow.DROP, 4, handler);
+		EventRing.publish(new Object[] {1}, ring.getId());
+		ring.start();
+		EventRing.publish(new Object[] {2}, ring.getId());
+		ring.stop();
+		EventRing.publish(new Object[] {3}, ring.getId());
+		assertEquals(Arrays.<Object>asList(2), handled);
+		assertEquals(0, ring.size());
+		
+		ring.start();
+		EventRing.publish(new Object[] {4}, ring.getId());
+		ring.stop();
+		assertEquals(Arrays.<Object>asList(2, 4), handled);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+import lombok.patcher.scripts.ScriptBuilder;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class TestHookLinker {
+	private static final String EX1 = "lombok/patcher/TestHookLinkerEx1";
+	private static final Hook HOOK = new Hook("lombok.patcher.TestHookLinker", "doubleIt", "int", "int");
+	
+	@Test
+	public void swapHook() throws Throwable {
+		byte[] patched = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "value", "int", "int"))
+				.wrapMethod(HOOK).invokeDynamic().request(StackRequest.RETURN_VALUE)
+				.build().patch(EX1, makeEx1(Opcodes.V1_7), TransplantMapper.IDENTITY_MAPPER);
+		Method value = load(patched).getMethod("value", int.class);
+		
+		assertEquals("linked", 10, value.invoke(null, 5));
+		HookLinker.swap(HOOK, MethodHandles.lookup().findStatic(TestHookLinker.class, "tripleIt", MethodType.methodType(int.class, int.class)));
+		assertEquals("swapped", 15, value.invoke(null, 5));
+		HookLinker.swap(HOOK, null);
+		assertEquals("restored", 10, value.invoke(null, 5));
+	}
+	
+	@Test
+	public void oldClassFilesCallHookStatically() throws Throwable {
+		byte[] patched = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "value", "int", "int"))
+				.wrapMethod(HOOK).invokeDynamic().request(StackRequest.RETURN_VALUE)
+				.build().patch(EX1, makeEx1(Opcodes.V1_5), TransplantMapper.IDENTITY_MAPPER);
+		
+		assertEquals("static call", 10, load(patched).getMethod("value", int.class).invoke(null, 5));
+	}
+	
+	@Test
+	public void switchScriptsOff() throws Throwable {
+		PatchScript wrap = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "value", "int", "int"))
+				.wrapMethod(new Hook("lombok.patcher.TestHookLinker", "tripleIt", "int", "int")).guarded().request(StackRequest.RETURN_VALUE)
+				.build();
+		PatchScript replace = ScriptBuilder.replaceMethodCall()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "upper", "java.lang.String", "java.lang.String"))
+				.methodToReplace(new Hook("java.lang.String", "toUpperCase", "java.lang.String"))
+				.replacementMethod(new Hook("lombok.patcher.TestHookLinker", "shout", "java.lang.String", "java.lang.String")).guarded()
+				.build();
+		byte[] patched = wrap.patch(EX1, makeEx1(Opcodes.V1_7), TransplantMapper.IDENTITY_MAPPER);
+		patched = replace.patch(EX1, patched, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = load(patched);
+		Method value = ex1.getMethod("value", int.class);
+		Method upper = ex1.getMethod("upper", String.class);
+		ScriptManager sm = new ScriptManager();
+		
+		assertEquals("wrapped", 15, value.invoke(null, 5));
+		assertEquals("replaced", "hi!", upper.invoke(null, "hi"));
+		sm.setScriptEnabled(wrap, false);
+		assertFalse(sm.isScriptEnabled(wrap));
+		assertEquals("wrap disabled", 5, value.invoke(null, 5));
+		assertEquals("replace still enabled", "hi!", upper.invoke(null, "hi"));
+		sm.setScriptEnabled(replace, false);
+		assertEquals("replace disabled", "HI", upper.invoke(null, "hi"));
+		sm.setScriptEnabled(wrap, true);
+		sm.setScriptEnabled(replace, true);
+		assertEquals("wrap enabled again", 15, value.invoke(null, 5));
+		assertEquals("replace enabled again", "hi!", upper.invoke(null, "hi"));
+	}
+	
+	@Test
+	public void switchedOffSuperCallStaysSuperCall() throws Throwable {
+		PatchScript replace = ScriptBuilder.replaceMethodCall()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "superString", "java.lang.String"))
+				.methodToReplace(new Hook("java.lang.Object", "toString", "java.lang.String"))
+				.replacementMethod(new Hook("lombok.patcher.TestHookLinker", "describe", "java.lang.String", "java.lang.Object")).guarded()
+				.build();
+		Class<?> ex1 = load(replace.patch(EX1, makeEx1(Opcodes.V1_7), TransplantMapper.IDENTITY_MAPPER));
+		Object instance = ex1.getConstructor().newInstance();
+		Method superString = ex1.getMethod("superString");
+		ScriptManager sm = new ScriptManager();
+		
+		assertEquals("replaced", "described", superString.invoke(instance));
+		sm.setScriptEnabled(replace, false);
+		assertEquals("replace disabled", ex1.getName() + "@" + Integer.toHexString(System.identityHashCode(instance)), superString.invoke(instance));
+		sm.setScriptEnabled(replace, true);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void onlyGuardedScriptsCanBeSwitchedOff() {
+		PatchScript script = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.TestHookLinkerEx1", "value", "int", "int"))
+				.wrapMethod(HOOK).invokeDynamic().request(StackRequest.RETURN_VALUE).build();
+		new ScriptManager().setScriptEnabled(script, false);
+	}
+	
+	public static int doubleIt(int x) {
+		return x * 2;
+	}
+	
+	public static int tripleIt(int x) {
+		return x * 3;
+	}
+	
+	public static String shout(String s) {
+		return s + "!";
+	}
+	
+	public static String describe(Object o) {
+		return "described";
+	}
+	
+	/**
+	 * Generated, so that it has the required class file version regardless of what the tests are compiled to.
+	 */
+	private static byte[] makeEx1(int version) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(version, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, EX1, null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "(I)I", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "upper", "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "toUpperCase", "()Ljava/lang/String;", false);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "toString", "()Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn("overridden");
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "superString", "()Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "toString", "()Ljava/lang/String;", false);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+	
+	private static Class<?> load(final byte[] bytes) throws ClassNotFoundException {
+		ClassLoader loader = new ClassLoader(TestHookLinker.class.getClassLoader()) {
+			@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+				if (!name.equals(EX1.replace('/', '.'))) throw new ClassNotFoundException(name);
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		};
+		return Class.forName(EX1.replace('/', '.'), true, loader);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestMemoCache {
+	private static Object[] key(Object... parts) {
+		return parts;
+	}
+	
+	@Test
+	public void lruEvictsLeastRecentlyUsed() {
+		MemoCache cache = MemoCache.create(MemoCache.Eviction.LRU, 2);
+		cache.put(key("a"), 1);
+		cache.put(key("b"), 2);
+		assertEquals(1, cache.get(key("a")));
+		cache.put(key("c"), 3);
+		assertSame(NotHandled.NOT_HANDLED, cache.get(key("b")));
+		assertEquals(1, cache.get(key("a")));
+		assertEquals(1, cache.getEvictions());
+	}
+	
+	@Test
+	public void sizeEvictsOldest() {
+		MemoCache cache = MemoCache.create(MemoCache.Eviction.SIZE, 2);
+		cache.put(key("a", 1), 1);
+		cache.put(key("b", 1), 2);
+		assertEquals(1, cache.get(key("a", 1)));
+		cache.put(key("c", 1), 3);
+		assertSame(NotHandled.NOT_HANDLED, cache.get(key("a", 1)));
+		assertEquals(2, cache.get(key("b", 1)));
+	}
+	
+	@Test
+	public void weakKeysAndNulls() {
+		MemoCache cache = MemoCache.create(MemoCache.Eviction.WEAK_KEYS, 1);
+		Object k1 = new Object(), k2 = new Object();
+		cache.put(key(k1), null);
+		assertNull(cache.get(key(k1)));
+		cache.put(key(k2), "x");
+		assertEquals(1, cache.size());
+		assertEquals("x", cache.get(key(k2)));
+		assertEquals(2, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+	
+	@Test
+	public void segmentsNeverExceedMaxSize() {
+		MemoCache cache = MemoCache.create(MemoCache.Eviction.LRU, 40);
+		for (int i = 0; i < 1000; i++) cache.put(key(i), i);
+		assertTrue(cache.size() <= 40);
+	}
+	
+	@Test
+	public void patchedCodeFindsCacheById() {
+		MemoCache cache = MemoCache.create(MemoCache.Eviction.SIZE, 4);
+		assertSame(NotHandled.NOT_HANDLED, MemoCache.lookup(cache.getId(), key("k")));
+		MemoCache.store("v", cache.getId(), key("k"));
+		assertEquals("v", MemoCache.lookup(cache.getId(), key("k")));
+		assertEquals("v", cache.get(key("k")));
+	}
+}
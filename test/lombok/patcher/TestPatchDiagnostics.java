@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import lombok.patcher.scripts.ScriptBuilder;
+
+import org.junit.Test;
+
+public class TestPatchDiagnostics {
+	private static byte[] readClass(String name) throws Exception {
+		InputStream in = TestPatchDiagnostics.class.getResourceAsStream("/lombok/patcher/" + name + ".class");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+		in.close();
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void codeSizes() throws Exception {
+		Map<String, Integer> sizes = PatchDiagnostics.codeSizes(readClass("TestPatchDiagnosticsEx1"));
+		assertEquals("constructor", 5, (int) sizes.get("<init>()V"));
+		assertEquals("small", 2, (int) sizes.get("small()I"));
+		assertNull("abstract", sizes.get("none()V"));
+	}
+	
+	@Test
+	public void thresholds() {
+		assertTrue(InlineThreshold.MAX_INLINE_SIZE.isCrossed(30, 36));
+		assertFalse(InlineThreshold.MAX_INLINE_SIZE.isCrossed(30, 35));
+		assertFalse(InlineThreshold.MAX_INLINE_SIZE.isCrossed(40, 50));
+		
+		MethodSizeChange change = new MethodSizeChange("a/B", "c", "()V", 300, 8100, Collections.singletonList("script"));
+		assertEquals(7800, change.getGrowth());
+		assertEquals(Arrays.asList(InlineThreshold.FREQ_INLINE_SIZE, InlineThreshold.HUGE_METHOD_LIMIT), change.getCrossedThresholds());
+	}
+	
+	@Test
+	public void sharedExitSavings() throws Exception {
+		byte[] original = readClass("TestPatchDiagnosticsEx2");
+		int before = PatchDiagnostics.codeSizes(original).get("pick(I)I");
+		int plain = PatchDiagnostics.codeSizes(patchPick(original, false)).get("pick(I)I");
+		
+		PatchDiagnostics.startCollectingReports();
+		int shared = PatchDiagnostics.codeSizes(patchPick(original, true)).get("pick(I)I");
+		Map<String, Integer> reports = PatchDiagnostics.stopCollectingReports().sharedExits;
+		
+		assertEquals("returns", 5, (int) reports.get("pick(I)I"));
+		assertEquals("saving", plain - shared, PatchDiagnostics.sharedExitSaving(5, shared - before));
+		assertTrue("shared exit is smaller", shared < plain);
+	}
+	
+	private static byte[] patchPick(byte[] original, boolean sharedExit) {
+		ScriptBuilder.WrapReturnValueBuilder builder = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.TestPatchDiagnosticsEx2", "pick", "int", "int"))
+				.wrapMethod(new Hook("lombok.patcher.TestPatchDiagnosticsEx2", "wrap", "int", "int", "java.lang.Object", "int"))
+				.request(StackRequest.RETURN_VALUE, StackRequest.THIS, StackRequest.PARAM1);
+		if (sharedExit) builder.sharedExit();
+		return builder.build().patch("lombok/patcher/TestPatchDiagnosticsEx2", original, TransplantMapper.IDENTITY_MAPPER);
+	}
+}
+
+abstract class TestPatchDiagnosticsEx1 {
+	int small() {
+		return 1;
+	}
+	
+	abstract void none();
+}
+
+class TestPatchDiagnosticsEx2 {
+	int pick(int x) {
+		switch (x) {
+		case 0: return 5;
+		case 1: return 7;
+		case 2: return 11;
+		case 3: return 13;
+		}
+		return 17;
+	}
+	
+	static int wrap(int returnValue, Object self, int x) {
+		return returnValue;
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import lombok.patcher.scripts.ScriptBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestScriptManager {
+	private final List<String> retransformed = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> redefined = new ArrayList<String>();
+	private ClassFileTransformer transformer;
+	private Instrumentation instrumentation;
+	
+	@Before
+	public void setUp() {
+		instrumentation = (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("addTransformer")) transformer = (ClassFileTransformer) args[0];
+				if (method.getName().equals("removeTransformer")) return args[0] == transformer;
+				if (method.getName().equals("getAllLoadedClasses")) return new Class<?>[] {String.class, Integer.class, Long.class};
+				if (method.getName().equals("retransformClasses")) for (Class<?> c : (Class<?>[]) args[0]) retransformed.add(c.getName());
+				if (method.getName().equals("redefineClasses")) for (ClassDefinition d : (ClassDefinition[]) args[0]) redefined.add(d.getDefinitionClass().getName());
+				return null;
+			}
+		});
+	}
+	
+	@Test
+	public void reloadOnlyChangedClasses() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		PatchScript a = new MarkerScript("A", "java.lang.String");
+		PatchScript b = new MarkerScript("B", "java.lang.Integer");
+		PatchScript c = new MarkerScript("C", "java.lang.String");
+		sm.addScript(a);
+		sm.addScript(b);
+		assertEquals(2, sm.getVersion());
+		assertEquals(new HashSet<String>(Arrays.asList("java.lang.String", "java.lang.Integer")), sm.getPendingReloads());
+		
+		sm.reloadChangedClasses(instrumentation);
+		assertEquals(Arrays.asList("java.lang.String", "java.lang.Integer"), retransformed);
+		assertTrue(sm.getPendingReloads().isEmpty());
+		assertEquals("[A]", transform("java/lang/String"));
+		
+		retransformed.clear();
+		sm.replaceScript(a, c);
+		assertTrue(sm.removeScript(b));
+		assertFalse(sm.removeScript(b));
+		assertEquals(4, sm.getVersion());
+		sm.reloadChangedClasses(instrumentation);
+		assertEquals(Arrays.asList("java.lang.String", "java.lang.Integer"), retransformed);
+		assertEquals("[C]", transform("java/lang/String"));
+		assertNull(transform("java/lang/Integer"));
+		
+		retransformed.clear();
+		sm.reloadChangedClasses(instrumentation);
+		assertTrue(retransformed.isEmpty());
+	}
+	
+	@Test
+	public void rollbackAndRepatchFromKeptClassFiles() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setKeepClassBytes(true);
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		sm.addScript(a);
+		
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals("kept result reused", 1, a.runs);
+		assertEquals(1, sm.getClassByteStore().size());
+		
+		assertEquals(1, sm.rollback(instrumentation, Arrays.asList("java.lang.String", "java.lang.Integer")));
+		assertEquals(Collections.singletonList("java.lang.String"), redefined);
+		assertNull(transform("java/lang/String"));
+		byte[] otherLoader = transformer.transform(new ClassLoader() {}, "java/lang/String", null, null, "[".getBytes("UTF-8"));
+		assertEquals("only rolled back for its own loader", "[A]", new String(otherLoader, "UTF-8") + "]");
+		assertEquals(2, a.runs);
+		
+		assertEquals(1, sm.repatch(instrumentation, Collections.singleton("java.lang.String")));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals(2, a.runs);
+		
+		sm.addScript(new MarkerScript("B", "java.lang.String"));
+		assertEquals("[AB]", transform("java/lang/String"));
+		assertEquals("scripts changed", 3, a.runs);
+		
+		sm.setFilter(Filter.ALWAYS);
+		assertEquals("[AB]", transform("java/lang/String"));
+		assertEquals("filter changed", 4, a.runs);
+		sm.setGrowthBudget(a, -1);
+		assertEquals("[AB]", transform("java/lang/String"));
+		assertEquals("growth budget changed", 5, a.runs);
+		sm.setTransplantMapper(null);
+		assertEquals("[AB]", transform("java/lang/String"));
+		assertEquals("transplant mapper changed", 6, a.runs);
+	}
+	
+	@Test
+	public void removeAllocationCounting() throws Exception {
+		String className = "lombok/patcher/scripts/TestAllocationCounterScriptEx1";
+		byte[] original = readClassFile(className);
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		PatchScript script = ScriptBuilder.countAllocations()
+				.target(new MethodTarget("lombok.patcher.scripts.TestAllocationCounterScriptEx1", "build"))
+				.build();
+		sm.addScript(script);
+		sm.reloadChangedClasses(instrumentation);
+		assertNotNull(transformer.transform(null, className, null, null, original));
+		
+		assertTrue(sm.removeScript(script));
+		assertTrue(sm.getPendingReloads().contains("lombok.patcher.scripts.TestAllocationCounterScriptEx1"));
+		sm.reloadChangedClasses(instrumentation);
+		assertNull("no counting code left", transformer.transform(null, className, null, null, original));
+	}
+	
+	@Test
+	public void retireTemporaryScripts() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setProbeCheckInterval(10);
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		MarkerScript b = new MarkerScript("B", "java.lang.Integer");
+		a.samples = 500;
+		sm.addTemporaryScript(a, 100, 0, instrumentation);
+		sm.addTemporaryScript(b, -1, 50, instrumentation);
+		sm.addScript(new MarkerScript("C", "java.lang.Long"));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals("[B]", transform("java/lang/Integer"));
+		Thread.sleep(30);
+		assertEquals("samples taken before it was added don't count", "[A]", transform("java/lang/String"));
+		
+		a.samples = 600;
+		awaitRetransformed("java.lang.String");
+		assertNull(transform("java/lang/String"));
+		awaitRetransformed("java.lang.Integer");
+		assertNull(transform("java/lang/Integer"));
+		assertEquals("[C]", transform("java/lang/Long"));
+		assertEquals("only the retired scripts' classes are reloaded", 2, retransformed.size());
+		assertTrue(sm.getPendingReloads().contains("java.lang.Long"));
+		assertFalse(sm.retireScript(a, instrumentation));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void sampleBudgetRequiresSamples() {
+		new ScriptManager().addTemporaryScript(new MarkerScript("A", "java.lang.String"), 10, 0, instrumentation);
+	}
+	
+	private static void awaitPrepatched(ScriptManager sm, String className) throws InterruptedException {
+		for (int i = 0; i < 500 && !sm.isPrepatched(className); i++) Thread.sleep(10);
+		assertTrue(className + " pre-patched", sm.isPrepatched(className));
+	}
+	
+	private void awaitRetransformed(String className) throws InterruptedException {
+		for (int i = 0; i < 500 && !retransformed.contains(className); i++) Thread.sleep(10);
+		assertTrue(className + " reloaded", retransformed.contains(className));
+	}
+	
+	@Test
+	public void warmUpReadsCopiedHooks() throws Exception {
+		Hook hook = new Hook("lombok.patcher.TestScriptManager", "wrap", "int", "int");
+		Hook missing = new Hook("lombok.patcher.NoSuchHook", "wrap", "int", "int");
+		List<PatchScript> scripts = Arrays.<PatchScript>asList(
+				ScriptBuilder.wrapReturnValue().target(new MethodTarget("a.B", "c")).wrapMethod(hook).transplant().build(),
+				ScriptBuilder.wrapReturnValue().target(new MethodTarget("a.B", "d")).wrapMethod(hook).insert().build(),
+				ScriptBuilder.wrapReturnValue().target(new MethodTarget("a.B", "e")).wrapMethod(missing).transplant().build(),
+				ScriptBuilder.wrapReturnValue().target(new MethodTarget("a.B", "f")).wrapMethod(missing).build());
+		assertEquals("read once, missing one skipped", 1, WarmUp.run(scripts));
+		
+		ScriptManager sm = new ScriptManager();
+		for (PatchScript script : scripts) sm.addScript(script);
+		Thread warmUp = sm.warmUpInBackground();
+		assertTrue(warmUp.isDaemon());
+		warmUp.join(10000);
+		assertFalse(warmUp.isAlive());
+	}
+	
+	public static int wrap(int value) {
+		return value;
+	}
+	
+	@Test
+	public void recordAndPrepatchStartupProfile() throws Exception {
+		String className = "lombok/patcher/TestScriptManager";
+		byte[] original = readClassFile(className);
+		ProtectionDomain domain = TestScriptManager.class.getProtectionDomain();
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.addScript(new MarkerScript("A", "lombok.patcher.TestScriptManager"));
+		StartupProfile profile = new StartupProfile();
+		sm.recordStartupProfile(profile);
+		transformer.transform(null, className, null, domain, original);
+		transformer.transform(null, className, null, domain, original);
+		assertNull(transformer.transform(null, "java/lang/String", null, domain, "[".getBytes("UTF-8")));
+		assertEquals("only patched classes, once", 1, profile.size());
+		
+		File file = File.createTempFile("startup", ".profile");
+		try {
+			profile.write(file);
+			profile = StartupProfile.read(file);
+		} finally {
+			file.delete();
+		}
+		assertEquals(className, profile.getEntries().get(0).getClassName());
+		assertEquals(original.length, profile.getEntries().get(0).getLength());
+		
+		sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		MarkerScript b = new MarkerScript("B", "lombok.patcher.TestScriptManager");
+		sm.addScript(b);
+		assertEquals(1, sm.prepatch(profile, 2));
+		awaitPrepatched(sm, className);
+		assertEquals(1, b.runs);
+		byte[] changed = original.clone();
+		changed[changed.length - 1]++;
+		assertEquals(original.length + 1, transformer.transform(null, className, null, domain, changed).length);
+		assertEquals("class file differs from the pre-patched one", 2, b.runs);
+		
+		assertEquals(1, sm.prepatch(profile, 1));
+		awaitPrepatched(sm, className);
+		assertEquals(3, b.runs);
+		assertEquals(original.length + 1, transformer.transform(null, className, null, domain, original).length);
+		assertEquals("pre-patched result used", 3, b.runs);
+		assertEquals(original.length + 1, transformer.transform(null, className, null, domain, original).length);
+		assertEquals("pre-patched results are used once", 4, b.runs);
+	}
+	
+	@Test
+	public void failedPrepatchesAreNotKeptOrCounted() throws Exception {
+		String className = "lombok/patcher/TestScriptManager";
+		byte[] original = readClassFile(className);
+		StartupProfile profile = new StartupProfile();
+		profile.record(className, TestScriptManager.class.getProtectionDomain().getCodeSource().getLocation(), original);
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setFailureThreshold(1);
+		MarkerScript a = new MarkerScript("A", "lombok.patcher.TestScriptManager");
+		a.fail = true;
+		sm.addScript(a);
+		PrintStream err = System.err;
+		ByteArrayOutputStream reported = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(reported));
+		try {
+			assertEquals(1, sm.prepatch(profile, 1));
+			for (int i = 0; i < 500 && a.calls == 0; i++) Thread.sleep(10);
+			Thread.sleep(50);
+		} finally {
+			System.setErr(err);
+		}
+		assertEquals(1, a.calls);
+		assertFalse(sm.isPrepatched(className));
+		assertTrue(sm.getQuarantinedScripts().isEmpty());
+		assertEquals("", reported.toString());
+		
+		a.fail = false;
+		assertEquals(original.length + 1, transformer.transform(null, className, null, null, original).length);
+	}
+	
+	@Test
+	public void skipClassesNoScriptTargets() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		a.indexed = true;
+		sm.addScript(a);
+		assertNull(transform("java/lang/Long"));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals(1, a.calls);
+		
+		MarkerScript b = new MarkerScript("B", "java.lang.Integer");
+		sm.addScript(b);
+		assertNull(transform("java/lang/Long"));
+		assertEquals("every class is offered to a script that doesn't say what it patches", 2, a.calls);
+		assertEquals(1, b.calls);
+	}
+	
+	@Test
+	public void rememberClassesLeftAlone() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setNegativeCacheSize(100);
+		final List<String> filtered = new ArrayList<String>();
+		sm.setFilter(new Filter() {
+			public boolean shouldTransform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+				filtered.add(className);
+				return !className.equals("java/lang/Long");
+			}
+		});
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		sm.addScript(a);
+		
+		assertNull(transform("java/lang/Integer"));
+		assertNull(transform("java/lang/Integer"));
+		assertNull(transform("java/lang/Long"));
+		assertNull(transform("java/lang/Long"));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals(Arrays.asList("java/lang/Integer", "java/lang/Long", "java/lang/String", "java/lang/String"), filtered);
+		assertEquals(3, a.calls);
+		assertEquals(2, sm.getNegativeCache().getHits());
+		
+		assertNull("different class file", transformer.transform(null, "java/lang/Integer", null, null, "[[".getBytes("UTF-8")));
+		assertEquals(4, a.calls);
+		
+		sm.addScript(new MarkerScript("B", "java.lang.Integer"));
+		assertEquals("scripts changed", "[B]", transform("java/lang/Integer"));
+		sm.setFilter(null);
+		assertNull("filter changed", transform("java/lang/Long"));
+		assertEquals(6, a.calls);
+		assertNull(transform("java/lang/Long"));
+		assertEquals(6, a.calls);
+	}
+	
+	@Test
+	public void quarantineFailingScripts() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setFailureThreshold(3);
+		sm.setFailureReportInterval(60000);
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		MarkerScript b = new MarkerScript("B", "java.lang.String");
+		a.fail = true;
+		sm.addScript(a);
+		sm.addScript(b);
+		sm.reloadChangedClasses(instrumentation);
+		
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		PrintStream oldErr = System.err;
+		System.setErr(new PrintStream(err, true));
+		try {
+			for (int i = 0; i < 5; i++) assertEquals("[B]", transform("java/lang/String"));
+		} finally {
+			System.setErr(oldErr);
+		}
+		assertEquals("skipped once quarantined", 3, a.calls);
+		String[] report = err.toString().split("\n");
+		assertTrue(report[0].startsWith("Transformer"));
+		String last = report[report.length - 1];
+		assertTrue("one trace, then only the quarantine: " + last, last.contains("quarantined=true") && last.endsWith("unreported=1"));
+		assertEquals(1, sm.getQuarantinedScripts().size());
+		ScriptManager.ScriptFailures failures = sm.getQuarantinedScripts().get(0);
+		assertSame(a, failures.getScript());
+		assertEquals(3, failures.getFailureCount());
+		assertEquals("java/lang/String", failures.getLastClassName());
+		assertEquals("broken", failures.getLastError().getMessage());
+		
+		a.fail = false;
+		assertFalse(sm.resetQuarantine(b));
+		assertEquals(1, sm.resetQuarantine());
+		assertTrue(sm.getQuarantinedScripts().isEmpty());
+		assertTrue(sm.getPendingReloads().contains("java.lang.String"));
+		assertEquals("[AB]", transform("java/lang/String"));
+	}
+	
+	@Test
+	public void shareOneTransformer() throws Exception {
+		ScriptManager first = new ScriptManager();
+		ScriptManager second = new ScriptManager();
+		first.setSharedTransformer(true);
+		second.setSharedTransformer(true);
+		first.addScript(new MarkerScript("A", "java.lang.String"));
+		second.addScript(new MarkerScript("B", "java.lang.String"));
+		second.addScript(new MarkerScript("C", "java.lang.Integer"));
+		
+		first.registerTransformer(instrumentation);
+		ClassFileTransformer shared = transformer;
+		transformer = null;
+		second.registerTransformer(instrumentation);
+		assertNull("no second transformer", transformer);
+		transformer = shared;
+		assertEquals(2, TransformerCoordinator.getMemberCount());
+		assertEquals("[AB]", transform("java/lang/String"));
+		assertEquals("[C]", transform("java/lang/Integer"));
+		
+		second.setFilter(new Filter() {
+			public boolean shouldTransform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+				return !className.equals("java/lang/String");
+			}
+		});
+		assertEquals("[A]", transform("java/lang/String"));
+		assertEquals("[C]", transform("java/lang/Integer"));
+		
+		first.unregisterTransformer(instrumentation);
+		assertEquals("[C]", transform("java/lang/Integer"));
+		assertNull(transform("java/lang/String"));
+		second.unregisterTransformer(instrumentation);
+		assertEquals(0, TransformerCoordinator.getMemberCount());
+	}
+	
+	@Test
+	public void firstLoadOnlyScriptsKeepTheirPatchesOnReload() throws Exception {
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setKeepClassBytes(true);
+		MarkerScript a = new MarkerScript("A", "java.lang.String");
+		a.firstLoadOnly = true;
+		sm.addScript(a);
+		assertEquals("[A]", transform("java/lang/String"));
+		assertNull(transform("java/lang/Integer"));
+		
+		MarkerScript b = new MarkerScript("B", "java.lang.Integer");
+		b.firstLoadOnly = true;
+		MarkerScript c = new MarkerScript("C", "java.lang.String");
+		sm.addScript(b);
+		sm.addScript(c);
+		assertEquals("[AC]", reload("java/lang/String", String.class));
+		assertNull("Integer was loaded before B was added", reload("java/lang/Integer", Integer.class));
+		assertEquals(0, b.runs);
+		
+		assertEquals(0, sm.rollback(instrumentation, Collections.singleton("java.lang.String")));
+		try {
+			sm.removeScript(a);
+			fail("first-load-only scripts can't be removed");
+		} catch (IllegalArgumentException expected) {}
+		try {
+			sm.replaceScript(c, b);
+			fail("first-load-only scripts can't replace others");
+		} catch (IllegalArgumentException expected) {}
+		try {
+			sm.addTemporaryScript(a, -1, 1000, instrumentation);
+			fail("first-load-only scripts can't be retired");
+		} catch (IllegalArgumentException expected) {}
+		assertEquals("[AC]", reload("java/lang/String", String.class));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void rollbackRequiresKeptClassFiles() {
+		new ScriptManager().rollback(instrumentation, Collections.singleton("java.lang.String"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void replaceUnknownScript() {
+		new ScriptManager().replaceScript(new MarkerScript("A", "java.lang.String"), new MarkerScript("B", "java.lang.String"));
+	}
+	
+	private static byte[] readClassFile(String className) throws IOException {
+		InputStream in = TestScriptManager.class.getResourceAsStream("/" + className + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[4096];
+			for (int r = in.read(b); r != -1; r = in.read(b)) out.write(b, 0, r);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private String transform(String className) throws Exception {
+		byte[] out = transformer.transform(null, className, null, null, "[".getBytes("UTF-8"));
+		return out == null ? null : new String(out, "UTF-8") + "]";
+	}
+	
+	private String reload(String className, Class<?> loaded) throws Exception {
+		byte[] out = transformer.transform(null, className, loaded, null, "[".getBytes("UTF-8"));
+		return out == null ? null : new String(out, "UTF-8") + "]";
+	}
+	
+	/**
+	 * Appends its name to the 'class file'.
+	 */
+	private static class MarkerScript extends PatchScript {
+		private final String name, target;
+		volatile int runs, calls;
+		volatile long samples = -1;
+		boolean indexed, fail, firstLoadOnly;
+		
+		MarkerScript(String name, String target) {
+			this.name = name;
+			this.target = target;
+		}
+		
+		@Override public Collection<String> getClassesToReload() {
+			return Collections.singleton(target);
+		}
+		
+		@Override public boolean wouldPatch(String className) {
+			return className.replace('/', '.').equals(target);
+		}
+		
+		@Override public long getSamplesTaken() {
+			return samples;
+		}
+		
+		@Override public boolean patchesOnlyClassesToReload() {
+			return indexed;
+		}
+		
+		@Override public boolean patchesOnlyOnFirstLoad() {
+			return firstLoadOnly;
+		}
+		
+		@Override public byte[] patch(String className, byte[] byteCode, TransplantMapper mapper) {
+			calls++;
+			if (!wouldPatch(className)) return null;
+			if (fail) throw new IllegalStateException("broken");
+			runs++;
+			byte[] out = new byte[byteCode.length + name.length()];
+			System.arraycopy(byteCode, 0, out, 0, byteCode.length);
+			for (int i = 0; i < name.length(); i++) out[byteCode.length + i] = (byte) name.charAt(i);
+			return out;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestStripedHistogram {
+	@Test
+	public void buckets() {
+		assertEquals(0, StripedHistogram.bucketOf(0));
+		assertEquals(1, StripedHistogram.bucketOf(1));
+		assertEquals(2, StripedHistogram.bucketOf(3));
+		assertEquals(3, StripedHistogram.bucketOf(4));
+		assertEquals(63, StripedHistogram.bucketOf(Long.MAX_VALUE));
+		assertEquals(7, StripedHistogram.bucketUpperBound(3));
+	}
+	
+	@Test
+	public void snapshots() throws Exception {
+		final StripedHistogram h = new StripedHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override public void run() {
+					for (int i = 1; i <= 100; i++) h.record(i);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		
+		StripedHistogram.Snapshot s = h.snapshot();
+		assertEquals(400, s.getCount());
+		assertEquals(4 * 5050, s.getSum());
+		assertEquals(63, s.getPercentile(50));
+		assertEquals(127, s.getPercentile(100));
+		
+		h.record(1000);
+		StripedHistogram.Snapshot diff = h.snapshot().minus(s);
+		assertEquals(1, diff.getCount());
+		assertEquals(1023, diff.getPercentile(50));
+	}
+}
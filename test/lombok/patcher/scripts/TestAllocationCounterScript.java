@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+
+import lombok.patcher.MethodTarget;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestAllocationCounterScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestAllocationCounterScriptEx1";
+	
+	@Test
+	public void testCountAllocations() throws Exception {
+		byte[] pretransform = readFromStream(TestAllocationCounterScript.class.getResourceAsStream("/lombok/patcher/scripts/TestAllocationCounterScriptEx1.class"));
+		AllocationCounterScript script = ScriptBuilder.countAllocations()
+				.target(new MethodTarget(EX1, "build", "java.lang.Object[]", "int", "boolean"))
+				.arrayLengths()
+				.build();
+		byte[] posttransform = script.patch("lombok/patcher/scripts/TestAllocationCounterScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method buildMethod = ex1.getDeclaredMethod("build", int.class, boolean.class);
+		ex1Constructor.setAccessible(true);
+		buildMethod.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		Object[] result = (Object[]) buildMethod.invoke(instance, 3, true);
+		assertEquals(4, result.length);
+		assertEquals("yes", result[0].toString());
+		buildMethod.invoke(instance, 5, false);
+		
+		Map<ProbeSite, Long> counts = script.getCounts();
+		assertEquals("five allocation sites", 5, counts.size());
+		Iterator<Map.Entry<ProbeSite, Long>> it = counts.entrySet().iterator();
+		Map.Entry<ProbeSite, Long> objects = it.next(), builder = it.next(), ints = it.next(), strings = it.next(), grid = it.next();
+		assertEquals("anewarray java/lang/Object", objects.getKey().getDescription());
+		assertEquals(2L, (long) objects.getValue());
+		assertEquals("new java/lang/StringBuilder", builder.getKey().getDescription());
+		assertEquals(2L, (long) builder.getValue());
+		assertEquals("newarray int", ints.getKey().getDescription());
+		assertEquals(2L, (long) ints.getValue());
+		assertEquals("anewarray java/lang/String", strings.getKey().getDescription());
+		assertEquals(8L, (long) strings.getValue());
+		assertEquals("multianewarray [[J", grid.getKey().getDescription());
+		assertEquals(2L, (long) grid.getValue());
+		
+		Map<ProbeSite, Long> lengths = script.getArrayLengths();
+		assertEquals("multianewarray lengths aren't tracked", 3, lengths.size());
+		assertEquals(8L, (long) lengths.get(objects.getKey()));
+		assertEquals(8L, (long) lengths.get(ints.getKey()));
+		assertEquals("strings are always of length 1", 8L, (long) lengths.get(strings.getKey()));
+	}
+}
+
+class TestAllocationCounterScriptEx1 {
+	Object[] build(int n, boolean flag) {
+		Object[] out = new Object[4];
+		out[0] = new StringBuilder(flag ? "yes" : "no");
+		out[1] = new int[n];
+		for (int i = 0; i < n; i++) {
+			out[2] = new String[1];
+		}
+		out[3] = new long[2][n];
+		return out;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.patcher.EventRing;
+import lombok.patcher.Hook;
+import lombok.patcher.MethodTarget;
+import lombok.patcher.ScriptManager;
+import lombok.patcher.StackRequest;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestBufferedEventScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestBufferedEventScriptEx1";
+	
+	@Test
+	public void testBufferEvents() throws Exception {
+		final List<List<Object>> events = Collections.synchronizedList(new ArrayList<List<Object>>());
+		EventRing.Handler handler = new EventRing.Handler() {
+			public void handle(List<Object[]> batch) {
+				for (Object[] event : batch) events.add(Arrays.asList(event));
+			}
+		};
+		byte[] pretransform = readFromStream(TestBufferedEventScript.class.getResourceAsStream("/lombok/patcher/scripts/TestBufferedEventScriptEx1.class"));
+		BufferedEventScript onReturn = ScriptBuilder.bufferEvents()
+				.target(new MethodTarget(EX1, "scale", "long", "long", "int"))
+				.request(StackRequest.RETURN_VALUE, StackRequest.PARAM1, StackRequest.PARAM2)
+				.handler(handler)
+				.build();
+		BufferedEventScript afterCall = ScriptBuilder.bufferEvents()
+				.target(new MethodTarget(EX1, "parse", "int", "java.lang.String"))
+				.afterCall(new Hook("java.lang.Integer", "parseInt", "int", "java.lang.String"))
+				.request(StackRequest.RETURN_VALUE, StackRequest.THIS)
+				.handler(handler)
+				.build();
+		byte[] posttransform = onReturn.patch("lombok/patcher/scripts/TestBufferedEventScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		posttransform = afterCall.patch("lombok/patcher/scripts/TestBufferedEventScriptEx1", posttransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method scaleMethod = ex1.getDeclaredMethod("scale", long.class, int.class);
+		Method parseMethod = ex1.getDeclaredMethod("parse", String.class);
+		ex1Constructor.setAccessible(true);
+		scaleMethod.setAccessible(true);
+		parseMethod.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals(20L, scaleMethod.invoke(instance, 10L, 2));
+		ScriptManager sm = new ScriptManager();
+		sm.addScript(onReturn);
+		sm.addScript(afterCall);
+		assertEquals(30L, scaleMethod.invoke(instance, 10L, 3));
+		assertEquals(0L, scaleMethod.invoke(instance, 10L, 0));
+		assertTrue(sm.removeScript(onReturn));
+		assertEquals("events before the script was added are ignored", Arrays.<Object>asList(30L, 10L, 3), events.get(0));
+		assertEquals(Arrays.<Object>asList(0L, 10L, 0), events.get(1));
+		
+		assertEquals(43, parseMethod.invoke(instance, "42"));
+		assertTrue(sm.removeScript(afterCall));
+		assertEquals(Arrays.<Object>asList(42, instance), events.get(2));
+		assertEquals(3, events.size());
+		
+		assertEquals(40L, scaleMethod.invoke(instance, 10L, 4));
+		assertEquals("events after the script was removed are ignored", 3, events.size());
+	}
+}
+
+class TestBufferedEventScriptEx1 {
+	long scale(long value, int factor) {
+		if (factor == 0) return 0;
+		return value * factor;
+	}
+	
+	int parse(String s) {
+		return Integer.parseInt(s) + 1;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2009-2019 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import lombok.patcher.Hook;
+import lombok.patcher.MethodTarget;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.SiteCounters;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestCallSiteCounterScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestCallSiteCounterScriptEx1";
+	
+	@Test
+	public void testCountCalls() throws Exception {
+		byte[] pretransform = readFromStream(TestCallSiteCounterScript.class.getResourceAsStream("/lombok/patcher/scripts/TestCallSiteCounterScriptEx1.class"));
+		CallSiteCounterScript script = ScriptBuilder.countCalls()
+				.target(new MethodTarget(EX1, "sum", "int", "java.util.List"))
+				.callTo(new Hook("java.lang.Math", "abs", "int", "int"))
+				.build();
+		byte[] posttransform = script.patch("lombok/patcher/scripts/TestCallSiteCounterScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method sumMethod = ex1.getDeclaredMethod("sum", List.class);
+		ex1Constructor.setAccessible(true);
+		sumMethod.setAccessible(true);
+		
+		List<Integer> values = new ArrayList<Integer>();
+		values.add(-1);
+		values.add(2);
+		values.add(-3);
+		assertEquals(6, sumMethod.invoke(ex1Constructor.newInstance(), values));
+		assertEquals(6, sumMethod.invoke(ex1Constructor.newInstance(), values));
+		
+		Map<ProbeSite, Long> counts = script.getCounts();
+		assertEquals("two calls to abs", 2, counts.size());
+		Iterator<Map.Entry<ProbeSite, Long>> it = counts.entrySet().iterator();
+		Map.Entry<ProbeSite, Long> negative = it.next(), positive = it.next();
+		assertEquals(4L, (long) negative.getValue());
+		assertEquals(2L, (long) positive.getValue());
+		assertEquals(6L, script.getSamplesTaken());
+		assertEquals("call java/lang/Math.abs(I)I", negative.getKey().getDescription());
+		assertEquals("sum", negative.getKey().getMethodName());
+		assertTrue(negative.getKey().getLine() > 0);
+		assertTrue(negative.getKey().getInstructionIndex() < positive.getKey().getInstructionIndex());
+		
+		int slot = SiteCounters.register(negative.getKey());
+		assertEquals("same site, same slot", 4L, SiteCounters.get(slot));
+	}
+}
+
+class TestCallSiteCounterScriptEx1 {
+	int sum(List<Integer> values) {
+		int total = 0;
+		for (int v : values) {
+			if (v < 0) total += Math.abs(v);
+			else total += Math.abs(v) + 0;
+		}
+		return total;
+	}
+}
@@ -31,6 +31,7 @@ import java.lang.reflect.Method;
 
 import lombok.patcher.Hook;
 import lombok.patcher.MethodTarget;
+import lombok.patcher.NotHandled;
 import lombok.patcher.StackRequest;
 import lombok.patcher.TransplantMapper;
 
@@ -77,6 +78,141 @@ public class TestExitFromMethodEarlyScript {
 		assertEquals("returnsSomething", Double.valueOf(Double.NaN), retMethod.invoke(instance));
 	}
 	
+	@Test
+	public void testOutlinedExitEarly() throws Exception {
+		InputStream raw = TestExitFromMethodEarlyScript.class.getResourceAsStream("/lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "returnsSomething", "double"))
+				.decisionMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook2", "boolean"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook4", "double"))
+				.insert().outline().build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", posttransform);
+		Method retMethod = ex1.getMethod("returnsSomething");
+		Method outlined = ex1.getDeclaredMethod("$lombok$$exitEarly$lombok$patcher$scripts$TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2$hook4");
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		retMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		
+		assertTrue("outlined method is synthetic", outlined.isSynthetic());
+		assertEquals("returnsSomething", Double.valueOf(4.5), retMethod.invoke(ex1Constructor.newInstance()));
+	}
+	
+	@Test
+	public void testOutlinedHooksWithSameNameFromOtherClasses() throws Exception {
+		InputStream raw = TestExitFromMethodEarlyScript.class.getResourceAsStream("/lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform1 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "returnsSomething", "double"))
+				.decisionMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook2", "boolean"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook4", "double"))
+				.insert().outline().build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "returnsSomethingElse", "double"))
+				.decisionMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook2", "boolean"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx3",
+						"hook4", "double"))
+				.insert().outline().build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", posttransform2);
+		Method retMethod = ex1.getMethod("returnsSomething");
+		Method otherMethod = ex1.getMethod("returnsSomethingElse");
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		retMethod.setAccessible(true);
+		otherMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("returnsSomething", Double.valueOf(4.5), retMethod.invoke(instance));
+		assertEquals("returnsSomethingElse", Double.valueOf(7.0), otherMethod.invoke(instance));
+	}
+	
+	@Test
+	public void testSingleCallExitEarly() throws Exception {
+		InputStream raw = TestExitFromMethodEarlyScript.class.getResourceAsStream("/lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform1 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "describe", "java.lang.String", "int"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook5", "java.lang.Object", "int"))
+				.sentinelNotHandled().request(StackRequest.PARAM1).build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "count", "long", "int"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook6", "long", "int"))
+				.sentinel(-1L).insert().request(StackRequest.PARAM1).build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform3 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "returnsSomething", "double"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook3", "double"))
+				.sentinel(Double.NaN).build()
+				.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", posttransform2, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", posttransform3);
+		Method describe = ex1.getMethod("describe", int.class);
+		Method count = ex1.getMethod("count", int.class);
+		Method retMethod = ex1.getMethod("returnsSomething");
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		describe.setAccessible(true);
+		count.setAccessible(true);
+		retMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("describe-handled", "patched", describe.invoke(instance, 5));
+		assertEquals("describe-not-handled", "original", describe.invoke(instance, -5));
+		assertEquals("count-handled", Long.valueOf(70L), count.invoke(instance, 7));
+		assertEquals("count-sentinel", Long.valueOf(2L), count.invoke(instance, 0));
+		assertEquals("returnsSomething", Double.valueOf(5.0), retMethod.invoke(instance));
+	}
+	
+	@Test
+	public void testSampledExitEarly() throws Exception {
+		InputStream raw = TestExitFromMethodEarlyScript.class.getResourceAsStream("/lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		ExitFromMethodEarlyScript script1 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "returnsSomething", "double"))
+				.decisionMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook2", "boolean"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook4", "double"))
+				.sample(3).build();
+		ExitFromMethodEarlyScript script2 = ScriptBuilder.exitEarly()
+				.target(new MethodTarget("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", "count", "long", "int"))
+				.valueMethod(new Hook("lombok.patcher.scripts.TestExitFromMethodEarlyScript$TestExitFromMethodEarlyScriptEx2",
+						"hook6", "long", "int"))
+				.sentinel(-1L).insert().sample(1).request(StackRequest.PARAM1).build();
+		byte[] posttransform1 = script1.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = script2.patch("lombok/patcher/scripts/TestExitFromMethodEarlyScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestExitFromMethodEarlyScriptEx1", posttransform2);
+		Method retMethod = ex1.getMethod("returnsSomething");
+		Method count = ex1.getMethod("count", int.class);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		retMethod.setAccessible(true);
+		count.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("returnsSomething-unsampled", Double.valueOf(5.0), retMethod.invoke(instance));
+		assertEquals("returnsSomething-unsampled", Double.valueOf(5.0), retMethod.invoke(instance));
+		assertEquals("returnsSomething-sampled", Double.valueOf(4.5), retMethod.invoke(instance));
+		assertEquals("count-sampled", Long.valueOf(70L), count.invoke(instance, 7));
+		script2.setSampleRate(0);
+		assertEquals("count-unsampled", Long.valueOf(2L), count.invoke(instance, 7));
+	}
+	
 	@SuppressWarnings("all")
 	public static class TestExitFromMethodEarlyScriptEx2 {
 		public static boolean hook1(Object thisRef, int param1, String param2) {
@@ -92,6 +228,27 @@ public class TestExitFromMethodEarlyScript {
 		public static double hook3() {
 			return Double.NaN;
 		}
+		
+		public static double hook4() {
+			double d = 0;
+			for (int i = 0; i < 3; i++) d += 1.5;
+			return d;
+		}
+		
+		public static Object hook5(int x) {
+			return x > 0 ? "patched" : NotHandled.NOT_HANDLED;
+		}
+		
+		public static long hook6(int x) {
+			if (x == 0) return -1L;
+			return x * 10L;
+		}
+	}
+	
+	public static class TestExitFromMethodEarlyScriptEx3 {
+		public static double hook4() {
+			return 7.0;
+		}
 	}
 }
 
@@ -106,4 +263,16 @@ class TestExitFromMethodEarlyScriptEx1 {
 	public double returnsSomething() {
 		return 5.0;
 	}
+	
+	public double returnsSomethingElse() {
+		return 6.0;
+	}
+	
+	public String describe(int x) {
+		return "original";
+	}
+	
+	public long count(int x) {
+		return 2L;
+	}
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009-2019 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import lombok.patcher.MemoCache;
+import lombok.patcher.MethodTarget;
+import lombok.patcher.StackRequest;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestMemoizeScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestMemoizeScriptEx1";
+	
+	@Test
+	public void testMemoize() throws Exception {
+		byte[] pretransform = readFromStream(TestMemoizeScript.class.getResourceAsStream("/lombok/patcher/scripts/TestMemoizeScriptEx1.class"));
+		MemoizeScript square = ScriptBuilder.memoize()
+				.target(new MethodTarget(EX1, "square", "int", "int"))
+				.key(StackRequest.PARAM1).maxSize(2)
+				.build();
+		MemoizeScript greet = ScriptBuilder.memoize()
+				.target(new MethodTarget(EX1, "greet", "java.lang.String", "java.lang.String", "long"))
+				.key(StackRequest.PARAM1, StackRequest.PARAM2).eviction(MemoCache.Eviction.SIZE)
+				.build();
+		byte[] posttransform = square.patch("lombok/patcher/scripts/TestMemoizeScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		posttransform = greet.patch("lombok/patcher/scripts/TestMemoizeScriptEx1", posttransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method squareMethod = ex1.getDeclaredMethod("square", int.class);
+		Method greetMethod = ex1.getDeclaredMethod("greet", String.class, long.class);
+		Field calls = ex1.getDeclaredField("calls");
+		ex1Constructor.setAccessible(true);
+		squareMethod.setAccessible(true);
+		greetMethod.setAccessible(true);
+		calls.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals(49, squareMethod.invoke(instance, 7));
+		assertEquals(49, squareMethod.invoke(instance, 7));
+		assertEquals(-1, squareMethod.invoke(instance, -3));
+		assertEquals(-1, squareMethod.invoke(instance, -3));
+		assertEquals("calls", 2, calls.getInt(instance));
+		assertEquals(2, square.getCache().getHits());
+		assertEquals(2, square.getCache().getMisses());
+		
+		assertEquals(16, squareMethod.invoke(instance, 4));
+		assertEquals("bounded", 2, square.getCache().size());
+		assertEquals(1, square.getCache().getEvictions());
+		
+		assertEquals("a1", greetMethod.invoke(instance, "a", 1L));
+		assertEquals("a1", greetMethod.invoke(instance, "a", 1L));
+		assertEquals("a2", greetMethod.invoke(instance, "a", 2L));
+		assertNull(greetMethod.invoke(instance, null, 1L));
+		assertNull(greetMethod.invoke(instance, null, 1L));
+		assertEquals("calls", 6, calls.getInt(instance));
+	}
+	
+	@Test
+	public void testKeyOfReassignedParameter() throws Exception {
+		byte[] pretransform = readFromStream(TestMemoizeScript.class.getResourceAsStream("/lombok/patcher/scripts/TestMemoizeScriptEx1.class"));
+		MemoizeScript sumTo = ScriptBuilder.memoize()
+				.target(new MethodTarget(EX1, "sumTo", "int", "int"))
+				.key(StackRequest.PARAM1)
+				.build();
+		byte[] posttransform = sumTo.patch("lombok/patcher/scripts/TestMemoizeScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method sumToMethod = ex1.getDeclaredMethod("sumTo", int.class);
+		ex1Constructor.setAccessible(true);
+		sumToMethod.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals(10, sumToMethod.invoke(instance, 4));
+		assertEquals("stored under the key it was called with", 0, sumToMethod.invoke(instance, 0));
+		assertEquals(10, sumToMethod.invoke(instance, 4));
+		assertEquals(1, sumTo.getCache().getHits());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testVoidCannotBeMemoized() throws Exception {
+		byte[] pretransform = readFromStream(TestMemoizeScript.class.getResourceAsStream("/lombok/patcher/scripts/TestMemoizeScriptEx1.class"));
+		ScriptBuilder.memoize().target(new MethodTarget(EX1, "reset", "void")).build()
+				.patch("lombok/patcher/scripts/TestMemoizeScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+	}
+}
+
+class TestMemoizeScriptEx1 {
+	int calls;
+	
+	int square(int x) {
+		calls++;
+		if (x < 0) return -1;
+		return x * x;
+	}
+	
+	String greet(String name, long n) {
+		calls++;
+		return name == null ? null : name + n;
+	}
+	
+	int sumTo(int x) {
+		calls++;
+		int total = 0;
+		while (x > 0) total += x--;
+		return total;
+	}
+	
+	void reset() {
+		calls = 0;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import lombok.patcher.MethodTarget;
+import lombok.patcher.ProbeSite;
+import lombok.patcher.StripedHistogram;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestMonitorContentionScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestMonitorContentionScriptEx1";
+	
+	@Test
+	public void testMonitorContention() throws Exception {
+		byte[] pretransform = readFromStream(TestMonitorContentionScript.class.getResourceAsStream("/lombok/patcher/scripts/TestMonitorContentionScriptEx1.class"));
+		MonitorContentionScript script = ScriptBuilder.monitorContention()
+				.target(new MethodTarget(EX1, "block", "int", "java.lang.Object", "int"))
+				.target(new MethodTarget(EX1, "locked", "boolean"))
+				.target(new MethodTarget(EX1, "staticLocked", "int", "int"))
+				.synchronizedMethods().contendedAfter(0)
+				.build();
+		byte[] posttransform = script.patch("lombok/patcher/scripts/TestMonitorContentionScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		final Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method blockMethod = ex1.getDeclaredMethod("block", Object.class, int.class);
+		Method lockedMethod = ex1.getDeclaredMethod("locked");
+		Method staticLockedMethod = ex1.getDeclaredMethod("staticLocked", int.class);
+		ex1Constructor.setAccessible(true);
+		blockMethod.setAccessible(true);
+		lockedMethod.setAccessible(true);
+		staticLockedMethod.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertFalse("no longer synchronized", Modifier.isSynchronized(lockedMethod.getModifiers()));
+		assertEquals("still holds the monitor", true, lockedMethod.invoke(instance));
+		assertEquals(10, blockMethod.invoke(instance, new Object(), 5));
+		assertEquals(3, staticLockedMethod.invoke(null, 3));
+		try {
+			staticLockedMethod.invoke(null, -1);
+			fail("staticLocked(-1) should throw");
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertFalse("monitor released on exception", Thread.holdsLock(ex1));
+		
+		final Object lock = new Object();
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread holder = new Thread() {
+			@Override public void run() {
+				synchronized (lock) {
+					locked.countDown();
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						// just release it early
+					}
+				}
+			}
+		};
+		holder.start();
+		locked.await();
+		assertEquals(14, blockMethod.invoke(instance, lock, 7));
+		holder.join();
+		
+		Map<ProbeSite, StripedHistogram.Snapshot> waits = script.getWaits();
+		assertEquals(3, waits.size());
+		Iterator<Map.Entry<ProbeSite, StripedHistogram.Snapshot>> it = waits.entrySet().iterator();
+		Map.Entry<ProbeSite, StripedHistogram.Snapshot> block = it.next(), lockedEntry = it.next(), staticEntry = it.next();
+		assertEquals("monitorenter", block.getKey().getDescription());
+		assertEquals(2, block.getValue().getCount());
+		assertTrue("waited for the holder", block.getValue().getSum() >= 10000000L);
+		assertEquals("synchronized method", lockedEntry.getKey().getDescription());
+		assertEquals(-1, lockedEntry.getKey().getInstructionIndex());
+		assertEquals(1, lockedEntry.getValue().getCount());
+		assertEquals(2, staticEntry.getValue().getCount());
+	}
+	
+	@Test
+	public void testStaticSynchronizedMethodsInOldClassFiles() throws Exception {
+		byte[] pretransform = readFromStream(TestMonitorContentionScript.class.getResourceAsStream("/lombok/patcher/scripts/TestMonitorContentionScriptEx1.class"));
+		pretransform[6] = 0;
+		pretransform[7] = 48;
+		MonitorContentionScript script = ScriptBuilder.monitorContention()
+				.target(new MethodTarget(EX1, "locked", "boolean"))
+				.target(new MethodTarget(EX1, "staticLocked", "int", "int"))
+				.synchronizedMethods()
+				.build();
+		assertTrue(script.patchesOnlyOnFirstLoad());
+		assertFalse(ScriptBuilder.monitorContention().target(new MethodTarget(EX1, "block")).build().patchesOnlyOnFirstLoad());
+		byte[] posttransform = script.patch("lombok/patcher/scripts/TestMonitorContentionScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Method lockedMethod = ex1.getDeclaredMethod("locked");
+		Method staticLockedMethod = ex1.getDeclaredMethod("staticLocked", int.class);
+		assertFalse(Modifier.isSynchronized(lockedMethod.getModifiers()));
+		assertTrue("no class constants before java 1.5", Modifier.isSynchronized(staticLockedMethod.getModifiers()));
+		staticLockedMethod.setAccessible(true);
+		assertEquals(4, staticLockedMethod.invoke(null, 4));
+		assertEquals(1, script.getWaits().size());
+	}
+}
+
+class TestMonitorContentionScriptEx1 {
+	int block(Object lock, int x) {
+		synchronized (lock) {
+			return x * 2;
+		}
+	}
+	
+	synchronized boolean locked() {
+		return Thread.holdsLock(this);
+	}
+	
+	static synchronized int staticLocked(int x) {
+		if (x < 0) throw new IllegalArgumentException();
+		return x;
+	}
+}
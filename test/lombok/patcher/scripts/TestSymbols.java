@@ -28,6 +28,11 @@ import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import lombok.patcher.Hook;
 import lombok.patcher.MethodTarget;
@@ -62,6 +67,137 @@ public class TestSymbols {
 		}
 		assertTrue("marker-postinvoke", Symbols.isEmpty());
 	}
+	
+	@Test
+	public void testOneWrapperPerCalledMethod() throws Throwable {
+		InputStream raw = TestSymbols.class.getResourceAsStream("/lombok/patcher/scripts/TestSymbolsEx2.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform = ScriptBuilder.setSymbolDuringMethodCall()
+				.target(new MethodTarget("lombok.patcher.scripts.TestSymbolsEx2", "aMethod"))
+				.target(new MethodTarget("lombok.patcher.scripts.TestSymbolsEx2", "dMethod"))
+				.callToWrap(new Hook("lombok.patcher.scripts.TestSymbolsEx2", "bMethod", "void"))
+				.symbol("Foobar").build().patch("lombok/patcher/scripts/TestSymbolsEx2", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex2 = loadRaw("lombok.patcher.scripts.TestSymbolsEx2", posttransform);
+		int wrappers = 0;
+		for (Method m : ex2.getDeclaredMethods()) if (m.getName().startsWith("$lombok$$wrapper$")) wrappers++;
+		assertEquals(1, wrappers);
+		
+		Constructor<?> ex2Constructor = ex2.getDeclaredConstructor();
+		ex2Constructor.setAccessible(true);
+		Object instance = ex2Constructor.newInstance();
+		try {
+			for (String name : new String[] {"aMethod", "dMethod"}) {
+				Method m = ex2.getMethod(name);
+				m.setAccessible(true);
+				m.invoke(instance);
+			}
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+		assertTrue("marker-postinvoke", Symbols.isEmpty());
+	}
+	
+	@Test
+	public void testSnapshotAndRestore() {
+		Symbols.push("A");
+		Symbols.push("B");
+		try {
+			Symbols.Snapshot snapshot = Symbols.snapshot();
+			Symbols.pop();
+			Symbols.push("C");
+			assertEquals(Arrays.asList("B", "A"), snapshot.toList());
+			
+			Symbols.Snapshot previous = Symbols.restore(snapshot);
+			assertEquals(Arrays.asList("C", "A"), previous.toList());
+			assertTrue(Symbols.hasTail("B"));
+			assertEquals(2, Symbols.size());
+			Symbols.restore(previous);
+			assertTrue(Symbols.hasTail("C"));
+		} finally {
+			Symbols.pop();
+			Symbols.pop();
+		}
+		assertTrue(Symbols.snapshot().isEmpty());
+	}
+	
+	@Test
+	public void testPropagateToExecutor() throws Throwable {
+		InputStream raw = TestSymbols.class.getResourceAsStream("/lombok/patcher/scripts/TestSymbolsEx3.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform = ScriptBuilder.propagateSymbols()
+				.target(new MethodTarget("lombok.patcher.scripts.TestSymbolsEx3", "execute"))
+				.target(new MethodTarget("lombok.patcher.scripts.TestSymbolsEx3", "submit"))
+				.target(new MethodTarget("lombok.patcher.scripts.TestSymbolsEx3", "call"))
+				.build().patch("lombok/patcher/scripts/TestSymbolsEx3", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		
+		Class<?> ex3 = loadRaw("lombok.patcher.scripts.TestSymbolsEx3", posttransform);
+		Constructor<?> ex3Constructor = ex3.getDeclaredConstructor();
+		ex3Constructor.setAccessible(true);
+		Object instance = ex3Constructor.newInstance();
+		Method execute = ex3.getMethod("execute", ExecutorService.class, Runnable.class);
+		Method submit = ex3.getMethod("submit", ExecutorService.class, Runnable.class);
+		Method call = ex3.getMethod("call", ExecutorService.class, Callable.class);
+		execute.setAccessible(true);
+		submit.setAccessible(true);
+		call.setAccessible(true);
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final boolean[] seen = new boolean[2];
+		Runnable task = new Runnable() {
+			public void run() {
+				seen[0] = Symbols.hasTail("Foobar");
+			}
+		};
+		Callable<Boolean> callable = new Callable<Boolean>() {
+			public Boolean call() {
+				return Symbols.hasTail("Foobar");
+			}
+		};
+		Symbols.push("Foobar");
+		try {
+			execute.invoke(instance, executor, task);
+			executor.submit(new Runnable() {
+				public void run() {
+					seen[1] = Symbols.isEmpty();
+				}
+			}).get();
+			assertTrue("execute", seen[0]);
+			assertTrue("pool thread's own stack restored", seen[1]);
+			
+			seen[0] = false;
+			assertEquals("done", ((Future<?>) submit.invoke(instance, executor, task)).get());
+			assertTrue("submit", seen[0]);
+			assertEquals("call", Boolean.TRUE, ((Future<?>) call.invoke(instance, executor, callable)).get());
+			assertEquals("unpatched", Boolean.FALSE, executor.submit(callable).get());
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			Symbols.pop();
+			executor.shutdown();
+		}
+	}
+}
+
+class TestSymbolsEx2 {
+	public void aMethod() {
+		bMethod();
+		cMethod();
+		bMethod();
+	}
+	
+	public void dMethod() {
+		for (int i = 0; i < 3; i++) bMethod();
+	}
+	
+	public void cMethod() {
+		assertFalse(Symbols.hasSymbol("Foobar"));
+	}
+	
+	public void bMethod() {
+		assertTrue(Symbols.hasSymbol("Foobar"));
+		assertEquals(1, Symbols.size());
+	}
 }
 
 class TestSymbolsEx1 {
@@ -83,3 +219,17 @@ class TestSymbolsEx1 {
 		assertEquals(1, Symbols.size());
 	}
 }
+
+class TestSymbolsEx3 {
+	public void execute(ExecutorService executor, Runnable task) {
+		executor.execute(task);
+	}
+	
+	public Future<?> submit(ExecutorService executor, Runnable task) {
+		return executor.submit(task, "done");
+	}
+	
+	public Future<?> call(ExecutorService executor, Callable<?> task) {
+		return executor.submit(task);
+	}
+}
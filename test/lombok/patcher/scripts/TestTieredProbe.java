@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import lombok.patcher.MethodTarget;
+import lombok.patcher.MethodTimings;
+import lombok.patcher.PatchScript;
+import lombok.patcher.ScriptManager;
+
+import org.junit.Test;
+
+public class TestTieredProbe {
+	private static final String EX1 = "lombok.patcher.scripts.TestTieredProbeEx1";
+	private static final String EX1_SPEC = "lombok/patcher/scripts/TestTieredProbeEx1";
+	
+	private ClassFileTransformer transformer;
+	
+	@Test
+	public void testPromoteHotMethods() throws Exception {
+		Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("addTransformer")) transformer = (ClassFileTransformer) args[0];
+				if (method.getName().equals("getAllLoadedClasses")) return new Class<?>[0];
+				return null;
+			}
+		});
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		TieredProbe tiered = new TieredProbe(sm, instrumentation, new TieredProbe.ProbeFactory() {
+			public PatchScript createProbe(List<MethodTarget> hotMethods) {
+				ScriptBuilder.TimingProbeBuilder builder = ScriptBuilder.timingProbe();
+				for (MethodTarget target : hotMethods) builder.target(target);
+				return builder.build();
+			}
+		}, 2, new MethodTarget(EX1, "hot"), new MethodTarget(EX1, "warm"), new MethodTarget(EX1, "cold"), new MethodTarget(EX1, "unused"));
+		tiered.start();
+		
+		byte[] original = readFromStream(TestTieredProbe.class.getResourceAsStream("/" + EX1_SPEC + ".class"));
+		Class<?> counted = loadRaw(EX1, transformer.transform(null, EX1_SPEC, null, null, original));
+		for (int i = 0; i < 10; i++) call(counted, "hot", i);
+		for (int i = 0; i < 5; i++) call(counted, "warm");
+		call(counted, "cold");
+		assertEquals(4, tiered.getEntryCounts().size());
+		
+		List<MethodTarget> hot = tiered.promote();
+		assertEquals(2, hot.size());
+		assertEquals("hot", hot.get(0).getMethodName());
+		assertEquals("warm", hot.get(1).getMethodName());
+		assertTrue(hot.get(0).matches(EX1_SPEC, "hot", "(I)I"));
+		
+		Class<?> probed = loadRaw(EX1, transformer.transform(null, EX1_SPEC, null, null, original));
+		assertEquals(6, call(probed, "hot", 3));
+		call(probed, "cold");
+		assertEquals(1, MethodTimings.snapshot(EX1_SPEC, "hot", "(I)I").getReturned().getCount());
+		assertNull("cold methods aren't probed", MethodTimings.snapshot(EX1_SPEC, "cold", "()V"));
+		assertEquals("cold methods are no longer counted", 1L, (long) tiered.getEntryCounts().values().toArray(new Long[0])[2]);
+	}
+	
+	private static Object call(Class<?> c, String name, Object... args) throws Exception {
+		for (Method m : c.getDeclaredMethods()) {
+			if (!m.getName().equals(name)) continue;
+			m.setAccessible(true);
+			return m.invoke(null, args);
+		}
+		throw new NoSuchMethodException(name);
+	}
+}
+
+class TestTieredProbeEx1 {
+	static int hot(int x) {
+		return x * 2;
+	}
+	
+	static void warm() {
+	}
+	
+	static void cold() {
+	}
+	
+	static void unused() {
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2009-2019 The Project Lombok Authors.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package lombok.patcher.scripts;
+
+import static lombok.patcher.scripts.ScriptTestUtils.*;
+import static org.junit.Assert.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import lombok.patcher.MethodTarget;
+import lombok.patcher.MethodTimings;
+import lombok.patcher.PatchScript;
+import lombok.patcher.ScriptManager;
+import lombok.patcher.TransplantMapper;
+
+import org.junit.Test;
+
+public class TestTimingProbeScript {
+	private static final String EX1 = "lombok.patcher.scripts.TestTimingProbeScriptEx1";
+	private static final String EX2 = "lombok.patcher.scripts.TestTimingProbeScriptEx2";
+	private static final String EX2_SPEC = "lombok/patcher/scripts/TestTimingProbeScriptEx2";
+	
+	private ClassFileTransformer transformer;
+	
+	@Test
+	public void testTimingProbe() throws Exception {
+		byte[] pretransform = readFromStream(TestTimingProbeScript.class.getResourceAsStream("/lombok/patcher/scripts/TestTimingProbeScriptEx1.class"));
+		byte[] posttransform = ScriptBuilder.timingProbe()
+				.target(new MethodTarget(EX1, "work", "long", "int", "long"))
+				.target(new MethodTarget(EX1, "parse", "int", "java.lang.String"))
+				.build().patch("lombok/patcher/scripts/TestTimingProbeScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw(EX1, posttransform);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		Method workMethod = ex1.getDeclaredMethod("work", int.class, long.class);
+		Method parseMethod = ex1.getDeclaredMethod("parse", String.class);
+		ex1Constructor.setAccessible(true);
+		workMethod.setAccessible(true);
+		parseMethod.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals(0L, workMethod.invoke(instance, 0, 5L));
+		assertEquals(5L, workMethod.invoke(instance, 1, 5L));
+		assertEquals(12L, workMethod.invoke(instance, 3, 4L));
+		assertEquals(42, parseMethod.invoke(null, "42"));
+		assertEquals(-1, parseMethod.invoke(null, "x"));
+		try {
+			parseMethod.invoke(null, (Object) null);
+			fail("parse(null) should throw");
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof NullPointerException);
+		}
+		
+		MethodTimings.Timing work = MethodTimings.snapshot("lombok/patcher/scripts/TestTimingProbeScriptEx1", "work", "(IJ)J");
+		assertEquals(3, work.getReturned().getCount());
+		assertEquals(0, work.getThrown().getCount());
+		MethodTimings.Timing parse = MethodTimings.snapshot("lombok/patcher/scripts/TestTimingProbeScriptEx1", "parse", "(Ljava/lang/String;)I");
+		assertEquals(2, parse.getReturned().getCount());
+		assertEquals(1, parse.getThrown().getCount());
+		assertTrue(parse.getReturned().getSum() > 0);
+	}
+	
+	@Test
+	public void testProbeAddedAgainAtRetiredSite() throws Exception {
+		Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("addTransformer")) transformer = (ClassFileTransformer) args[0];
+				if (method.getName().equals("getAllLoadedClasses")) return new Class<?>[0];
+				return null;
+			}
+		});
+		ScriptManager sm = new ScriptManager();
+		sm.registerTransformer(instrumentation);
+		sm.setProbeCheckInterval(10);
+		byte[] original = readFromStream(TestTimingProbeScript.class.getResourceAsStream("/" + EX2_SPEC + ".class"));
+		
+		PatchScript first = ScriptBuilder.timingProbe().target(new MethodTarget(EX2, "tick")).build();
+		sm.addTemporaryScript(first, 3, 0, instrumentation);
+		int version = sm.getVersion();
+		Method tick = loadRaw(EX2, transformer.transform(null, EX2_SPEC, null, null, original)).getDeclaredMethod("tick");
+		tick.setAccessible(true);
+		for (int i = 0; i < 3; i++) tick.invoke(null);
+		for (int i = 0; i < 500 && sm.getVersion() == version; i++) Thread.sleep(10);
+		assertTrue("first probe retired", sm.getVersion() != version);
+		assertEquals(3L, first.getSamplesTaken());
+		
+		PatchScript second = ScriptBuilder.timingProbe().target(new MethodTarget(EX2, "tick")).build();
+		sm.addTemporaryScript(second, 3, 0, instrumentation);
+		tick = loadRaw(EX2, transformer.transform(null, EX2_SPEC, null, null, original)).getDeclaredMethod("tick");
+		tick.setAccessible(true);
+		assertEquals("same site, but none of its own samples yet", 0L, second.getSamplesTaken());
+		tick.invoke(null);
+		tick.invoke(null);
+		Thread.sleep(50);
+		assertEquals(2L, second.getSamplesTaken());
+		assertTrue("not retired", sm.removeScript(second));
+	}
+}
+
+class TestTimingProbeScriptEx1 {
+	long work(int n, long step) {
+		if (n == 0) return 0;
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			total += step;
+		}
+		return total;
+	}
+	
+	static int parse(String s) {
+		if (s.length() == 0) return 0;
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
+
+class TestTimingProbeScriptEx2 {
+	static int ticks;
+	
+	static int tick() {
+		return ++ticks;
+	}
+}
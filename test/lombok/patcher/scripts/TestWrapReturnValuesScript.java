@@ -34,6 +34,10 @@ import lombok.patcher.StackRequest;
 import lombok.patcher.TransplantMapper;
 
 import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 public class TestWrapReturnValuesScript {
 	@Test
@@ -77,6 +81,200 @@ public class TestWrapReturnValuesScript {
 		assertArrayEquals("patched return value", new String[] {"B"}, (String[]) barMethod.invoke(ex1Constructor.newInstance()));
 	}
 	
+	@Test
+	public void testWrapReturnWithInsert() throws Exception {
+		InputStream raw = TestWrapReturnValuesScript.class.getResourceAsStream("/lombok/patcher/scripts/TestWrapReturnValuesScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform1 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "foo",
+						"int", "int", "java.lang.String[]"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook3", "int", "int", "int"))
+				.insert().request(StackRequest.RETURN_VALUE, StackRequest.PARAM1)
+				.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "baz",
+						"long", "long", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook4", "long", "long", "long"))
+				.insert().request(StackRequest.RETURN_VALUE, StackRequest.PARAM1)
+				.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", posttransform2);
+		Method fooMethod = ex1.getMethod("foo", int.class, String[].class);
+		Method bazMethod = ex1.getMethod("baz", long.class, int.class);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		fooMethod.setAccessible(true);
+		bazMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		
+		assertEquals("patched return value", 10, (int)(Integer)fooMethod.invoke(ex1Constructor.newInstance(), 5, null));
+		assertEquals("patched return value", 1305, (int)(Integer)fooMethod.invoke(ex1Constructor.newInstance(), 50, null));
+		assertEquals("patched return value", 33L, (long)(Long)bazMethod.invoke(ex1Constructor.newInstance(), 10L, 3));
+		assertEquals("patched return value", -1L, (long)(Long)bazMethod.invoke(ex1Constructor.newInstance(), -10L, 0));
+	}
+	
+	@Test
+	public void testWrapReturnWithSharedExit() throws Exception {
+		InputStream raw = TestWrapReturnValuesScript.class.getResourceAsStream("/lombok/patcher/scripts/TestWrapReturnValuesScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform1 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "pick",
+						"java.lang.String", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook5", "java.lang.String", "java.lang.String", "java.lang.Object", "int"))
+				.sharedExit().request(StackRequest.RETURN_VALUE, StackRequest.THIS, StackRequest.PARAM1)
+				.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "baz",
+						"long", "long", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook4", "long", "long", "long"))
+				.insert().sharedExit().request(StackRequest.RETURN_VALUE, StackRequest.PARAM1)
+				.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", posttransform2);
+		Method pickMethod = ex1.getMethod("pick", int.class);
+		Method bazMethod = ex1.getMethod("baz", long.class, int.class);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		pickMethod.setAccessible(true);
+		bazMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("patched return value", "zero/0", pickMethod.invoke(instance, 0));
+		assertEquals("patched return value", "two/2", pickMethod.invoke(instance, 2));
+		assertEquals("patched return value", "many/7", pickMethod.invoke(instance, 7));
+		assertEquals("patched return value", 33L, (long)(Long)bazMethod.invoke(instance, 10L, 3));
+		assertEquals("patched return value", 30L, (long)(Long)bazMethod.invoke(instance, 10L, 0));
+		assertEquals("patched return value", -1L, (long)(Long)bazMethod.invoke(instance, -10L, 0));
+	}
+	
+	@Test
+	public void testWrapReturnWithSample() throws Exception {
+		InputStream raw = TestWrapReturnValuesScript.class.getResourceAsStream("/lombok/patcher/scripts/TestWrapReturnValuesScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		WrapReturnValuesScript script1 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "pick",
+						"java.lang.String", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook5", "java.lang.String", "java.lang.String", "java.lang.Object", "int"))
+				.sample(2).request(StackRequest.RETURN_VALUE, StackRequest.THIS, StackRequest.PARAM1)
+				.build();
+		WrapReturnValuesScript script2 = ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "baz",
+						"long", "long", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook4", "long", "long", "long"))
+				.insert().sample(1).request(StackRequest.RETURN_VALUE, StackRequest.PARAM1)
+				.build();
+		byte[] posttransform1 = script1.patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		byte[] posttransform2 = script2.patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", posttransform1, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", posttransform2);
+		Method pickMethod = ex1.getMethod("pick", int.class);
+		Method bazMethod = ex1.getMethod("baz", long.class, int.class);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		pickMethod.setAccessible(true);
+		bazMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("unsampled return value", "zero", pickMethod.invoke(instance, 0));
+		assertEquals("sampled return value", "two/2", pickMethod.invoke(instance, 2));
+		assertEquals("unsampled return value", "many", pickMethod.invoke(instance, 7));
+		assertEquals("sampled return value", "many/8", pickMethod.invoke(instance, 8));
+		
+		script1.setSampleRate(0);
+		assertEquals(0, script1.getSampleRate());
+		for (int i = 0; i < 4; i++) assertEquals("never sampled", "zero", pickMethod.invoke(instance, 0));
+		script1.setSampleRate(1);
+		for (int i = 0; i < 4; i++) assertEquals("always sampled", "zero/0", pickMethod.invoke(instance, 0));
+		
+		assertEquals("sampled return value", 33L, (long)(Long)bazMethod.invoke(instance, 10L, 3));
+		script2.setSampleRate(0);
+		assertEquals("unsampled return value", 23L, (long)(Long)bazMethod.invoke(instance, 10L, 3));
+	}
+	
+	@Test
+	public void testInsertTryCatchHookOnNonEmptyStack() throws Exception {
+		InputStream raw = TestWrapReturnValuesScript.class.getResourceAsStream("/lombok/patcher/scripts/TestWrapReturnValuesScriptEx1.class");
+		byte[] pretransform = readFromStream(raw);
+		byte[] posttransform = ScriptBuilder.wrapMethodCall()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "clamp",
+						"long", "long", "java.lang.Integer"))
+				.methodToWrap(new Hook("java.lang.Integer", "intValue", "int"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook7", "int", "int"))
+				.insert()
+				.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx1", pretransform, TransplantMapper.IDENTITY_MAPPER);
+		Class<?> ex1 = loadRaw("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", posttransform);
+		Method clampMethod = ex1.getMethod("clamp", long.class, Integer.class);
+		Constructor<?> ex1Constructor = ex1.getDeclaredConstructor();
+		clampMethod.setAccessible(true);
+		ex1Constructor.setAccessible(true);
+		Object instance = ex1Constructor.newInstance();
+		
+		assertEquals("patched return value", 32L, (long)(Long)clampMethod.invoke(instance, 0L, 3));
+		assertEquals("patched return value", 50L, (long)(Long)clampMethod.invoke(instance, 50L, 3));
+		assertEquals("patched return value", 3L, (long)(Long)clampMethod.invoke(instance, 0L, -3));
+	}
+	
+	@Test
+	public void testSharedExitWithReturnOnDeeperStack() throws Exception {
+		for (boolean insert : new boolean[] {false, true}) {
+			ScriptBuilder.WrapReturnValueBuilder builder = ScriptBuilder.wrapReturnValue()
+					.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx3", "deep", "int", "int"))
+					.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+							"hook8", "int", "int"))
+					.sharedExit().request(StackRequest.RETURN_VALUE);
+			if (insert) builder.insert();
+			byte[] posttransform = builder.build().patch("lombok/patcher/scripts/TestWrapReturnValuesScriptEx3", makeEx3(), TransplantMapper.IDENTITY_MAPPER);
+			Method deepMethod = loadRaw("lombok.patcher.scripts.TestWrapReturnValuesScriptEx3", posttransform).getMethod("deep", int.class);
+			
+			assertEquals("patched return value", 11, (int)(Integer)deepMethod.invoke(null, 0));
+			assertEquals("patched return value", 21, (int)(Integer)deepMethod.invoke(null, 1));
+			assertEquals("patched return value", 71, (int)(Integer)deepMethod.invoke(null, 7));
+		}
+	}
+	
+	/**
+	 * Generated, as javac never leaves anything under the return value when returning.
+	 */
+	private static byte[] makeEx3() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "lombok/patcher/scripts/TestWrapReturnValuesScriptEx3", null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "deep", "(I)I", null, null);
+		mv.visitCode();
+		Label notZero = new Label(), notOne = new Label();
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitJumpInsn(Opcodes.IFNE, notZero);
+		mv.visitInsn(Opcodes.ICONST_1);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitLabel(notZero);
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitInsn(Opcodes.ICONST_1);
+		mv.visitJumpInsn(Opcodes.IF_ICMPNE, notOne);
+		mv.visitInsn(Opcodes.ICONST_2);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitLabel(notOne);
+		mv.visitInsn(Opcodes.ICONST_5);
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testSampleRequiresReturnValue() {
+		ScriptBuilder.wrapReturnValue()
+				.target(new MethodTarget("lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", "bar",
+						"java.lang.String[]"))
+				.wrapMethod(new Hook("lombok.patcher.scripts.TestWrapReturnValuesScript$TestWrapReturnValuesScriptEx2",
+						"hook6", "java.lang.Object"))
+				.sample(2)
+				.build();
+	}
+	
 	public static class TestWrapReturnValuesScriptEx2 {
 		public static int hook1(int supposedReturnValue, Object thisRef, int param1, String[] param2) {
 			assertEquals("supposedReturnValue", param1 < 10 ? 10 : 80, supposedReturnValue);
@@ -96,6 +294,45 @@ public class TestWrapReturnValuesScript {
 			assertArrayEquals("supposedReturnValue", new String[] {"A"}, srv);
 			return new String[] {"B"};
 		}
+		
+		public static int hook3(int supposedReturnValue, int param1) {
+			int total = 0;
+			for (int i = 0; i < param1; i++) total += i;
+			if (supposedReturnValue == 10) return total;
+			try {
+				return Integer.parseInt("x" + total);
+			} catch (NumberFormatException e) {
+				return supposedReturnValue + total;
+			}
+		}
+		
+		public static long hook4(long supposedReturnValue, long param1) {
+			if (param1 < 0) return -1L;
+			long out = supposedReturnValue;
+			for (long i = 0; i < param1; i++) out++;
+			return out;
+		}
+		
+		public static String hook5(String supposedReturnValue, Object thisRef, int param1) {
+			assertEquals("typeOf thisRef", "lombok.patcher.scripts.TestWrapReturnValuesScriptEx1", thisRef.getClass().getName());
+			return supposedReturnValue + "/" + param1;
+		}
+		
+		public static Object hook6() {
+			return new String[] {"C"};
+		}
+		
+		public static int hook7(int result) {
+			try {
+				return Integer.parseInt(result + "" + (result - 1));
+			} catch (NumberFormatException e) {
+				return -result;
+			}
+		}
+		
+		public static int hook8(int result) {
+			return result * 10 + 1;
+		}
 	}
 }
 
@@ -109,4 +346,24 @@ class TestWrapReturnValuesScriptEx1 {
 	public String[] bar() {
 		return new String[] {"A"};
 	}
+	
+	public long baz(long a, int b) {
+		long c = a * 2;
+		if (b > 0) return c + b;
+		return c;
+	}
+	
+	public long clamp(long floor, Integer x) {
+		return Math.max(floor, (long) Math.max(1, x.intValue()));
+	}
+	
+	public String pick(int x) {
+		switch (x) {
+		case 0: return "zero";
+		case 1: return "one";
+		case 2: return "two";
+		case 3: return "three";
+		}
+		return "many";
+	}
 }